@@ -1,6 +1,8 @@
 package guttmanlab.core.annotation;
 
-import java.util.ArrayList;
+import guttmanlab.core.annotation.io.BEDWriter;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
+
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.TreeSet;
@@ -17,21 +19,17 @@ import net.sf.samtools.SAMRecord;
  */
 public abstract class AbstractAnnotation implements Annotation {
 	
+	/**
+	 * Looks the name up in the ReferenceDictionary; annotations that store their reference id override this
+	 */
+	@Override
+	public int getReferenceId() {
+		return ReferenceDictionary.getId(getReferenceName());
+	}
+	
 	@Override
 	public Annotation intersect(Annotation other) {
-		BlockedAnnotation rtrn=new BlockedAnnotation();
-		Iterator<SingleInterval> blocks1=getBlocks();
-		while(blocks1.hasNext()){
-			SingleInterval block1=blocks1.next();
-			Iterator<SingleInterval> blocks2=other.getBlocks();
-			while(blocks2.hasNext()){
-				SingleInterval block2=blocks2.next();
-				SingleInterval inter=intersect(block1, block2);
-				if(inter!=null){rtrn.addBlocks(inter);}
-			}
-			
-		}
-		return rtrn;
+		return BlockAlgebra.intersect(this, other);
 	}
 	
 	/**
@@ -47,42 +45,74 @@ public abstract class AbstractAnnotation implements Annotation {
 		return rtrn;
 	}
 	
-
 	/**
-	 * Helper method to compute the overlap between single blocks
-	 * @param block1 Block1
-	 * @param block2 Block2
-	 * @return The intersection or null if no intersection exists
+	 * Whether getBlockStart and getBlockEnd give constant time access to the blocks
+	 * The block algebra reads these annotations in place instead of copying their blocks
+	 * @return True if the blocks can be read by index
 	 */
-	private SingleInterval intersect(SingleInterval block1, SingleInterval block2) {
-		if(!overlaps(block1, block2)){return null;}
-		int newStart=Math.max(block1.getReferenceStartPosition(), block2.getReferenceStartPosition());
-		int newEnd=Math.min(block1.getReferenceEndPosition(), block2.getReferenceEndPosition());
-		Strand consensus=Annotation.Strand.consensusStrand(block1.getOrientation(), block2.getOrientation());
-		return new SingleInterval(block1.getReferenceName(), newStart, newEnd, consensus);
+	boolean hasIndexedBlocks(){
+		return false;
+	}
+	
+	/**
+	 * @param index Index of the block in sorted order
+	 * @return The reference start of the block
+	 */
+	int getBlockStart(int index){
+		throw new UnsupportedOperationException("Blocks of " + getClass().getSimpleName() + " are not indexed");
+	}
+	
+	/**
+	 * @param index Index of the block in sorted order
+	 * @return The reference end of the block
+	 */
+	int getBlockEnd(int index){
+		throw new UnsupportedOperationException("Blocks of " + getClass().getSimpleName() + " are not indexed");
+	}
+	
+	/**
+	 * @param index Index of the block in sorted order, or the number of blocks
+	 * @return The summed size of the blocks before the index
+	 */
+	int getBlockOffset(int index){
+		throw new UnsupportedOperationException("Blocks of " + getClass().getSimpleName() + " are not indexed");
+	}
+	
+	/**
+	 * Binary search over the cumulative block sizes
+	 * @param offset Position counted from the lowest reference position of the blocks
+	 * @return Index of the first block that extends past the offset, or the number of blocks if there is none
+	 */
+	int firstBlockOffsetEndingAfter(int offset){
+		int low=0;
+		int high=getNumberOfBlocks();
+		while(low<high){
+			int mid=(low+high)>>>1;
+			if(getBlockOffset(mid+1)<=offset){low=mid+1;}
+			else{high=mid;}
+		}
+		return low;
+	}
+	
+	/**
+	 * @return The strand carried by the blocks, which can differ from the orientation of the annotation once that has been set
+	 */
+	Strand getBlockOrientation(){
+		return getOrientation();
 	}
 
 	@Override
 	public Annotation merge(Annotation other) {
-		BlockedAnnotation rtrn=new BlockedAnnotation();
-		Iterator<SingleInterval> blocks1=getBlocks();
-		while(blocks1.hasNext()){
-			SingleInterval block1=blocks1.next();
-			Iterator<SingleInterval> blocks2=other.getBlocks();
-			while(blocks2.hasNext()){
-				SingleInterval block2=blocks2.next();
-				if(block1.overlaps(block2)){
-					SingleInterval merge=merge(block1, block2);
-					if(merge!=null){rtrn.addBlocks(merge);}
-				}
-			}
-			
-		}
-		return rtrn;
+		return BlockAlgebra.merge(this, other);
+	}
+
+	@Override
+	public Annotation union(Annotation other) {
+		return BlockAlgebra.union(this, other);
 	}
 
 	protected SingleInterval merge(SingleInterval block1, SingleInterval block2) {
-		if(!overlaps(block1, block2)){return null;}
+		if(!BlockAlgebra.overlaps(block1, block2)){return null;}
 		
 		int newStart=Math.min(block1.getReferenceStartPosition(), block2.getReferenceStartPosition());
 		int newEnd=Math.max(block1.getReferenceEndPosition(), block2.getReferenceEndPosition());
@@ -92,26 +122,12 @@ public abstract class AbstractAnnotation implements Annotation {
 
 	@Override
 	public Annotation minus(Annotation other) {
-		// FIXME Auto-generated method stub
-		throw new UnsupportedOperationException("TODO");
+		return BlockAlgebra.minus(this, other);
 	}
 	
 	@Override
 	public boolean overlaps(Annotation other) {
-		//TODO This method still needs to be tested to ensure that it does what we expect
-		//Check if the blocks overlap
-		Iterator<SingleInterval> blocks1=getBlocks();
-		while(blocks1.hasNext()){
-			SingleInterval block1=blocks1.next();
-			Iterator<SingleInterval> blocks2=other.getBlocks();
-			while(blocks2.hasNext()){
-				SingleInterval block2=blocks2.next();
-				if(overlaps(block1, block2)){
-					return true;
-				}
-			}	
-		}
-		return false;
+		return BlockAlgebra.overlaps(this, other);
 	}
 	
 	public boolean overlaps(Annotation other, boolean fullyContained){
@@ -126,57 +142,10 @@ public abstract class AbstractAnnotation implements Annotation {
 			if(other.getReferenceEndPosition()>this.getReferenceEndPosition()){return false;}
 				
 			//check if other overlaps an intron in this
-			Collection<SingleInterval> introns=this.getIntrons();
-			for(SingleInterval intron: introns){
-				if(intron.overlaps(other)){return false;}
-			}
+			if(BlockAlgebra.overlapsIntrons(this, other)){return false;}
 		}
 		
 		return true;
-			
-		
-		
-		/*if(!fullyContained){return overlaps(other);}
-		
-		Annotation intersect=intersect(other);
-		if(intersect!=null){
-			System.err.println(intersect +" "+other);
-			return isSame(intersect, other);
-		}
-		return false;*/
-	}
-	
-	private Collection<SingleInterval> getIntrons() {
-		Collection<SingleInterval> rtrn=new TreeSet<SingleInterval>();
-		ArrayList<Annotation> exons=new ArrayList<Annotation>(this.getBlockSet());
-		
-		for(int i=0; i<exons.size()-1; i++){
-			Annotation exon1=exons.get(i);
-			Annotation exon2=exons.get(i+1);
-			SingleInterval intron=new SingleInterval(exon1.getReferenceName(), exon1.getReferenceEndPosition()+1, exon2.getReferenceStartPosition(), exon1.getOrientation());
-			rtrn.add(intron);
-		}
-		return rtrn;
-	}
-
-	
-	
-	/**
-	 * Helper method to calculate overlaps from single blocks
-	 * @param block1
-	 * @param block2
-	 * @return whether the blocks overlap
-	 */
-	private boolean overlaps(SingleInterval block1, SingleInterval block2){
-		int newStart=Math.max(block1.getReferenceStartPosition(), block2.getReferenceStartPosition());
-		int newEnd=Math.min(block1.getReferenceEndPosition(), block2.getReferenceEndPosition());
-		
-		Strand consensusStrand=Annotation.Strand.consensusStrand(block1.getOrientation(), block2.getOrientation());
-		if(newStart<newEnd && block1.getReferenceName().equalsIgnoreCase(block2.getReferenceName()) && !consensusStrand.equals(Annotation.Strand.INVALID)){
-			return true;
-		}
-		
-		return false;
 	}
 
 	@Override
@@ -212,21 +181,7 @@ public abstract class AbstractAnnotation implements Annotation {
 	}
 	
 	public String toBED(int r, int g, int b, double score, String name){
-		if(r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255) {
-			throw new IllegalArgumentException("RGB values must be between 0 and 255");
-		}
-		String rgb = r + "," + g + "," + b;
-		Iterator<SingleInterval> exons = getBlocks();
-		String rtrn=getReferenceName()+"\t"+getReferenceStartPosition()+"\t"+getReferenceEndPosition()+"\t"+name+"\t" + score + "\t"+getOrientation()+"\t"+getReferenceEndPosition()+"\t"+getReferenceEndPosition()+"\t"+rgb+"\t"+getNumberOfBlocks();
-		String sizes="";
-		String starts="";
-		while(exons.hasNext()){
-			SingleInterval exon=exons.next();
-			sizes=sizes+(exon.size())+",";
-			starts=starts+(exon.getReferenceStartPosition()-getReferenceStartPosition())+",";
-		}
-		rtrn=rtrn+"\t"+sizes+"\t"+starts;
-		return rtrn;
+		return BEDWriter.format(this, r, g, b, score, name, getReferenceEndPosition(), getReferenceEndPosition());
 	}
 
 	public String toUCSC() {
@@ -241,9 +196,9 @@ public abstract class AbstractAnnotation implements Annotation {
 			Annotation interval;
 			if(featureStart>-1 && featureEnd>-1){
 				if(getOrientation().equals(Strand.NEGATIVE)){
-					interval=new SingleInterval(getName(), featureEnd, featureStart); //TODO Check strand orientation
+					interval=SingleInterval.inFeatureSpace(getName(), featureEnd, featureStart); //TODO Check strand orientation
 				}
-				else{interval=new SingleInterval(getName(), featureStart, featureEnd);}
+				else{interval=SingleInterval.inFeatureSpace(getName(), featureStart, featureEnd);}
 				return interval;
 			}
 		}
@@ -258,9 +213,9 @@ public abstract class AbstractAnnotation implements Annotation {
 			Annotation interval;
 			if(featureStart>-1 && featureEnd>-1){
 				if(getOrientation().equals(Strand.NEGATIVE)){
-					interval=new SingleInterval(feature.getName(), featureEnd, featureStart);
+					interval=SingleInterval.inFeatureSpace(feature.getName(), featureEnd, featureStart);
 				}
-				else{interval=new SingleInterval(feature.getName(), featureStart, featureEnd);}
+				else{interval=SingleInterval.inFeatureSpace(feature.getName(), featureStart, featureEnd);}
 				return interval;
 			}
 		}
@@ -268,6 +223,9 @@ public abstract class AbstractAnnotation implements Annotation {
 	}
 	
 	public Annotation convertToReferenceSpace(Annotation featureAnnotation){
+		if(hasIndexedBlocks() && featureAnnotation.getNumberOfBlocks()==1 && featureAnnotation.getReferenceStartPosition()<featureAnnotation.getReferenceEndPosition() && getName()!=null){
+			return convertIndexedToReferenceSpace(featureAnnotation);
+		}
 		BlockedAnnotation rtrn=new BlockedAnnotation();
 		Iterator<SingleInterval> blocks = getBlocks();
 		int sumBlocks=0;
@@ -275,11 +233,11 @@ public abstract class AbstractAnnotation implements Annotation {
 		while(blocks.hasNext()){
 			SingleInterval block=blocks.next();
 			int origBlockSize = block.size();
-			SingleInterval featureSpaceBlock=new SingleInterval(getName(), sumBlocks, sumBlocks+block.size());
+			SingleInterval featureSpaceBlock=SingleInterval.inFeatureSpace(getName(), sumBlocks, sumBlocks+block.size());
 
 			if(getOrientation().equals(Strand.NEGATIVE))
 			{
-				featureSpaceBlock= new SingleInterval(getName(), size()-(sumBlocks+block.size()),size()-sumBlocks); //FIXME TEST ME
+				featureSpaceBlock= SingleInterval.inFeatureSpace(getName(), size()-(sumBlocks+block.size()),size()-sumBlocks); //FIXME TEST ME
 			}
 						
 			if(featureAnnotation.overlaps(featureSpaceBlock)){
@@ -302,6 +260,46 @@ public abstract class AbstractAnnotation implements Annotation {
 		
 	}
 	
+	/**
+	 * convertToReferenceSpace for a contiguous region, going straight to the blocks it covers using the cumulative block sizes
+	 * @param featureAnnotation Region in the feature space of this annotation
+	 * @return The blocks of this annotation covered by the region, trimmed to it
+	 */
+	private Annotation convertIndexedToReferenceSpace(Annotation featureAnnotation){
+		BlockedAnnotation rtrn=new BlockedAnnotation();
+		if(!getName().equalsIgnoreCase(featureAnnotation.getReferenceName())){return rtrn;}
+		int size=getBlockOffset(getNumberOfBlocks());
+		//Offsets count from the lowest reference position, so on the negative strand the region is flipped instead of the blocks
+		boolean negative=getOrientation().equals(Strand.NEGATIVE);
+		int from=negative ? size-featureAnnotation.getReferenceEndPosition() : featureAnnotation.getReferenceStartPosition();
+		int to=negative ? size-featureAnnotation.getReferenceStartPosition() : featureAnnotation.getReferenceEndPosition();
+		addBlocksInOffsetRange(rtrn, firstBlockOffsetEndingAfter(from), from, to);
+		return rtrn;
+	}
+	
+	/**
+	 * Add the parts of the blocks that fall in a range of cumulative block sizes, trimmed as convertToReferenceSpace trims them
+	 * @param rtrn The annotation to add the blocks to
+	 * @param first Index of the first block that extends past the start of the range
+	 * @param from Start of the range, counted from the lowest reference position
+	 * @param to End of the range
+	 */
+	void addBlocksInOffsetRange(BlockedAnnotation rtrn, int first, int from, int to){
+		int numBlocks=getNumberOfBlocks();
+		//Blocks on the negative strand are trimmed from their reference end
+		boolean flipTrim=getOrientation().equals(Strand.NEGATIVE)!=getBlockOrientation().equals(Strand.NEGATIVE);
+		for(int i=first; i<numBlocks && getBlockOffset(i)<to; i++){
+			int blockStart=getBlockStart(i);
+			int blockEnd=getBlockEnd(i);
+			if(blockStart==blockEnd){continue;}
+			int offset=getBlockOffset(i);
+			int low=Math.max(0, from-offset);
+			int high=Math.max(0, offset+blockEnd-blockStart-to);
+			if(flipTrim){rtrn.addBlock(getReferenceId(), getReferenceName(), blockStart+high, blockEnd-low, Strand.UNKNOWN, "");}
+			else{rtrn.addBlock(getReferenceId(), getReferenceName(), blockStart+low, blockEnd-high, Strand.UNKNOWN, "");}
+		}
+	}
+	
 	@Override
 	public String getCigarString(){
 		Iterator<SingleInterval> blocks=getBlocks();
@@ -340,34 +338,7 @@ public abstract class AbstractAnnotation implements Annotation {
 	
 	public boolean fullyContained(Annotation other){
 		//All blocks in other must be in blocks on this
-		//Go through all blocks2 and check that they are in this
-		Iterator<SingleInterval> blocks2=other.getBlocks();
-		while(blocks2.hasNext()){
-			SingleInterval block2=blocks2.next();
-			boolean isInThis=false;
-			//check that each block2 has some overlap with a block1
-			Iterator<SingleInterval> blocks1=getBlocks();
-			while(blocks1.hasNext()){
-				SingleInterval block1=blocks1.next();
-				if(block1.overlaps(block2)){
-					isInThis=true;
-					if(!fullyContained(block1, block2)){
-						return false;
-					}
-				}
-			}
-			if(!isInThis){return false;} //There are no blocks in this that the block overlapped, cant be fully contained
-		}
-		
-		return true;
-	}
-	
-	private boolean fullyContained(SingleInterval block1, SingleInterval block2){
-		//is only fully contained if block2 is equal to or a subset of block1
-		if(block1.getReferenceStartPosition()<=block2.getReferenceStartPosition() && block1.getReferenceEndPosition()>=block2.getReferenceEndPosition()){
-			return true;
-		}
-		return false;	
+		return BlockAlgebra.fullyContained(this, other);
 	}
 	
 	public Annotation trim(int start,int end)
@@ -388,7 +359,7 @@ public abstract class AbstractAnnotation implements Annotation {
 	}
 	
 	public int compareToAnnotation(Annotation b, boolean useOrientation) {
-		int comp = getReferenceName().compareTo(b.getReferenceName());
+		int comp = ReferenceDictionary.compare(getReferenceId(), getReferenceName(), b.getReferenceId(), b.getReferenceName());
 		if(comp!=0){return comp;}
 		
 		//second sort by start coordinate
@@ -434,7 +405,7 @@ public abstract class AbstractAnnotation implements Annotation {
 	@Override
 	public int hashCode()
 	{
-		return new HashCodeBuilder(31,37).append(getReferenceName()).append(getReferenceStartPosition()).append(getReferenceEndPosition()).append(getOrientation()).append(getNumberOfBlocks()).toHashCode();
+		return new HashCodeBuilder(31,37).append(ReferenceDictionary.hash(getReferenceId(), getReferenceName())).append(getReferenceStartPosition()).append(getReferenceEndPosition()).append(getOrientation()).append(getNumberOfBlocks()).toHashCode();
 	}
 	
 	@Override 
@@ -92,6 +92,11 @@ public interface Annotation {
 	 */
 	public String getReferenceName();
 	
+	/**
+	 * @return The id of the reference in the ReferenceDictionary
+	 */
+	public int getReferenceId();
+	
 	/**
 	 * @return The start position on the reference
 	 */
@@ -128,6 +133,13 @@ public interface Annotation {
 	 */
 	public Annotation merge(Annotation other);
 	
+	/**
+	 * Union with another annotation
+	 * @param other Another annotation on the same reference and a compatible strand
+	 * @return A new annotation with every block of both annotations, overlapping blocks joined; empty if the annotations are on different references or strands
+	 */
+	public Annotation union(Annotation other);
+	
 	/**
 	 * Subtract another annotation from this annotation
 	 * @param other Another annotation
@@ -0,0 +1,248 @@
+package guttmanlab.core.annotation;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
+
+/**
+ * Set operations on the blocks of two annotations
+ * Each operation is a single sweep over both sorted block lists, O(n+m) instead of comparing every pair of blocks
+ * Blocks are read by index so annotations with packed blocks are never materialized into SingleIntervals
+ * Two blocks overlap if they share at least one base, are on the same reference and have compatible strands
+ * @author mguttman
+ *
+ */
+final class BlockAlgebra {
+
+	private BlockAlgebra(){}
+
+	/**
+	 * @param annotation An annotation
+	 * @return The annotation itself if its blocks can be read by index, otherwise a packed copy of its blocks
+	 */
+	static AbstractAnnotation indexed(Annotation annotation){
+		if(annotation instanceof AbstractAnnotation && ((AbstractAnnotation)annotation).hasIndexedBlocks()){
+			return (AbstractAnnotation)annotation;
+		}
+		return new BlockedAnnotation(annotation);
+	}
+
+	/**
+	 * Blocks of an annotation share a reference and a strand, so this only needs to be checked once per pair of annotations
+	 * @return Whether blocks of the two annotations can overlap at all
+	 */
+	private static boolean compatible(AbstractAnnotation a, AbstractAnnotation b){
+		int n=a.getNumberOfBlocks();
+		int m=b.getNumberOfBlocks();
+		if(n==0 || m==0){return false;}
+		if(a.getBlockEnd(n-1)<=b.getBlockStart(0) || b.getBlockEnd(m-1)<=a.getBlockStart(0)){return false;}
+		if(!ReferenceDictionary.sameReference(a, b)){return false;}
+		return !Strand.consensusStrand(a.getBlockOrientation(), b.getBlockOrientation()).equals(Strand.INVALID);
+	}
+
+	/**
+	 * Binary search over block ends
+	 * @param a Annotation with indexed blocks
+	 * @param position Reference position
+	 * @return Index of the first block ending after the position, or the number of blocks if there is none
+	 */
+	static int firstBlockEndingAfter(AbstractAnnotation a, int position){
+		int low=0;
+		int high=a.getNumberOfBlocks();
+		while(low<high){
+			int mid=(low+high)>>>1;
+			if(a.getBlockEnd(mid)<=position){low=mid+1;}
+			else{high=mid;}
+		}
+		return low;
+	}
+
+	static boolean overlaps(Annotation first, Annotation second){
+		AbstractAnnotation a=indexed(first);
+		AbstractAnnotation b=indexed(second);
+		if(!compatible(a, b)){return false;}
+		int n=a.getNumberOfBlocks();
+		int m=b.getNumberOfBlocks();
+		int i=firstBlockEndingAfter(a, b.getBlockStart(0));
+		int j=0;
+		while(i<n && j<m){
+			int aEnd=a.getBlockEnd(i);
+			int bEnd=b.getBlockEnd(j);
+			if(Math.max(a.getBlockStart(i), b.getBlockStart(j))<Math.min(aEnd, bEnd)){return true;}
+			if(aEnd<=bEnd){i++;}
+			else{j++;}
+		}
+		return false;
+	}
+
+	/**
+	 * @param first Annotation whose introns are tested
+	 * @param second Annotation whose blocks are tested
+	 * @return Whether any block of second falls in an intron of first
+	 */
+	static boolean overlapsIntrons(Annotation first, Annotation second){
+		AbstractAnnotation a=indexed(first);
+		AbstractAnnotation b=indexed(second);
+		if(!compatible(a, b)){return false;}
+		int numIntrons=a.getNumberOfBlocks()-1;
+		int m=b.getNumberOfBlocks();
+		int i=0;
+		int j=0;
+		while(i<numIntrons && j<m){
+			//Introns start one base after the preceding exon, as they always have in getIntrons
+			int intronStart=a.getBlockEnd(i)+1;
+			int intronEnd=a.getBlockStart(i+1);
+			int bEnd=b.getBlockEnd(j);
+			if(Math.max(intronStart, b.getBlockStart(j))<Math.min(intronEnd, bEnd)){return true;}
+			if(intronEnd<=bEnd){i++;}
+			else{j++;}
+		}
+		return false;
+	}
+
+	/**
+	 * @return True iff every block of second lies inside a single block of first
+	 */
+	static boolean fullyContained(Annotation first, Annotation second){
+		AbstractAnnotation b=indexed(second);
+		int m=b.getNumberOfBlocks();
+		if(m==0){return true;}
+		AbstractAnnotation a=indexed(first);
+		if(!compatible(a, b)){return false;}
+		int n=a.getNumberOfBlocks();
+		int i=0;
+		for(int j=0; j<m; j++){
+			int bStart=b.getBlockStart(j);
+			int bEnd=b.getBlockEnd(j);
+			while(i<n && a.getBlockEnd(i)<=bStart){i++;}
+			if(i==n){return false;}
+			int aStart=a.getBlockStart(i);
+			int aEnd=a.getBlockEnd(i);
+			boolean overlaps=Math.max(aStart, bStart)<Math.min(aEnd, bEnd);
+			if(!overlaps || aStart>bStart || aEnd<bEnd){return false;}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The bases covered by both annotations
+	 */
+	static BlockedAnnotation intersect(Annotation first, Annotation second){
+		BlockedAnnotation rtrn=new BlockedAnnotation();
+		AbstractAnnotation a=indexed(first);
+		AbstractAnnotation b=indexed(second);
+		if(!compatible(a, b)){return rtrn;}
+		Strand consensus=Strand.consensusStrand(a.getBlockOrientation(), b.getBlockOrientation());
+		int referenceId=a.getReferenceId();
+		String referenceName=a.getReferenceName();
+		int n=a.getNumberOfBlocks();
+		int m=b.getNumberOfBlocks();
+		//Skip straight to the blocks of each that can reach the other, so trimming to a short region is a binary search
+		int i=firstBlockEndingAfter(a, b.getBlockStart(0));
+		int j=firstBlockEndingAfter(b, a.getBlockStart(0));
+		while(i<n && j<m){
+			int aEnd=a.getBlockEnd(i);
+			int bEnd=b.getBlockEnd(j);
+			int start=Math.max(a.getBlockStart(i), b.getBlockStart(j));
+			int end=Math.min(aEnd, bEnd);
+			if(start<end){rtrn.addBlock(referenceId, referenceName, start, end, consensus, "");}
+			if(aEnd<=bEnd){i++;}
+			else{j++;}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return The union of every pair of overlapping blocks; blocks that overlap nothing in the other annotation are not included
+	 */
+	static BlockedAnnotation merge(Annotation first, Annotation second){
+		BlockedAnnotation rtrn=new BlockedAnnotation();
+		AbstractAnnotation a=indexed(first);
+		AbstractAnnotation b=indexed(second);
+		if(!compatible(a, b)){return rtrn;}
+		Strand consensus=Strand.consensusStrand(a.getBlockOrientation(), b.getBlockOrientation());
+		int referenceId=a.getReferenceId();
+		String referenceName=a.getReferenceName();
+		int n=a.getNumberOfBlocks();
+		int m=b.getNumberOfBlocks();
+		int i=0;
+		int j=0;
+		while(i<n && j<m){
+			int aStart=a.getBlockStart(i);
+			int aEnd=a.getBlockEnd(i);
+			int bStart=b.getBlockStart(j);
+			int bEnd=b.getBlockEnd(j);
+			if(Math.max(aStart, bStart)<Math.min(aEnd, bEnd)){
+				rtrn.addBlock(referenceId, referenceName, Math.min(aStart, bStart), Math.max(aEnd, bEnd), consensus, "");
+			}
+			if(aEnd<=bEnd){i++;}
+			else{j++;}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Every block of either annotation in one pass over both, overlapping blocks joined
+	 */
+	static BlockedAnnotation union(Annotation first, Annotation second){
+		BlockedAnnotation rtrn=new BlockedAnnotation();
+		AbstractAnnotation a=indexed(first);
+		AbstractAnnotation b=indexed(second);
+		int n=a.getNumberOfBlocks();
+		int m=b.getNumberOfBlocks();
+		if(n>0 && m>0 && !ReferenceDictionary.sameReference(a, b)){return rtrn;}
+		Strand consensus;
+		if(n==0){consensus=b.getBlockOrientation();}
+		else if(m==0){consensus=a.getBlockOrientation();}
+		else{consensus=Strand.consensusStrand(a.getBlockOrientation(), b.getBlockOrientation());}
+		if(consensus.equals(Strand.INVALID)){return rtrn;}
+		AbstractAnnotation reference=n>0 ? a : b;
+		int referenceId=reference.getReferenceId();
+		String referenceName=reference.getReferenceName();
+		int i=0;
+		int j=0;
+		//Blocks go in by start so each one is appended to or joined with the last block
+		while(i<n || j<m){
+			if(j==m || (i<n && a.getBlockStart(i)<=b.getBlockStart(j))){
+				rtrn.addBlock(referenceId, referenceName, a.getBlockStart(i), a.getBlockEnd(i), consensus, "");
+				i++;
+			}
+			else{
+				rtrn.addBlock(referenceId, referenceName, b.getBlockStart(j), b.getBlockEnd(j), consensus, "");
+				j++;
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return The bases of first that are not covered by second, keeping the name and strand of first
+	 */
+	static BlockedAnnotation minus(Annotation first, Annotation second){
+		AbstractAnnotation a=indexed(first);
+		AbstractAnnotation b=indexed(second);
+		BlockedAnnotation rtrn=new BlockedAnnotation(first.getName());
+		int referenceId=a.getReferenceId();
+		String referenceName=a.getReferenceName();
+		Strand orientation=a.getBlockOrientation();
+		int n=a.getNumberOfBlocks();
+		int m=compatible(a, b) ? b.getNumberOfBlocks() : 0;
+		int j=0;
+		for(int i=0; i<n; i++){
+			int current=a.getBlockStart(i);
+			int aEnd=a.getBlockEnd(i);
+			while(j<m && b.getBlockEnd(j)<=current){j++;}
+			int k=j;
+			while(k<m && b.getBlockStart(k)<aEnd && current<aEnd){
+				int bStart=b.getBlockStart(k);
+				int bEnd=b.getBlockEnd(k);
+				if(bStart<bEnd){
+					if(bStart>current){rtrn.addBlock(referenceId, referenceName, current, bStart, orientation, first.getName());}
+					current=Math.max(current, bEnd);
+				}
+				k++;
+			}
+			if(current<aEnd){rtrn.addBlock(referenceId, referenceName, current, aEnd, orientation, first.getName());}
+		}
+		return rtrn;
+	}
+}
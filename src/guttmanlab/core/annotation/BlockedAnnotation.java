@@ -2,17 +2,23 @@ package guttmanlab.core.annotation;
 
 import guttmanlab.core.annotationcollection.AnnotationCollection;
 import guttmanlab.core.annotationcollection.FeatureCollection;
-import guttmanlab.core.datastructures.IntervalTree;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.util.CloseableIterator;
 
 
 
 public class BlockedAnnotation extends AbstractAnnotation {
 
-	private IntervalTree<SingleInterval> blocks;
+	private PackedBlocks blocks;
+	private boolean sharedBlocks;
 	private String referenceName;
+	private int referenceId=ReferenceDictionary.NO_REFERENCE;
 	private int startPosition;
 	private int endPosition;
 	private int size;
@@ -24,7 +30,6 @@ public class BlockedAnnotation extends AbstractAnnotation {
 	 * An empty constructor
 	 */
 	public BlockedAnnotation(){
-		this.blocks=new IntervalTree<SingleInterval>();
 		this.started=false;
 	}
 	
@@ -51,7 +56,30 @@ public class BlockedAnnotation extends AbstractAnnotation {
 	public BlockedAnnotation(Annotation annot){
 		this();
 		this.name=annot.getName();
-		addBlocks(annot);
+		if(annot instanceof BlockedAnnotation && ((BlockedAnnotation)annot).started){
+			shareBlocks((BlockedAnnotation)annot);
+		}
+		else{
+			addBlocks(annot);
+		}
+	}
+	
+	/**
+	 * Use the same block storage as another annotation
+	 * Both annotations copy the blocks before they next modify them
+	 * @param other The annotation to share blocks with
+	 */
+	private void shareBlocks(BlockedAnnotation other){
+		this.blocks=other.blocks;
+		this.sharedBlocks=true;
+		other.sharedBlocks=true;
+		this.referenceName=other.referenceName;
+		this.referenceId=other.referenceId;
+		this.startPosition=other.startPosition;
+		this.endPosition=other.endPosition;
+		this.size=other.size;
+		this.orientation=other.blocks.getOrientation();
+		this.started=true;
 	}
 	
 	/**
@@ -65,53 +93,45 @@ public class BlockedAnnotation extends AbstractAnnotation {
 		boolean added=false;
 		Iterator<SingleInterval> exons=annot.getBlocks();
 		while(exons.hasNext()){
-			added=update(exons.next());
+			SingleInterval exon=exons.next();
+			added=addBlock(exon.getReferenceId(), exon.getReferenceName(), exon.getReferenceStartPosition(), exon.getReferenceEndPosition(), exon.getOrientation(), exon.getName());
 		}
 		return added;
 	}
 
 	/**
-	 * Helper method to add single interval
-	 * @param interval The interval
+	 * Helper method to add a single block without creating an interval object
+	 * @param blockReferenceId Reference id of the block
+	 * @param blockReference Reference name of the block
+	 * @param blockStart Block start
+	 * @param blockEnd Block end
+	 * @param blockOrientation Block strand
+	 * @param blockName Block name
 	 * @return whether it was successfully added
 	 */
-	private boolean update(SingleInterval interval) {
+	boolean addBlock(int blockReferenceId, String blockReference, int blockStart, int blockEnd, Strand blockOrientation, String blockName) {
 		if(!started){
-			this.referenceName=interval.getReferenceName();
-			this.startPosition=interval.getReferenceStartPosition();
-			this.endPosition=interval.getReferenceEndPosition();
-			this.orientation=interval.getOrientation();
+			this.referenceId=blockReferenceId;
+			this.referenceName=blockReference;
+			this.startPosition=blockStart;
+			this.endPosition=blockEnd;
+			this.orientation=blockOrientation;
+			this.blocks=new PackedBlocks(referenceId, referenceName, orientation, blockName);
 			started=true;
 		}
 		else{
-			if(!this.referenceName.equalsIgnoreCase(interval.getReferenceName())){return false;}
-			if(!this.orientation.equals(interval.getOrientation())){return false;}
-			this.startPosition=Math.min(startPosition, interval.getReferenceStartPosition());
-			this.endPosition=Math.max(endPosition, interval.getReferenceEndPosition());
-		}
-		
-		boolean hasOverlappers=blocks.hasOverlappers(interval.getReferenceStartPosition(), interval.getReferenceEndPosition());
-		SingleInterval merged=interval;
-		if(hasOverlappers){
-			//pull, merge, and update
-			Iterator<SingleInterval> iter=blocks.overlappingValueIterator(interval.getReferenceStartPosition(), interval.getReferenceEndPosition());
-			while(iter.hasNext()){
-				SingleInterval e=iter.next();
-				blocks.remove(e.getReferenceStartPosition(), e.getReferenceEndPosition()); // Pam added on 12/24/14
-				merged=merge(merged, e);
-				size-=e.size();
+			if(!ReferenceDictionary.sameReference(referenceId, referenceName, blockReferenceId, blockReference)){return false;}
+			if(!this.orientation.equals(blockOrientation)){return false;}
+			this.startPosition=Math.min(startPosition, blockStart);
+			this.endPosition=Math.max(endPosition, blockEnd);
+			if(sharedBlocks){
+				this.blocks=blocks.copy();
+				this.sharedBlocks=false;
 			}
 		}
-		int end = merged.getReferenceEndPosition();
-		int start = merged.getReferenceStartPosition();
-		if(start>end) {
-			blocks.put(end,start, merged);
-		}
-		else {
-			blocks.put(start, end, merged);
-		}
-		size+=merged.size();
 		
+		blocks.add(blockStart, blockEnd);
+		this.size=blocks.size();
 		return true;
 	}
 
@@ -121,13 +141,28 @@ public class BlockedAnnotation extends AbstractAnnotation {
 	}
 
 	public Iterator<SingleInterval> getBlocks() {
-		return this.blocks.valueIterator();
+		if(blocks==null){return Collections.<SingleInterval>emptyList().iterator();}
+		return this.blocks.iterator();
+	}
+	
+	/**
+	 * @return A read-only view of the blocks in sorted order
+	 */
+	@Override
+	public Collection<Annotation> getBlockSet() {
+		if(blocks==null){return Collections.<Annotation>emptyList();}
+		return this.blocks.asList();
 	}
 
 	@Override
 	public String getReferenceName() {
 		return this.referenceName;
 	}
+	
+	@Override
+	public int getReferenceId() {
+		return this.referenceId;
+	}
 
 	@Override
 	public int getReferenceStartPosition() {
@@ -152,22 +187,47 @@ public class BlockedAnnotation extends AbstractAnnotation {
 
 	@Override
 	public int getNumberOfBlocks() {
-		return blocks.size();
+		if(blocks==null){return 0;}
+		return blocks.getNumberOfBlocks();
+	}
+	
+	@Override
+	boolean hasIndexedBlocks() {
+		return true;
+	}
+	
+	@Override
+	int getBlockStart(int index) {
+		return blocks.getStart(index);
+	}
+	
+	@Override
+	int getBlockEnd(int index) {
+		return blocks.getEnd(index);
+	}
+	
+	@Override
+	int getBlockOffset(int index) {
+		if(blocks==null){return 0;}
+		return blocks.getOffset(index);
 	}
 	
-	//TODO This could actually go in the AbstractAnnotation
+	@Override
+	Strand getBlockOrientation() {
+		if(blocks==null){return this.orientation;}
+		return blocks.getOrientation();
+	}
+	
+	/**
+	 * Binary search for the block holding the position, then add its offset within the block to the size of the blocks before it
+	 */
 	public int getRelativePositionFrom5PrimeOfFeature(int referenceStart){
 		if(referenceStart>=this.getReferenceEndPosition() || referenceStart<this.getReferenceStartPosition()){return -1;} //This start position is past the feature
-		Iterator<SingleInterval> iter=this.blocks.overlappingValueIterator(this.getReferenceStartPosition(), referenceStart);
-		int relativeSize=0;
-		while(iter.hasNext()){
-			SingleInterval interval=iter.next();
-			if(interval.getReferenceEndPosition()<referenceStart){
-				relativeSize+=interval.size(); //except when overlapping exactly the referenceStart
-			}
-			else{
-				relativeSize+=(referenceStart-interval.getReferenceStartPosition());
-			}
+		int i=blocks.firstEndingAfter(referenceStart);
+		int relativeSize=blocks.getOffset(i);
+		//A position in an intron has none of the next block before it
+		if(blocks.getStart(i)<referenceStart){
+			relativeSize+=referenceStart-blocks.getStart(i);
 		}
 		
 		//If strand is neg, then position is from end
@@ -182,9 +242,9 @@ public class BlockedAnnotation extends AbstractAnnotation {
 		int featureEnd=getRelativePositionFrom5PrimeOfFeature(region.getReferenceEndPosition());
 		BlockedAnnotation interval;
 		if(getOrientation().equals(Strand.NEGATIVE)){
-			interval=new BlockedAnnotation(new SingleInterval(getName(), featureEnd, featureStart));
+			interval=new BlockedAnnotation(SingleInterval.inFeatureSpace(getName(), featureEnd, featureStart));
 		}
-		else{interval=new BlockedAnnotation(new SingleInterval(getName(), featureStart, featureEnd));}
+		else{interval=new BlockedAnnotation(SingleInterval.inFeatureSpace(getName(), featureStart, featureEnd));}
 		return interval;
 	}
 
@@ -203,7 +263,7 @@ public class BlockedAnnotation extends AbstractAnnotation {
 		int featureEnd = featureStart + windowSize;
 		
 		while(featureEnd <= size && featureStart >= 0) {
-			Annotation windowFeatureSpace = new SingleInterval(getName(), featureStart, featureEnd);
+			Annotation windowFeatureSpace = SingleInterval.inFeatureSpace(getName(), featureStart, featureEnd);
 			Annotation windowReferenceSpace = convertToReferenceSpace(windowFeatureSpace);
 			DerivedAnnotation<BlockedAnnotation> windowDerived = new DerivedAnnotation<BlockedAnnotation>(windowReferenceSpace, this);
 			rtrn.add(windowDerived);
@@ -219,4 +279,66 @@ public class BlockedAnnotation extends AbstractAnnotation {
 		return rtrn;
 		
 	}
+	
+	/**
+	 * Stream the windows of getWindows in 5' to 3' order instead of building a collection of them
+	 * Each window is found from the previous one by moving its start across exon boundaries as it slides
+	 * @param windowSize Window size in feature space
+	 * @param stepSize Distance between window starts
+	 * @return Iterator over the windows
+	 */
+	public CloseableIterator<DerivedAnnotation<BlockedAnnotation>> getWindowIterator(int windowSize, int stepSize) {
+		if(windowSize<1 || stepSize<1){throw new IllegalArgumentException("Window and step sizes must be positive");}
+		return new SlidingWindowIterator(windowSize, stepSize);
+	}
+	
+	/**
+	 * Windows are on the same grid as getWindows, which counts from the lowest reference position on either strand,
+	 * so on the negative strand the grid is walked backwards
+	 */
+	private class SlidingWindowIterator implements CloseableIterator<DerivedAnnotation<BlockedAnnotation>> {
+		
+		private final int windowSize;
+		private final int stepSize;
+		private final boolean reverse;
+		private final int lastWindow;
+		private int window;
+		private int firstBlock;
+		
+		SlidingWindowIterator(int windowSize, int stepSize){
+			this.windowSize=windowSize;
+			this.stepSize=stepSize;
+			this.reverse=getOrientation().equals(Strand.NEGATIVE);
+			this.lastWindow=size<windowSize ? -1 : (size-windowSize)/stepSize;
+			this.window=reverse ? lastWindow : 0;
+			this.firstBlock=reverse ? Math.max(0, getNumberOfBlocks()-1) : 0;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return window>=0 && window<=lastWindow;
+		}
+		
+		@Override
+		public DerivedAnnotation<BlockedAnnotation> next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			int from=window*stepSize;
+			int to=from+windowSize;
+			//Move to the first block extending past the window start, ie the first i with getBlockOffset(i+1)>from
+			while(getBlockOffset(firstBlock+1)<=from){firstBlock++;}
+			while(firstBlock>0 && getBlockOffset(firstBlock)>from){firstBlock--;}
+			BlockedAnnotation rtrn=new BlockedAnnotation();
+			addBlocksInOffsetRange(rtrn, firstBlock, from, to);
+			window+=reverse ? -1 : 1;
+			return new DerivedAnnotation<BlockedAnnotation>(rtrn, BlockedAnnotation.this);
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {}
+	}
 }
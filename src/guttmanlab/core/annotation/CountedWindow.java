@@ -0,0 +1,102 @@
+package guttmanlab.core.annotation;
+
+import java.util.Iterator;
+
+/**
+ * A window that only counts its overlappers, in total and by strand, rather than holding them
+ * Memory does not grow with the number of overlappers, so annotations are not kept alive by the windows they fall in
+ * @author mguttman
+ *
+ */
+public class CountedWindow<T extends Annotation> extends SingleInterval implements PopulatedWindow<T>{
+
+	private int count;
+	private int positiveCount;
+	private int negativeCount;
+	private Annotation parent;
+	
+	public CountedWindow(String refName, int start, int end) {
+		this(refName, start, end, Strand.BOTH);
+	}
+	
+	public CountedWindow(String refName, int start, int end, Strand orientation){
+		this(refName, start, end, orientation, null);
+	}
+	
+	/**
+	 * @param parent The region the window was made from, or null
+	 */
+	public CountedWindow(String refName, int start, int end, Strand orientation, Annotation parent){
+		super(refName, start, end, orientation);
+		this.parent=parent;
+	}
+
+	/**
+	 * @return The region the window was made from, or null if it was made across the whole collection
+	 */
+	@Override
+	public Annotation getParentAnnotation() {
+		return parent;
+	}
+
+	/**
+	 * @return The number of overlappers so far as a score
+	 */
+	@Override
+	public Score getScore() {
+		return new CountScore(count);
+	}
+
+	@Override
+	public void addAnnotation(T annotation) {
+		count++;
+		if(annotation.getOrientation().equals(Strand.POSITIVE)){positiveCount++;}
+		else if(annotation.getOrientation().equals(Strand.NEGATIVE)){negativeCount++;}
+	}
+
+	@Override
+	public int getNumberOfAnnotationsInWindow() {
+		return count;
+	}
+	
+	/**
+	 * @param strand POSITIVE or NEGATIVE for the overlappers on that strand, anything else for all of them
+	 * @return The number of overlappers on the strand
+	 */
+	public int getNumberOfAnnotationsInWindow(Strand strand) {
+		if(strand.equals(Strand.POSITIVE)){return positiveCount;}
+		if(strand.equals(Strand.NEGATIVE)){return negativeCount;}
+		return count;
+	}
+
+	/**
+	 * Not supported; the overlappers are not kept
+	 */
+	@Override
+	public Iterator<T> getAnnotationsInWindow() {
+		throw new UnsupportedOperationException("A CountedWindow only keeps counts");
+	}
+	
+	private static class CountScore implements Score{
+		
+		private int count;
+		
+		CountScore(int count){
+			this.count=count;
+		}
+
+		@Override
+		public double getScore() {
+			return count;
+		}
+
+		/**
+		 * Not supported; whether a count is significant depends on the background, see ScanStat
+		 */
+		@Override
+		public boolean isSignificant() {
+			throw new UnsupportedOperationException("A count has no significance on its own; test it against a background with ScanStat");
+		}
+	}
+
+}
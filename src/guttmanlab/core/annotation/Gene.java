@@ -1,5 +1,8 @@
 package guttmanlab.core.annotation;
 
+import guttmanlab.core.annotation.io.BEDWriter;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -11,7 +14,7 @@ import java.util.Iterator;
  */
 public class Gene extends BlockedAnnotation{
 
-	private static final int NO_CDS=-1;
+	public static final int NO_CDS=-1;
 	private int cdsStartPos=NO_CDS;
 	private int cdsEndPos=NO_CDS;
 	
@@ -24,6 +27,28 @@ public class Gene extends BlockedAnnotation{
 	public Gene(Annotation annot) {
 		super(annot);
 	}
+	
+	/**
+	 * Build a gene directly from block coordinates, without creating an interval per block
+	 * Equivalent to passing SingleIntervals with these coordinates, strand and name to the block constructor
+	 * @param referenceName Reference name
+	 * @param blockStarts Block starts
+	 * @param blockEnds Block ends
+	 * @param numBlocks Number of blocks to use from the arrays
+	 * @param orientation Strand of the blocks
+	 * @param cdsStartPos Start of the coding region, or -1 if none
+	 * @param cdsEndPos End of the coding region, or -1 if none
+	 * @param name Gene name
+	 */
+	public Gene(String referenceName, int[] blockStarts, int[] blockEnds, int numBlocks, Strand orientation, int cdsStartPos, int cdsEndPos, String name) {
+		super(name);
+		int referenceId=ReferenceDictionary.getId(referenceName);
+		for(int i=0; i<numBlocks; i++){
+			addBlock(referenceId, referenceName, blockStarts[i], blockEnds[i], orientation, name);
+		}
+		this.cdsStartPos=cdsStartPos;
+		this.cdsEndPos=cdsEndPos;
+	}
 
 	/**
 	 * @return A BlockedAnnotation representing the coding region of the gene
@@ -102,21 +127,21 @@ public class Gene extends BlockedAnnotation{
 		
 	@Override
 	public String toBED(int r, int g, int b, double score){
-		if(r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255) {
-			throw new IllegalArgumentException("RGB values must be between 0 and 255");
-		}
-		String rgb = r + "," + g + "," + b;
-		Iterator<SingleInterval> exons = getBlocks();
-		String rtrn=getReferenceName()+"\t"+getReferenceStartPosition()+"\t"+getReferenceEndPosition()+"\t"+getName() +"\t" + score + "\t"+getOrientation()+"\t"+this.cdsStartPos+"\t"+this.cdsEndPos+"\t"+rgb+"\t"+getNumberOfBlocks();
-		String sizes="";
-		String starts="";
-		while(exons.hasNext()){
-			SingleInterval exon=exons.next();
-			sizes=sizes+(exon.size())+",";
-			starts=starts+(exon.getReferenceStartPosition()-getReferenceStartPosition())+",";
-		}
-		rtrn=rtrn+"\t"+sizes+"\t"+starts;
-		return rtrn;
+		return BEDWriter.format(this, r, g, b, score, getName(), this.cdsStartPos, this.cdsEndPos);
+	}
+	
+	/**
+	 * @return Start of the coding region, or NO_CDS
+	 */
+	public int getCDSStart(){
+		return this.cdsStartPos;
+	}
+	
+	/**
+	 * @return End of the coding region, or NO_CDS
+	 */
+	public int getCDSEnd(){
+		return this.cdsEndPos;
 	}
 	
 	//TODO wite tests
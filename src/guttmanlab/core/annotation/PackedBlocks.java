@@ -0,0 +1,212 @@
+package guttmanlab.core.annotation;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact storage for the blocks of a BlockedAnnotation
+ * Blocks are kept as sorted, non-overlapping primitive start and end arrays
+ * The reference name, strand and name are stored once in this header and shared by every block
+ * SingleInterval objects are only created when a caller asks for a block
+ * @author mguttman
+ *
+ */
+final class PackedBlocks {
+
+	private static final int INITIAL_CAPACITY=2;
+
+	private final int referenceId;
+	private final String referenceName;
+	private final Strand orientation;
+	private final String name;
+	private int[] starts;
+	private int[] ends;
+	private int numBlocks;
+	private int size;
+	/**
+	 * Cumulative block sizes, built on first use and dropped when blocks are added
+	 */
+	private volatile int[] offsets;
+
+	PackedBlocks(int referenceId, String referenceName, Strand orientation, String name){
+		this.referenceId=referenceId;
+		this.referenceName=referenceName;
+		this.orientation=orientation;
+		this.name=name;
+		this.starts=new int[INITIAL_CAPACITY];
+		this.ends=new int[INITIAL_CAPACITY];
+	}
+
+	private PackedBlocks(PackedBlocks other){
+		this.referenceId=other.referenceId;
+		this.referenceName=other.referenceName;
+		this.orientation=other.orientation;
+		this.name=other.name;
+		this.starts=Arrays.copyOf(other.starts, Math.max(INITIAL_CAPACITY, other.numBlocks));
+		this.ends=Arrays.copyOf(other.ends, Math.max(INITIAL_CAPACITY, other.numBlocks));
+		this.numBlocks=other.numBlocks;
+		this.size=other.size;
+	}
+
+	/**
+	 * @return A deep copy that can be modified without affecting this object
+	 */
+	PackedBlocks copy(){
+		return new PackedBlocks(this);
+	}
+
+	/**
+	 * Add a block, merging it with any existing blocks it overlaps
+	 * @param start Block start
+	 * @param end Block end
+	 */
+	void add(int start, int end){
+		if(start>end){
+			int tmp=start;
+			start=end;
+			end=tmp;
+		}
+		offsets=null;
+
+		//First block that ends after the new start and first block that starts at or after the new end
+		int first=firstEndingAfter(start);
+		int last=first;
+		while(last<numBlocks && starts[last]<end && start<ends[last]){last++;}
+
+		if(first==last){
+			insert(first, start, end);
+			return;
+		}
+
+		int mergedStart=Math.min(start, starts[first]);
+		int mergedEnd=Math.max(end, ends[last-1]);
+		for(int i=first; i<last; i++){
+			size-=ends[i]-starts[i];
+		}
+		starts[first]=mergedStart;
+		ends[first]=mergedEnd;
+		size+=mergedEnd-mergedStart;
+		int removed=last-first-1;
+		if(removed>0){
+			System.arraycopy(starts, last, starts, first+1, numBlocks-last);
+			System.arraycopy(ends, last, ends, first+1, numBlocks-last);
+			numBlocks-=removed;
+		}
+	}
+
+	private void insert(int index, int start, int end){
+		if(numBlocks==starts.length){
+			int capacity=starts.length*2;
+			starts=Arrays.copyOf(starts, capacity);
+			ends=Arrays.copyOf(ends, capacity);
+		}
+		System.arraycopy(starts, index, starts, index+1, numBlocks-index);
+		System.arraycopy(ends, index, ends, index+1, numBlocks-index);
+		starts[index]=start;
+		ends[index]=end;
+		numBlocks++;
+		size+=end-start;
+	}
+
+	/**
+	 * Binary search for the first block whose end is past the position
+	 * @param position Reference position
+	 * @return Index of the block or the number of blocks if none ends past the position
+	 */
+	int firstEndingAfter(int position){
+		int low=0;
+		int high=numBlocks;
+		while(low<high){
+			int mid=(low+high)>>>1;
+			if(ends[mid]<=position){low=mid+1;}
+			else{high=mid;}
+		}
+		return low;
+	}
+
+	int getReferenceId(){return referenceId;}
+
+	String getReferenceName(){return referenceName;}
+
+	Strand getOrientation(){return orientation;}
+
+	int getNumberOfBlocks(){return numBlocks;}
+
+	int size(){return size;}
+
+	int getStart(int index){return starts[index];}
+
+	int getEnd(int index){return ends[index];}
+
+	/**
+	 * @param index Block index, or the number of blocks for the total size
+	 * @return The summed size of the blocks before this one, ie its start in feature space counted from the lowest reference position
+	 */
+	int getOffset(int index){
+		int[] rtrn=offsets;
+		if(rtrn==null){
+			rtrn=new int[numBlocks+1];
+			for(int i=0; i<numBlocks; i++){
+				rtrn[i+1]=rtrn[i]+ends[i]-starts[i];
+			}
+			offsets=rtrn;
+		}
+		return rtrn[index];
+	}
+
+	/**
+	 * @param index Block index
+	 * @return A new SingleInterval representing the block
+	 */
+	SingleInterval getBlock(int index){
+		return new SingleInterval(referenceId, referenceName, starts[index], ends[index], orientation, name);
+	}
+
+	/**
+	 * @return An iterator that creates each block as it is requested
+	 */
+	Iterator<SingleInterval> iterator(){
+		return new Iterator<SingleInterval>(){
+			private int next=0;
+
+			@Override
+			public boolean hasNext() {
+				return next<numBlocks;
+			}
+
+			@Override
+			public SingleInterval next() {
+				if(next>=numBlocks){throw new NoSuchElementException();}
+				return getBlock(next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return A read-only sorted list view of the blocks
+	 */
+	List<Annotation> asList(){
+		return new AbstractList<Annotation>(){
+			@Override
+			public Annotation get(int index) {
+				if(index<0 || index>=numBlocks){throw new IndexOutOfBoundsException("Block index " + index + " out of range for " + numBlocks + " blocks");}
+				return getBlock(index);
+			}
+
+			@Override
+			public int size() {
+				return numBlocks;
+			}
+		};
+	}
+}
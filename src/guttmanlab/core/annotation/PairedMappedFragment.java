@@ -2,15 +2,19 @@ package guttmanlab.core.annotation;
 
 import guttmanlab.core.annotation.predicate.ReadFlag;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
 import guttmanlab.core.datastructures.Pair;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 
 public class PairedMappedFragment<T extends Annotation> extends AbstractAnnotation implements MappedFragment{
 
 	private Pair<T> pair;
+	/**
+	 * Blocks of both reads merged in order, built on first use so the block algebra can read them by index
+	 */
+	private BlockedAnnotation blocks;
 	
 	public PairedMappedFragment(T v1, T v2){
 		this(new Pair<T>(v1, v2));
@@ -26,7 +30,7 @@ public class PairedMappedFragment<T extends Annotation> extends AbstractAnnotati
 			throw new IllegalArgumentException("Names of two reads in the pair must be equal");
 		}
 		
-		if(!pair.getValue1().getReferenceName().equalsIgnoreCase(pair.getValue2().getReferenceName())){
+		if(!ReferenceDictionary.sameReference(pair.getValue1(), pair.getValue2())){
 			throw new IllegalArgumentException("Reference for two reads must be equal");
 		}
 		
@@ -51,6 +55,11 @@ public class PairedMappedFragment<T extends Annotation> extends AbstractAnnotati
 	public String getReferenceName() {
 		return pair.getValue1().getReferenceName();
 	}
+	
+	@Override
+	public int getReferenceId() {
+		return pair.getValue1().getReferenceId();
+	}
 
 	@Override
 	public int getReferenceStartPosition() {
@@ -64,20 +73,70 @@ public class PairedMappedFragment<T extends Annotation> extends AbstractAnnotati
 
 	@Override
 	public Iterator<SingleInterval> getBlocks() {
-		Collection<Annotation> unmergedBlocks=new ArrayList<Annotation>();
-		
-		Iterator<SingleInterval> iter1=pair.getValue1().getBlocks();
-		Iterator<SingleInterval> iter2=pair.getValue2().getBlocks();
-		
-		while(iter1.hasNext()){unmergedBlocks.add(iter1.next());}
-		while(iter2.hasNext()){unmergedBlocks.add(iter2.next());}
-		
-		return new BlockedAnnotation(unmergedBlocks, getName()).getBlocks();
+		return getMergedBlocks().getBlocks();
 	}
 
+	/**
+	 * @return The number of blocks once blocks of the two reads that overlap are joined
+	 */
 	@Override
 	public int getNumberOfBlocks() {
-		return pair.getValue1().getNumberOfBlocks()+pair.getValue2().getNumberOfBlocks();
+		return getMergedBlocks().getNumberOfBlocks();
+	}
+
+	/**
+	 * @return The blocks of both reads in one sweep over the two sorted block lists, overlapping blocks joined
+	 */
+	private BlockedAnnotation getMergedBlocks(){
+		if(this.blocks==null){
+			AbstractAnnotation read1=BlockAlgebra.indexed(pair.getValue1());
+			AbstractAnnotation read2=BlockAlgebra.indexed(pair.getValue2());
+			BlockedAnnotation rtrn=new BlockedAnnotation(getName());
+			int referenceId=getReferenceId();
+			String referenceName=getReferenceName();
+			Strand orientation=getOrientation();
+			int n=read1.getNumberOfBlocks();
+			int m=read2.getNumberOfBlocks();
+			int i=0;
+			int j=0;
+			while(i<n || j<m){
+				if(j==m || (i<n && read1.getBlockStart(i)<=read2.getBlockStart(j))){
+					rtrn.addBlock(referenceId, referenceName, read1.getBlockStart(i), read1.getBlockEnd(i), orientation, getName());
+					i++;
+				}
+				else{
+					rtrn.addBlock(referenceId, referenceName, read2.getBlockStart(j), read2.getBlockEnd(j), orientation, getName());
+					j++;
+				}
+			}
+			this.blocks=rtrn;
+		}
+		return this.blocks;
+	}
+
+	@Override
+	boolean hasIndexedBlocks() {
+		return true;
+	}
+	
+	@Override
+	int getBlockStart(int index) {
+		return getMergedBlocks().getBlockStart(index);
+	}
+	
+	@Override
+	int getBlockEnd(int index) {
+		return getMergedBlocks().getBlockEnd(index);
+	}
+	
+	@Override
+	int getBlockOffset(int index) {
+		return getMergedBlocks().getBlockOffset(index);
+	}
+	
+	@Override
+	Strand getBlockOrientation() {
+		return getOrientation();
 	}
 
 	@Override
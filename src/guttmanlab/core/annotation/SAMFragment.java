@@ -2,6 +2,7 @@ package guttmanlab.core.annotation;
 
 import guttmanlab.core.annotation.predicate.ReadFlag;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
 
 import java.util.Collection;
 import java.util.Iterator;
@@ -12,13 +13,14 @@ import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMRecord;
-import net.sf.samtools.TextCigarCodec;
 
 public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 
 	private SAMRecord record;
 	private boolean strandIsFirstOfPair; 
-	private Annotation annotation;
+	private BlockedAnnotation annotation;
+	private int referenceId=UNRESOLVED_REFERENCE;
+	private static final int UNRESOLVED_REFERENCE=-2;
 	private Collection<? extends ReadFlag> readFlags;
 	public static String SAM_NUM_HITS_TAG = "NH";
 
@@ -27,7 +29,7 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 	}
 	
 	/**
-	 * 
+	 * The record should not be modified once it is wrapped, since its blocks are decoded once and cached
 	 * @param record The SAM Record
 	 * @param strandIsFirstOfPair Whether to treat the first of pair read as the fragment strand
 	 */
@@ -37,6 +39,15 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 		this.strandIsFirstOfPair=strandIsFirstOfPair;
 	}
 	
+	/**
+	 * For reads kept in some other form, which make their SAMRecord only when getSamRecord is called
+	 * Subclasses override the accessors of the record fields, decodeBlocks and getSamRecord()
+	 * @param strandIsFirstOfPair Whether to treat the first of pair read as the fragment strand
+	 */
+	protected SAMFragment(boolean strandIsFirstOfPair){
+		this(null, strandIsFirstOfPair);
+	}
+	
 	@Override
 	public String getName() {
 		return record.getReadName();
@@ -47,17 +58,41 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 		return getAnnotation().getBlocks();
 	}
 	
-	private Annotation getAnnotation(){
-		if(this.annotation!=null){return this.annotation;}
-		else{
-			return parseCigar(record.getCigarString(), record.getReferenceName(), record.getAlignmentStart()-1, getOrientation(), getName()); 
-		}
+	@Override
+	public Collection<Annotation> getBlockSet() {
+		return getAnnotation().getBlockSet();
+	}
+	
+	/**
+	 * @return The blocks of the alignment, decoded from the binary cigar on first use
+	 */
+	private BlockedAnnotation getAnnotation(){
+		if(this.annotation==null){this.annotation=decodeBlocks();}
+		return this.annotation;
+	}
+	
+	/**
+	 * @return The aligned blocks of the read
+	 */
+	protected BlockedAnnotation decodeBlocks(){
+		BlockedAnnotation blocks=new BlockedAnnotation(getName());
+		new CigarBlocks(blocks, getReferenceId(), getReferenceName(), getReferenceStartPosition(), getOrientation(), getName()).add(record.getCigar());
+		return blocks;
 	}
 
 	@Override
 	public String getReferenceName() {
 		return record.getReferenceName();
 	}
+	
+	/**
+	 * Resolved on first use so reads that are never compared do not pay for the lookup
+	 */
+	@Override
+	public int getReferenceId() {
+		if(referenceId==UNRESOLVED_REFERENCE){referenceId=ReferenceDictionary.getId(getReferenceName());}
+		return referenceId;
+	}
 
 	/**
 	 * Returns the start position of this annotation in our coordinate space
@@ -68,10 +103,15 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 		return record.getAlignmentStart()-1;
 	}
 
+	/**
+	 * The end of the last aligned block, so introns are included
+	 */
 	@Override
 	public int getReferenceEndPosition() {
 		//return record.getAlignmentEnd();  //this method uses an incorrect cigar parser
-		return record.getAlignmentStart() + this.size()-1;
+		BlockedAnnotation blocks=getAnnotation();
+		if(blocks.getNumberOfBlocks()==0){return getReferenceStartPosition();}
+		return blocks.getReferenceEndPosition();
 	}
 	
 	/**
@@ -80,7 +120,7 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 	 */
 	@Override
 	public SAMRecord getSamRecord(SAMFileHeader header) {
-		return record;
+		return getSamRecord();
 	}
 	
 	public SAMRecord getSamRecord(){
@@ -97,35 +137,147 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
      * @return A blocked annotation
      */
 	public static Annotation parseCigar(String cigarString, String chr, int start, Strand strand, String name) {
-    	Cigar cigar = TextCigarCodec.getSingleton().decode(cigarString);
-    	List<CigarElement> elements=cigar.getCigarElements();
+		BlockedAnnotation rtrn=new BlockedAnnotation(name);
+		addCigarBlocks(rtrn, cigarString, chr, start, strand, name);
+		return rtrn;
+	}
+	
+	/**
+	 * Populate an annotation from a decoded Cigar, as returned by SAMRecord.getCigar()
+	 * @param cigar Cigar
+	 * @param chr Fragment reference sequence
+	 * @param start Fragment start
+	 * @param strand Fragment strand
+	 * @param name Name of annotation to return
+	 * @return A blocked annotation
+	 */
+	public static BlockedAnnotation parseCigar(Cigar cigar, String chr, int start, Strand strand, String name) {
+		BlockedAnnotation rtrn=new BlockedAnnotation(name);
+		new CigarBlocks(rtrn, ReferenceDictionary.getId(chr), chr, start, strand, name).add(cigar);
+		return rtrn;
+	}
+	
+	/**
+	 * Populate an annotation from a Cigar packed as in a BAM record, each operator in the low 4 bits and its length in the rest
+	 * @param packedCigar Packed cigar operators
+	 * @param chr Fragment reference sequence
+	 * @param start Fragment start
+	 * @param strand Fragment strand
+	 * @param name Name of annotation to return
+	 * @return A blocked annotation
+	 */
+	public static BlockedAnnotation parseCigar(int[] packedCigar, String chr, int start, Strand strand, String name) {
+		BlockedAnnotation rtrn=new BlockedAnnotation(name);
+		CigarBlocks blocks=new CigarBlocks(rtrn, ReferenceDictionary.getId(chr), chr, start, strand, name);
+		for(int i=0; i<packedCigar.length; i++){
+			blocks.add(CigarOperator.binaryToEnum(packedCigar[i] & 0xf), packedCigar[i]>>>4);
+		}
+		blocks.finish();
+		return rtrn;
+	}
+	
+	/**
+	 * Pack a Cigar as in a BAM record, each operator in the low 4 bits and its length in the rest
+	 * @param cigar Cigar
+	 * @return Packed cigar operators
+	 */
+	public static int[] packCigar(Cigar cigar) {
+		List<CigarElement> elements=cigar.getCigarElements();
+		int[] rtrn=new int[elements.size()];
+		for(int i=0; i<rtrn.length; i++){
+			CigarElement element=elements.get(i);
+			rtrn[i]=element.getLength()<<4 | CigarOperator.enumToBinary(element.getOperator());
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param packedCigar Cigar operators packed by packCigar
+	 * @return The Cigar
+	 */
+	public static Cigar unpackCigar(int[] packedCigar) {
+		Cigar rtrn=new Cigar();
+		for(int i=0; i<packedCigar.length; i++){
+			rtrn.add(new CigarElement(packedCigar[i]>>>4, CigarOperator.binaryToEnum(packedCigar[i] & 0xf)));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Add the aligned blocks of a Cigar string to an annotation
+	 * The string is scanned in place, without building a Cigar or any intermediate intervals
+	 * @param annotation Annotation to add blocks to
+	 * @param cigarString Cigar string
+	 * @param chr Fragment reference sequence
+	 * @param start Fragment start
+	 * @param strand Fragment strand
+	 * @param name Name of the blocks
+	 */
+	public static void addCigarBlocks(BlockedAnnotation annotation, String cigarString, String chr, int start, Strand strand, String name) {
+		CigarBlocks blocks=new CigarBlocks(annotation, ReferenceDictionary.getId(chr), chr, start, strand, name);
+		int length=0;
+		for(int i=0; i<cigarString.length(); i++){
+			char c=cigarString.charAt(i);
+			if(c>='0' && c<='9'){length=length*10+(c-'0');}
+			else if(c=='*'){return;}
+			else{
+				blocks.add(CigarOperator.characterToEnum(c), length);
+				length=0;
+			}
+		}
+		blocks.finish();
+	}
+	
+	/**
+	 * Turns cigar operators into blocks of an annotation
+	 * Operators that consume the reference and the read (M, =, X) are aligned bases; consecutive ones form a single block
+	 * Deletions and skipped regions (N) consume the reference and separate blocks
+	 * Insertions, clipping and padding do not consume the reference
+	 * @author mguttman
+	 *
+	 */
+	private static final class CigarBlocks {
 		
-    	BlockedAnnotation rtrn=new BlockedAnnotation(name);
-    	
-		int currentOffset = start;
+		private final BlockedAnnotation annotation;
+		private final int referenceId;
+		private final String chr;
+		private final Strand strand;
+		private final String name;
+		private int currentOffset;
+		private int blockStart;
 		
-		for(CigarElement element: elements){
-			CigarOperator op=element.getOperator();
-			int length=element.getLength();
-			
-			//then lets create a block from this
-			if(op.equals(CigarOperator.MATCH_OR_MISMATCH)){
-				int blockStart=currentOffset;
-				int blockEnd=blockStart+length;
-				rtrn.addBlocks(new SingleInterval(chr, blockStart, blockEnd, strand, name));
-				currentOffset=blockEnd;
-			}
-			else if(op.equals(CigarOperator.N)){
-				int blockStart=currentOffset;
-				int blockEnd=blockStart+length;
-				currentOffset=blockEnd;
+		private CigarBlocks(BlockedAnnotation annotation, int referenceId, String chr, int start, Strand strand, String name){
+			this.annotation=annotation;
+			this.referenceId=referenceId;
+			this.chr=chr;
+			this.strand=strand;
+			this.name=name;
+			this.currentOffset=start;
+			this.blockStart=start;
+		}
+		
+		private void add(Cigar cigar){
+			List<CigarElement> elements=cigar.getCigarElements();
+			for(int i=0; i<elements.size(); i++){
+				CigarElement element=elements.get(i);
+				add(element.getOperator(), element.getLength());
 			}
-			else if(op.equals(CigarOperator.INSERTION) ||  op.equals(CigarOperator.H) || op.equals(CigarOperator.DELETION)|| op.equals(CigarOperator.SKIPPED_REGION)){
-				currentOffset+=length;
+			finish();
+		}
+		
+		private void add(CigarOperator op, int length){
+			if(!op.consumesReferenceBases()){return;}
+			if(!op.consumesReadBases()){
+				finish();
+				blockStart=currentOffset+length;
 			}
+			currentOffset+=length;
 		}
 		
-		return rtrn;
+		private void finish(){
+			if(currentOffset>blockStart){annotation.addBlock(referenceId, chr, blockStart, currentOffset, strand, name);}
+			blockStart=currentOffset;
+		}
 	}
 	
 	@Override
@@ -133,9 +285,19 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 	 * Use strand info from instantiation
 	 */
 	public Strand getOrientation() {
+		return getOrientation(this.record.getReadNegativeStrandFlag(), this.isPaired() && this.record.getFirstOfPairFlag());
+	}
+	
+	/**
+	 * The fragment strand of a read of this fragment
+	 * @param negative Whether the read is on the negative strand
+	 * @param firstOfPair Whether the read is the first of its pair
+	 * @return The read strand, reversed for the read that does not give the fragment strand
+	 */
+	protected Strand getOrientation(boolean negative, boolean firstOfPair) {
 		Strand rtrn=Annotation.Strand.POSITIVE;
-		if(this.record.getReadNegativeStrandFlag()){rtrn=Annotation.Strand.NEGATIVE;}
-		if((this.isPaired() && this.strandIsFirstOfPair && !this.record.getFirstOfPairFlag()) || (this.isPaired() && !this.strandIsFirstOfPair && this.record.getFirstOfPairFlag())){rtrn=rtrn.getReverseStrand();}
+		if(negative){rtrn=Annotation.Strand.NEGATIVE;}
+		if((this.isPaired() && this.strandIsFirstOfPair && !firstOfPair) || (this.isPaired() && !this.strandIsFirstOfPair && firstOfPair)){rtrn=rtrn.getReverseStrand();}
 		return rtrn;
 	}
 	
@@ -149,6 +311,33 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 		return getAnnotation().size();
 	}
 
+	@Override
+	boolean hasIndexedBlocks() {
+		return true;
+	}
+	
+	@Override
+	int getBlockStart(int index) {
+		return getAnnotation().getBlockStart(index);
+	}
+	
+	@Override
+	int getBlockEnd(int index) {
+		return getAnnotation().getBlockEnd(index);
+	}
+	
+	@Override
+	int getBlockOffset(int index) {
+		return getAnnotation().getBlockOffset(index);
+	}
+	
+	@Override
+	Strand getBlockOrientation() {
+		BlockedAnnotation blocks=getAnnotation();
+		if(blocks.getNumberOfBlocks()==0){return getOrientation();}
+		return blocks.getBlockOrientation();
+	}
+
 	@Override
 	public int getRelativePositionFrom5PrimeOfFeature(int referenceStart) {
 		return getAnnotation().getRelativePositionFrom5PrimeOfFeature(referenceStart);
@@ -212,7 +401,7 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 	 * @return From picard documentation: returns the value of a tag or throws RuntimeException if the value is not an Integer type or will not fit in an integer
 	 */
 	public int getIntTag(String tag) {
-		return record.getIntegerAttribute(tag).intValue();
+		return getSamRecord().getIntegerAttribute(tag).intValue();
 	}
 	
 	/**
@@ -221,7 +410,7 @@ public class SAMFragment extends AbstractAnnotation implements MappedFragment{
 	 * @return The value of the tag
 	 */
 	public String getStringTag(String tag) {
-		return record.getStringAttribute(tag);
+		return getSamRecord().getStringAttribute(tag);
 	}
 
 	@Override
@@ -1,6 +1,7 @@
 package guttmanlab.core.annotation;
 
 import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -15,6 +16,7 @@ import java.util.Iterator;
 public class SingleInterval extends AbstractAnnotation implements Comparable<SingleInterval>{
 
 	private String referenceName;
+	private int referenceId;
 	private int startPos;
 	private int endPos;
 	private Strand orientation;
@@ -25,6 +27,14 @@ public class SingleInterval extends AbstractAnnotation implements Comparable<Sin
 	}
 	
 	public SingleInterval(String refName, int start, int end, Strand orientation, String featureName){
+		this(ReferenceDictionary.getId(refName), refName, start, end, orientation, featureName);
+	}
+	
+	/**
+	 * For callers that already know the reference id, skipping the dictionary lookup
+	 */
+	SingleInterval(int referenceId, String refName, int start, int end, Strand orientation, String featureName){
+		this.referenceId=referenceId;
 		this.referenceName=refName;
 		this.startPos=start;
 		this.endPos=end;
@@ -35,6 +45,17 @@ public class SingleInterval extends AbstractAnnotation implements Comparable<Sin
 	public SingleInterval(String refName, int start, int end) {
 		this(refName, start, end, Strand.UNKNOWN, "");
 	}
+	
+	/**
+	 * An interval in the feature space of a feature, whose name is not interned in the ReferenceDictionary
+	 * @param featureName Name of the feature, used as the reference name
+	 * @param start Start position in the feature
+	 * @param end End position in the feature
+	 * @return The interval
+	 */
+	static SingleInterval inFeatureSpace(String featureName, int start, int end) {
+		return new SingleInterval(ReferenceDictionary.lookupId(featureName), featureName, start, end, Strand.UNKNOWN, "");
+	}
 
 	@Override
 	public String getName() {
@@ -45,6 +66,11 @@ public class SingleInterval extends AbstractAnnotation implements Comparable<Sin
 	public String getReferenceName() {
 		return this.referenceName;
 	}
+	
+	@Override
+	public int getReferenceId() {
+		return this.referenceId;
+	}
 
 	@Override
 	public int getReferenceStartPosition() {
@@ -78,6 +104,26 @@ public class SingleInterval extends AbstractAnnotation implements Comparable<Sin
 	public int getNumberOfBlocks() {
 		return 1;
 	}
+	
+	@Override
+	boolean hasIndexedBlocks() {
+		return true;
+	}
+	
+	@Override
+	int getBlockStart(int index) {
+		return this.startPos;
+	}
+	
+	@Override
+	int getBlockEnd(int index) {
+		return this.endPos;
+	}
+	
+	@Override
+	Strand getBlockOrientation() {
+		return this.orientation;
+	}
 
 	@Override
 	//FIXME This should be merged with BlockedAnnotation
@@ -137,7 +183,8 @@ public class SingleInterval extends AbstractAnnotation implements Comparable<Sin
 	
 	@Override
 	public int compareTo(SingleInterval other) {
-		if(!getReferenceName().equalsIgnoreCase(other.getReferenceName())){return getReferenceName().compareTo(other.getReferenceName());}
+		int references=ReferenceDictionary.compare(referenceId, referenceName, other.referenceId, other.referenceName);
+		if(references!=0){return references;}
 		int starts=new Integer(getReferenceStartPosition()).compareTo(new Integer(other.getReferenceStartPosition()));
 		if(starts!=0){return starts;}
 		return new Integer(getReferenceEndPosition()).compareTo(new Integer(other.getReferenceEndPosition()));
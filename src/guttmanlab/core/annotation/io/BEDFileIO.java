@@ -9,19 +9,16 @@ import guttmanlab.core.annotationcollection.FeatureCollection;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
 import guttmanlab.core.datastructures.Pair;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import net.sf.samtools.util.CloseableIterator;
+
 /**
  * This implementation will parse an entire file and read it into memory
  * @author mguttman
@@ -29,6 +26,8 @@ import java.util.TreeMap;
  */
 public class BEDFileIO implements AnnotationFileIO<Gene> {
 
+	private static final int DEFAULT_THREADS=Runtime.getRuntime().availableProcessors();
+	
 	private CoordinateSpace referenceSpace;
 	
 	/**
@@ -45,16 +44,17 @@ public class BEDFileIO implements AnnotationFileIO<Gene> {
 	/**
 	 * Write collection of annotations to a file
 	 * @param regions The annotations to write
-	 * @param outputBed Output bed file
+	 * @param outputBed Output bed file, gzipped if the name ends in .gz
 	 * @throws IOException
 	 */
 	public static void writeToFile(AnnotationCollection<? extends Annotation> regions, String outputBed) throws IOException {
-		FileWriter w = new FileWriter(outputBed);
-		Iterator<? extends Annotation> iter = regions.sortedIterator();
-		while(iter.hasNext()) {
-			w.write(iter.next().toBED() + "\n");
+		CloseableIterator<? extends Annotation> iter = regions.sortedIterator();
+		BEDWriter w = new BEDWriter(outputBed);
+		try{w.write(iter);}
+		finally{
+			w.close();
+			iter.close();
 		}
-		w.close();
 	}
 	
 	/**
@@ -94,31 +94,42 @@ public class BEDFileIO implements AnnotationFileIO<Gene> {
 	 */
 	public static Map<String, FeatureCollection<Gene>> loadFromFileByReferenceName(String fileName, String referenceSizes) throws IOException {
 		CoordinateSpace refSpace = new CoordinateSpace(referenceSizes);
-		Map<String, FeatureCollection<Gene>> rtrn = new TreeMap<String, FeatureCollection<Gene>>();
-		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
-		String nextLine;
-		while ((nextLine = reader.readLine()) != null) {
-			Gene annotation=parse(nextLine);
+		Map<String, List<Gene>> genesByReference = new TreeMap<String, List<Gene>>();
+		for(Gene annotation: MappedBEDReader.read(fileName, DEFAULT_THREADS)) {
 			String reference = annotation.getReferenceName();
-			if(!rtrn.containsKey(reference)) {
-				rtrn.put(reference, new FeatureCollection<Gene>(refSpace));
+			if(!genesByReference.containsKey(reference)) {
+				genesByReference.put(reference, new ArrayList<Gene>());
 			}
-			rtrn.get(reference).addAnnotation(annotation);
+			genesByReference.get(reference).add(annotation);
+		}
+		Map<String, FeatureCollection<Gene>> rtrn = new TreeMap<String, FeatureCollection<Gene>>();
+		for(String reference: genesByReference.keySet()) {
+			FeatureCollection<Gene> collection = new FeatureCollection<Gene>(refSpace);
+			collection.addAll(genesByReference.get(reference));
+			rtrn.put(reference, collection);
 		}
-		reader.close();
 		return rtrn;
 	}
 	
+	/**
+	 * Parses the file on all available processors
+	 */
 	@Override
 	public AnnotationCollection<Gene> loadFromFile(String fileName) throws IOException {
+		return loadFromFile(fileName, DEFAULT_THREADS);
+	}
+	
+	/**
+	 * Memory-map the file and parse newline-aligned chunks of it in parallel
+	 * The genes and their order are the same as reading the file line by line
+	 * @param fileName Bed file name
+	 * @param numThreads Number of threads to parse with
+	 * @return The collection of genes described in the bed file
+	 * @throws IOException
+	 */
+	public AnnotationCollection<Gene> loadFromFile(String fileName, int numThreads) throws IOException {
 		FeatureCollection<Gene> collection=new FeatureCollection<Gene>(referenceSpace);
-		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
-		String nextLine;
-		while ((nextLine = reader.readLine()) != null) {
-			Gene annotation=parse(nextLine);
-			collection.addAnnotation(annotation);
-		}
-		reader.close();
+		collection.addAll(MappedBEDReader.read(fileName, numThreads));
 		return collection;
 	}
 
@@ -127,7 +138,7 @@ public class BEDFileIO implements AnnotationFileIO<Gene> {
 	 * @param rawData
 	 * @return An Annotation with all the information from the BED line
 	 */
-	private static Gene parse(String rawData) {
+	static Gene parse(String rawData) {
 		String[] tokens = rawData.split("\t");
 		String chr=(tokens[0]);
 		int start=new Integer(tokens[1]);
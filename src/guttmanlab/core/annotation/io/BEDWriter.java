@@ -0,0 +1,248 @@
+package guttmanlab.core.annotation.io;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.SingleInterval;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes annotations as BED12 lines
+ * Fields are appended straight into a reusable byte buffer, which is written to the channel when it fills up
+ * Output is gzipped if requested or if the file name ends in .gz
+ * The same formatting backs Annotation.toBED, so lines are identical to the strings it returns
+ * @author mguttman
+ *
+ */
+public class BEDWriter implements Closeable {
+
+	private static final int BUFFER_SIZE=1<<16;
+	private static final Charset UTF8=Charset.forName("UTF-8");
+	private static final byte[] ZERO_SCORE="0.0".getBytes(UTF8);
+
+	/**
+	 * Per-thread formatter used to build single lines for toBED
+	 */
+	private static final ThreadLocal<BEDWriter> FORMATTER=new ThreadLocal<BEDWriter>(){
+		@Override
+		protected BEDWriter initialValue() {
+			return new BEDWriter();
+		}
+	};
+
+	private final WritableByteChannel channel;
+	private byte[] buffer;
+	private int position;
+	private int[] blockStarts=new int[16];
+
+	/**
+	 * @param fileName Output file; gzipped if the name ends in .gz
+	 * @throws IOException
+	 */
+	public BEDWriter(String fileName) throws IOException {
+		this(fileName, fileName.endsWith(".gz"));
+	}
+
+	/**
+	 * @param fileName Output file
+	 * @param gzip Whether to gzip the output
+	 * @throws IOException
+	 */
+	public BEDWriter(String fileName, boolean gzip) throws IOException {
+		this(gzip ? Channels.newChannel(new GZIPOutputStream(new FileOutputStream(fileName), BUFFER_SIZE)) : new FileOutputStream(fileName).getChannel());
+	}
+
+	/**
+	 * @param channel Channel to write to; closed when this writer is closed
+	 */
+	public BEDWriter(WritableByteChannel channel){
+		this.channel=channel;
+		this.buffer=new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * A writer with no channel, only used to format lines
+	 */
+	private BEDWriter(){
+		this.channel=null;
+		this.buffer=new byte[1024];
+	}
+
+	/**
+	 * Write an annotation as Annotation.toBED() would
+	 * Genes keep their coding region as the thick start and end
+	 * @param annotation The annotation to write
+	 * @throws IOException
+	 */
+	public void write(Annotation annotation) throws IOException {
+		if(annotation instanceof Gene){
+			Gene gene=(Gene)annotation;
+			write(gene, 0, 0, 0, 0.0, gene.getName(), gene.getCDSStart(), gene.getCDSEnd());
+		}
+		else{
+			String name=annotation.getName()==null ? annotation.toUCSC() : annotation.getName();
+			write(annotation, 0, 0, 0, 0.0, name, annotation.getReferenceEndPosition(), annotation.getReferenceEndPosition());
+		}
+	}
+
+	/**
+	 * Write an annotation
+	 * @param annotation The annotation to write
+	 * @param r Red value (0-255)
+	 * @param g Green value (0-255)
+	 * @param b Blue value (0-255)
+	 * @param score Score column
+	 * @param name Name column
+	 * @param thickStart Thick start column
+	 * @param thickEnd Thick end column
+	 * @throws IOException
+	 */
+	public void write(Annotation annotation, int r, int g, int b, double score, String name, int thickStart, int thickEnd) throws IOException {
+		appendLine(annotation, r, g, b, score, name, thickStart, thickEnd);
+		append('\n');
+		if(position>=BUFFER_SIZE){flush();}
+	}
+
+	/**
+	 * Write every annotation of an iterator
+	 * @param annotations Annotations to write
+	 * @throws IOException
+	 */
+	public void write(Iterator<? extends Annotation> annotations) throws IOException {
+		while(annotations.hasNext()){
+			write(annotations.next());
+		}
+	}
+
+	/**
+	 * Format an annotation as a BED line without a trailing newline
+	 * @param annotation The annotation
+	 * @param r Red value (0-255)
+	 * @param g Green value (0-255)
+	 * @param b Blue value (0-255)
+	 * @param score Score column
+	 * @param name Name column
+	 * @param thickStart Thick start column
+	 * @param thickEnd Thick end column
+	 * @return The BED line
+	 */
+	public static String format(Annotation annotation, int r, int g, int b, double score, String name, int thickStart, int thickEnd){
+		BEDWriter formatter=FORMATTER.get();
+		formatter.position=0;
+		formatter.appendLine(annotation, r, g, b, score, name, thickStart, thickEnd);
+		return new String(formatter.buffer, 0, formatter.position, UTF8);
+	}
+
+	private void appendLine(Annotation annotation, int r, int g, int b, double score, String name, int thickStart, int thickEnd){
+		if(r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255) {
+			throw new IllegalArgumentException("RGB values must be between 0 and 255");
+		}
+		int start=annotation.getReferenceStartPosition();
+		int end=annotation.getReferenceEndPosition();
+		append(annotation.getReferenceName()).append('\t').append(start).append('\t').append(end).append('\t');
+		append(name).append('\t').append(score).append('\t').append(String.valueOf(annotation.getOrientation())).append('\t');
+		append(thickStart).append('\t').append(thickEnd).append('\t');
+		append(r).append(',').append(g).append(',').append(b).append('\t');
+		append(annotation.getNumberOfBlocks()).append('\t');
+		//Sizes are appended as the blocks are read, starts are held until the sizes column is done
+		int numBlocks=0;
+		Iterator<SingleInterval> blocks=annotation.getBlocks();
+		while(blocks.hasNext()){
+			SingleInterval block=blocks.next();
+			if(numBlocks==blockStarts.length){blockStarts=Arrays.copyOf(blockStarts, numBlocks*2);}
+			blockStarts[numBlocks++]=block.getReferenceStartPosition()-start;
+			append(block.size()).append(',');
+		}
+		append('\t');
+		for(int i=0; i<numBlocks; i++){
+			append(blockStarts[i]).append(',');
+		}
+	}
+
+	private void ensureCapacity(int extra){
+		if(position+extra>buffer.length){
+			buffer=Arrays.copyOf(buffer, Math.max(buffer.length*2, position+extra));
+		}
+	}
+
+	private BEDWriter append(char c){
+		ensureCapacity(1);
+		buffer[position++]=(byte)c;
+		return this;
+	}
+
+	private BEDWriter append(String s){
+		if(s==null){return append("null");}
+		int length=s.length();
+		ensureCapacity(length);
+		for(int i=0; i<length; i++){
+			char c=s.charAt(i);
+			if(c>=0x80){
+				//Rare non-ASCII text; fall back to the encoder for the whole string
+				byte[] bytes=s.getBytes(UTF8);
+				ensureCapacity(bytes.length);
+				System.arraycopy(bytes, 0, buffer, position, bytes.length);
+				position+=bytes.length;
+				return this;
+			}
+		}
+		for(int i=0; i<length; i++){
+			buffer[position++]=(byte)s.charAt(i);
+		}
+		return this;
+	}
+
+	private BEDWriter append(int value){
+		ensureCapacity(11);
+		long v=value;
+		if(v<0){
+			buffer[position++]='-';
+			v=-v;
+		}
+		int digits=1;
+		for(long p=10; p<=v; p*=10){digits++;}
+		for(int i=position+digits-1; i>=position; i--){
+			buffer[i]=(byte)('0'+(v%10));
+			v/=10;
+		}
+		position+=digits;
+		return this;
+	}
+
+	private BEDWriter append(double value){
+		if(Double.doubleToRawLongBits(value)==0L){
+			ensureCapacity(ZERO_SCORE.length);
+			System.arraycopy(ZERO_SCORE, 0, buffer, position, ZERO_SCORE.length);
+			position+=ZERO_SCORE.length;
+			return this;
+		}
+		return append(Double.toString(value));
+	}
+
+	/**
+	 * Write buffered lines to the channel
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		ByteBuffer out=ByteBuffer.wrap(buffer, 0, position);
+		while(out.hasRemaining()){
+			channel.write(out);
+		}
+		position=0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try{flush();}
+		finally{channel.close();}
+	}
+}
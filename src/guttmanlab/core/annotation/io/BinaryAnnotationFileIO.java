@@ -0,0 +1,263 @@
+package guttmanlab.core.annotation.io;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.annotationcollection.MappedFeatureCollection;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Reads and writes the binary annotation format opened by MappedFeatureCollection
+ * Converting a BED file once lets later jobs open it without parsing it or loading it onto the heap
+ * @author mguttman
+ *
+ */
+public class BinaryAnnotationFileIO implements AnnotationFileIO<Gene> {
+
+	private static final Charset UTF8=Charset.forName("UTF-8");
+
+	/**
+	 * Open a binary annotation file
+	 */
+	@Override
+	public MappedFeatureCollection loadFromFile(String fileName) throws IOException {
+		return new MappedFeatureCollection(fileName);
+	}
+
+	/**
+	 * Convert a BED file to the binary format
+	 * @param bedFile BED file, parsed with BEDFileIO
+	 * @param referenceSizes Table of reference names and sizes
+	 * @param outputFile The binary file to write
+	 * @throws IOException
+	 */
+	public static void convertFromBED(String bedFile, String referenceSizes, String outputFile) throws IOException {
+		convertFromBED(bedFile, new CoordinateSpace(referenceSizes), outputFile);
+	}
+
+	/**
+	 * Convert a BED file to the binary format
+	 * @param bedFile BED file, parsed with BEDFileIO
+	 * @param referenceSpace The reference coordinate information containing names and sizes
+	 * @param outputFile The binary file to write
+	 * @throws IOException
+	 */
+	public static void convertFromBED(String bedFile, CoordinateSpace referenceSpace, String outputFile) throws IOException {
+		writeToFile(BEDFileIO.loadFromFile(bedFile, referenceSpace), outputFile);
+	}
+
+	/**
+	 * Write a collection of annotations (using filters) to a binary file
+	 * @param regions The annotations to write
+	 * @param outputFile The binary file to write
+	 * @throws IOException
+	 */
+	public static void writeToFile(AnnotationCollection<? extends Annotation> regions, String outputFile) throws IOException {
+		CloseableIterator<? extends Annotation> iter=regions.sortedIterator();
+		try{writeToFile(iter, regions.getReferenceCoordinateSpace(), outputFile);}
+		finally{iter.close();}
+	}
+
+	/**
+	 * Write annotations to a binary file
+	 * @param annotations The annotations, grouped by reference and sorted by start within each reference
+	 * @param referenceSpace The reference coordinate information containing names and sizes
+	 * @param outputFile The binary file to write
+	 * @throws IOException
+	 */
+	public static void writeToFile(Iterator<? extends Annotation> annotations, CoordinateSpace referenceSpace, String outputFile) throws IOException {
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1<<16));
+		try{
+			out.writeInt(MappedFeatureCollection.MAGIC);
+			out.writeInt(MappedFeatureCollection.VERSION);
+			long position=8;
+
+			//Directory entries are collected as sections are written and go after the last section
+			ByteArrayOutputStream directoryBytes=new ByteArrayOutputStream();
+			DataOutputStream directory=new DataOutputStream(directoryBytes);
+			int numReferences=0;
+			Set<String> written=new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+			Section section=null;
+			while(annotations.hasNext()){
+				Annotation annotation=annotations.next();
+				if(section==null || !section.reference.equalsIgnoreCase(annotation.getReferenceName())){
+					if(section!=null){
+						position=section.write(out, position, directory);
+						numReferences++;
+					}
+					if(!written.add(annotation.getReferenceName())){
+						throw new IllegalArgumentException("Annotations must be grouped by reference; "+annotation.getReferenceName()+" appears twice");
+					}
+					section=new Section(annotation.getReferenceName());
+				}
+				section.add(annotation);
+			}
+			if(section!=null){
+				position=section.write(out, position, directory);
+				numReferences++;
+			}
+
+			long directoryOffset=position;
+			Map<String, Integer> sizes=referenceSpace.getRefSeqLengths();
+			out.writeInt(sizes.size());
+			for(String name : sizes.keySet()){
+				writeString(out, name);
+				out.writeInt(sizes.get(name));
+			}
+			out.writeInt(numReferences);
+			directory.flush();
+			directoryBytes.writeTo(out);
+			out.writeLong(directoryOffset);
+			out.writeInt(MappedFeatureCollection.MAGIC);
+		}
+		finally{out.close();}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes=s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Encodes the records and index of one reference
+	 */
+	private static class Section {
+
+		final String reference;
+		private byte[] records=new byte[1<<16];
+		private int length;
+		private int count;
+		private int previousStart;
+		private int maxEnd=Integer.MIN_VALUE;
+		private int[] index=new int[3*16];
+		private int numIndexEntries;
+
+		Section(String reference){
+			this.reference=reference;
+		}
+
+		void add(Annotation annotation){
+			int start=annotation.getReferenceStartPosition();
+			int end=annotation.getReferenceEndPosition();
+			if(count>0 && start<previousStart){
+				throw new IllegalArgumentException("Annotations on "+reference+" are not sorted by start at "+annotation.toUCSC());
+			}
+			if(count%MappedFeatureCollection.INDEX_INTERVAL==0){
+				if(3*numIndexEntries+3>index.length){index=Arrays.copyOf(index, index.length*2);}
+				index[3*numIndexEntries]=length;
+				index[3*numIndexEntries+1]=start;
+				numIndexEntries++;
+				previousStart=start;
+			}
+			maxEnd=Math.max(maxEnd, end);
+			index[3*numIndexEntries-1]=maxEnd;
+
+			writeVarint(start-previousStart);
+			writeVarint(end-start);
+			previousStart=start;
+
+			int flags=0;
+			int cdsStart=Gene.NO_CDS;
+			int cdsEnd=Gene.NO_CDS;
+			if(annotation instanceof Gene){
+				cdsStart=((Gene)annotation).getCDSStart();
+				cdsEnd=((Gene)annotation).getCDSEnd();
+				if(cdsStart!=Gene.NO_CDS || cdsEnd!=Gene.NO_CDS){flags|=MappedFeatureCollection.HAS_CDS;}
+			}
+			byte[] name=null;
+			if(annotation.getName()!=null){
+				name=annotation.getName().getBytes(UTF8);
+				flags|=MappedFeatureCollection.HAS_NAME;
+			}
+			ensureCapacity(2);
+			records[length++]=(byte)annotation.getOrientation().toString().charAt(0);
+			records[length++]=(byte)flags;
+			if((flags & MappedFeatureCollection.HAS_CDS)!=0){
+				writeVarint(zigzag(cdsStart-start));
+				writeVarint(zigzag(cdsEnd-start));
+			}
+			if(name!=null){
+				writeVarint(name.length);
+				ensureCapacity(name.length);
+				System.arraycopy(name, 0, records, length, name.length);
+				length+=name.length;
+			}
+
+			writeVarint(annotation.getNumberOfBlocks());
+			int position=start;
+			Iterator<SingleInterval> blocks=annotation.getBlocks();
+			while(blocks.hasNext()){
+				SingleInterval block=blocks.next();
+				writeVarint(block.getReferenceStartPosition()-position);
+				writeVarint(block.size());
+				position=block.getReferenceEndPosition();
+			}
+			count++;
+		}
+
+		private static int zigzag(int value){
+			return (value<<1)^(value>>31);
+		}
+
+		private void writeVarint(int value){
+			ensureCapacity(5);
+			while((value & ~0x7F)!=0){
+				records[length++]=(byte)((value & 0x7F) | 0x80);
+				value>>>=7;
+			}
+			records[length++]=(byte)value;
+		}
+
+		private void ensureCapacity(int extra){
+			if(length+extra>records.length){
+				if(length+extra<0){throw new IllegalArgumentException("Too many annotations on "+reference+" for one binary section");}
+				records=Arrays.copyOf(records, Math.max(length+extra, (int)Math.min(Integer.MAX_VALUE-8, 2L*records.length)));
+			}
+		}
+
+		/**
+		 * Write the records and index, and add this reference to the directory
+		 * @return The file position after this section
+		 */
+		long write(DataOutputStream out, long position, DataOutputStream directory) throws IOException {
+			out.write(records, 0, length);
+			for(int i=0; i<3*numIndexEntries; i++){
+				out.writeInt(index[i]);
+			}
+			writeString(directory, reference);
+			directory.writeInt(count);
+			directory.writeLong(position);
+			directory.writeInt(length);
+			directory.writeInt(numIndexEntries);
+			return position+length+12L*numIndexEntries;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-b", "Input BED file", true);
+		p.addStringArg("-s", "Table of reference names and sizes", true);
+		p.addStringArg("-o", "Output binary annotation file", true);
+		p.parse(args);
+		convertFromBED(p.getStringArg("-b"), p.getStringArg("-s"), p.getStringArg("-o"));
+	}
+
+}
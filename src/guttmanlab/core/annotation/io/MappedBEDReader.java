@@ -0,0 +1,399 @@
+package guttmanlab.core.annotation.io;
+
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses a BED file from memory-mapped, newline-aligned chunks on several threads
+ * Lines are parsed straight from bytes; any line that is not plain ASCII BED (quotes, spaces, signs, exponents in coordinates...)
+ * is decoded and handed to BEDFileIO.parse, so the genes are exactly those the line-by-line parser returns, in file order
+ * @author mguttman
+ *
+ */
+final class MappedBEDReader {
+
+	private static final int MIN_CHUNK_SIZE=1<<20;
+	private static final int MAX_CHUNK_SIZE=1<<30;
+	private static final int CHUNKS_PER_THREAD=4;
+	private static final int MAX_DIGITS=9;
+	private static final Charset ASCII=Charset.forName("US-ASCII");
+
+	private MappedBEDReader(){}
+
+	/**
+	 * @param fileName BED file
+	 * @param numThreads Number of threads to parse with
+	 * @return The genes of the file in file order
+	 * @throws IOException
+	 */
+	static List<Gene> read(String fileName, int numThreads) throws IOException {
+		RandomAccessFile file=new RandomAccessFile(fileName, "r");
+		try{
+			FileChannel channel=file.getChannel();
+			long[] bounds=chunkBounds(channel, numThreads);
+			int numChunks=bounds.length-1;
+			if(numChunks<=1 || numThreads<=1){
+				List<Gene> rtrn=new ArrayList<Gene>();
+				for(int i=0; i<numChunks; i++){
+					rtrn.addAll(new ChunkParser(channel, bounds[i], bounds[i+1]).call());
+				}
+				return rtrn;
+			}
+			return parseInParallel(channel, bounds, numThreads);
+		}
+		finally{file.close();}
+	}
+
+	private static List<Gene> parseInParallel(FileChannel channel, long[] bounds, int numThreads) throws IOException {
+		ExecutorService executor=Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<List<Gene>>> chunks=new ArrayList<Future<List<Gene>>>();
+			for(int i=0; i<bounds.length-1; i++){
+				chunks.add(executor.submit(new ChunkParser(channel, bounds[i], bounds[i+1])));
+			}
+			List<Gene> rtrn=new ArrayList<Gene>();
+			for(Future<List<Gene>> chunk: chunks){
+				rtrn.addAll(chunk.get());
+			}
+			return rtrn;
+		}
+		catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing BED file", ex);
+		}
+		catch(ExecutionException ex){
+			Throwable cause=ex.getCause();
+			if(cause instanceof IOException){throw (IOException)cause;}
+			if(cause instanceof RuntimeException){throw (RuntimeException)cause;}
+			if(cause instanceof Error){throw (Error)cause;}
+			throw new IOException(cause);
+		}
+		finally{executor.shutdownNow();}
+	}
+
+	/**
+	 * Split the file into chunks that each end just after a newline (or at the end of the file)
+	 * @return Chunk boundaries, starting at 0 and ending at the file size
+	 */
+	private static long[] chunkBounds(FileChannel channel, int numThreads) throws IOException {
+		long size=channel.size();
+		long target=Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size/Math.max(1, numThreads*CHUNKS_PER_THREAD)));
+		List<Long> bounds=new ArrayList<Long>();
+		bounds.add(0L);
+		long position=0;
+		ByteBuffer scan=ByteBuffer.allocate(1<<16);
+		while(position<size){
+			long next=position+target;
+			if(next>=size){next=size;}
+			else{next=afterNextNewline(channel, next, scan, size);}
+			//A single line longer than the chunk limit cannot be mapped
+			if(next-position>Integer.MAX_VALUE){throw new IOException("BED line too long to map at byte "+position);}
+			bounds.add(next);
+			position=next;
+		}
+		long[] rtrn=new long[bounds.size()];
+		for(int i=0; i<rtrn.length; i++){rtrn[i]=bounds.get(i);}
+		return rtrn;
+	}
+
+	private static long afterNextNewline(FileChannel channel, long from, ByteBuffer scan, long size) throws IOException {
+		long position=from;
+		while(position<size){
+			scan.clear();
+			int read=channel.read(scan, position);
+			if(read<=0){break;}
+			for(int i=0; i<read; i++){
+				if(scan.get(i)=='\n'){return position+i+1;}
+			}
+			position+=read;
+		}
+		return size;
+	}
+
+	/**
+	 * Parses the lines of one chunk
+	 */
+	private static final class ChunkParser implements Callable<List<Gene>> {
+
+		private final FileChannel channel;
+		private final long from;
+		private final long to;
+		private byte[] line=new byte[256];
+		private int length;
+		private int[] tokenStarts=new int[16];
+		private int[] tokenEnds=new int[16];
+		private int numTokens;
+		private int[] blockStarts=new int[16];
+		private int[] blockEnds=new int[16];
+		private int[] listStarts=new int[16];
+		private int[] listEnds=new int[16];
+		private int listSize;
+		private byte[] lastReference=new byte[0];
+		private String lastReferenceName;
+		private boolean valid;
+
+		private ChunkParser(FileChannel channel, long from, long to){
+			this.channel=channel;
+			this.from=from;
+			this.to=to;
+		}
+
+		@Override
+		public List<Gene> call() throws IOException {
+			List<Gene> rtrn=new ArrayList<Gene>();
+			if(to<=from){return rtrn;}
+			MappedByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY, from, to-from);
+			int size=buffer.limit();
+			int lineStart=0;
+			while(lineStart<size){
+				int lineEnd=lineStart;
+				while(lineEnd<size && buffer.get(lineEnd)!='\n'){lineEnd++;}
+				load(buffer, lineStart, lineEnd);
+				parseLine(rtrn);
+				lineStart=lineEnd+1;
+			}
+			return rtrn;
+		}
+
+		private void load(MappedByteBuffer buffer, int start, int end){
+			length=end-start;
+			if(line.length<length){line=new byte[Math.max(length, line.length*2)];}
+			ByteBuffer view=buffer.duplicate();
+			view.position(start);
+			view.get(line, 0, length);
+		}
+
+		private void parseLine(List<Gene> rtrn){
+			//A final carriage return belongs to the line terminator
+			if(length>0 && line[length-1]=='\r'){length--;}
+			Gene gene=length==0 ? null : parseFast();
+			if(gene!=null){
+				rtrn.add(gene);
+				return;
+			}
+			for(String piece: splitAsReader()){
+				rtrn.add(BEDFileIO.parse(piece));
+			}
+		}
+
+		/**
+		 * Decode the line as the line reader would, including any lone carriage returns it would split on
+		 */
+		private List<String> splitAsReader(){
+			List<String> rtrn=new ArrayList<String>();
+			String raw=new String(line, 0, length, Charset.defaultCharset());
+			if(raw.indexOf('\r')<0){
+				rtrn.add(raw);
+				return rtrn;
+			}
+			try{
+				BufferedReader reader=new BufferedReader(new StringReader(raw));
+				String next;
+				while((next=reader.readLine())!=null){rtrn.add(next);}
+				//A carriage return at the very end leaves no empty line for the reader, but the newline after it would
+				if(raw.endsWith("\r")){rtrn.add("");}
+			}catch(IOException ex){throw new IllegalStateException(ex);}
+			return rtrn;
+		}
+
+		/**
+		 * @return The gene, or null if the line needs the general parser
+		 */
+		private Gene parseFast(){
+			for(int i=0; i<length; i++){
+				byte b=line[i];
+				if(b<0 || b=='\r'){return null;}
+			}
+			tokenize();
+			if(numTokens<3){return null;}
+
+			valid=true;
+			String chr=referenceName();
+			int start=parseToken(1);
+			int end=parseToken(2);
+			if(!valid){return null;}
+
+			if(numTokens==3){
+				blockStarts[0]=start;
+				blockEnds[0]=end;
+				return new Gene(chr, blockStarts, blockEnds, 1, Strand.UNKNOWN, -1, -1, chr+":"+start+"-"+end);
+			}
+			String name=token(3);
+			Strand orientation=Strand.UNKNOWN;
+			if(numTokens>4 && !isDecimal(4)){return null;}
+			if(numTokens>5){orientation=strand(5);}
+			if(numTokens<=11){
+				blockStarts[0]=start;
+				blockEnds[0]=end;
+				return new Gene(chr, blockStarts, blockEnds, 1, orientation, -1, -1, name);
+			}
+
+			int cdsStart=parseToken(6);
+			int cdsEnd=parseToken(7);
+			int blockCount=parseToken(9);
+			if(!valid || blockCount<=0){return null;}
+			ensureBlocks(blockCount);
+
+			split(10);
+			if(listSize!=blockCount){return null;}
+			for(int i=0; i<blockCount; i++){blockEnds[i]=parseRange(listStarts[i], listEnds[i]);}
+			split(11);
+			if(listSize<blockCount){return null;}
+			for(int i=0; i<blockCount; i++){
+				blockStarts[i]=start+parseRange(listStarts[i], listEnds[i]);
+				blockEnds[i]=blockStarts[i]+blockEnds[i];
+			}
+			if(!valid){return null;}
+			return new Gene(chr, blockStarts, blockEnds, blockCount, orientation, cdsStart, cdsEnd, name);
+		}
+
+		/**
+		 * Tab-separated tokens with trailing empty tokens removed, as String.split does
+		 */
+		private void tokenize(){
+			numTokens=0;
+			int tokenStart=0;
+			for(int i=0; i<=length; i++){
+				if(i==length || line[i]=='\t'){
+					if(numTokens==tokenStarts.length){
+						tokenStarts=Arrays.copyOf(tokenStarts, numTokens*2);
+						tokenEnds=Arrays.copyOf(tokenEnds, numTokens*2);
+					}
+					tokenStarts[numTokens]=tokenStart;
+					tokenEnds[numTokens]=i;
+					numTokens++;
+					tokenStart=i+1;
+				}
+			}
+			while(numTokens>0 && tokenStarts[numTokens-1]==tokenEnds[numTokens-1]){numTokens--;}
+		}
+
+		/**
+		 * Comma-separated list in a token with trailing empty entries removed, as String.split does
+		 */
+		private void split(int token){
+			listSize=0;
+			int entryStart=tokenStarts[token];
+			int end=tokenEnds[token];
+			for(int i=entryStart; i<=end; i++){
+				if(i==end || line[i]==','){
+					if(listSize==listStarts.length){
+						listStarts=Arrays.copyOf(listStarts, listSize*2);
+						listEnds=Arrays.copyOf(listEnds, listSize*2);
+					}
+					listStarts[listSize]=entryStart;
+					listEnds[listSize]=i;
+					listSize++;
+					entryStart=i+1;
+				}
+			}
+			while(listSize>0 && listStarts[listSize-1]==listEnds[listSize-1]){listSize--;}
+		}
+
+		private void ensureBlocks(int count){
+			if(blockStarts.length<count){
+				blockStarts=new int[count];
+				blockEnds=new int[count];
+			}
+		}
+
+		private String referenceName(){
+			int start=tokenStarts[0];
+			int tokenLength=tokenEnds[0]-start;
+			boolean same=tokenLength==lastReference.length;
+			for(int i=0; same && i<tokenLength; i++){
+				same=line[start+i]==lastReference[i];
+			}
+			if(!same){
+				lastReference=Arrays.copyOfRange(line, start, start+tokenLength);
+				lastReferenceName=new String(lastReference, ASCII);
+			}
+			return lastReferenceName;
+		}
+
+		private String token(int token){
+			return new String(line, tokenStarts[token], tokenEnds[token]-tokenStarts[token], ASCII);
+		}
+
+		private Strand strand(int token){
+			int start=tokenStarts[token];
+			if(tokenEnds[token]-start!=1){return Strand.UNKNOWN;}
+			byte b=line[start];
+			if(b=='+'){return Strand.POSITIVE;}
+			if(b=='-'){return Strand.NEGATIVE;}
+			if(b=='*'){return Strand.BOTH;}
+			return Strand.UNKNOWN;
+		}
+
+		private int parseToken(int token){
+			if(token>=numTokens){
+				valid=false;
+				return 0;
+			}
+			return parseRange(tokenStarts[token], tokenEnds[token]);
+		}
+
+		/**
+		 * Optional minus sign and up to nine digits; anything else marks the line for the general parser
+		 */
+		private int parseRange(int start, int end){
+			boolean negative=start<end && line[start]=='-';
+			if(negative){start++;}
+			if(start==end || end-start>MAX_DIGITS){
+				valid=false;
+				return 0;
+			}
+			int value=0;
+			for(int i=start; i<end; i++){
+				int digit=line[i]-'0';
+				if(digit<0 || digit>9){
+					valid=false;
+					return 0;
+				}
+				value=value*10+digit;
+			}
+			return negative ? -value : value;
+		}
+
+		/**
+		 * @return Whether the token is a plain decimal number, which Double.valueOf always accepts
+		 */
+		private boolean isDecimal(int token){
+			int i=tokenStarts[token];
+			int end=tokenEnds[token];
+			if(i<end && (line[i]=='-' || line[i]=='+')){i++;}
+			int digits=0;
+			while(i<end && line[i]>='0' && line[i]<='9'){i++; digits++;}
+			if(i<end && line[i]=='.'){
+				i++;
+				while(i<end && line[i]>='0' && line[i]<='9'){i++; digits++;}
+			}
+			if(digits==0){return false;}
+			if(i<end && (line[i]=='e' || line[i]=='E')){
+				i++;
+				if(i<end && (line[i]=='-' || line[i]=='+')){i++;}
+				int exponentDigits=0;
+				while(i<end && line[i]>='0' && line[i]<='9'){i++; exponentDigits++;}
+				if(exponentDigits==0){return false;}
+			}
+			return i==end;
+		}
+	}
+}
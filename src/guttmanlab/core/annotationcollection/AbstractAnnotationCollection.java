@@ -1,46 +1,80 @@
 package guttmanlab.core.annotationcollection;
 
 import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
 import guttmanlab.core.annotation.ContiguousWindow;
+import guttmanlab.core.annotation.CountedWindow;
 import guttmanlab.core.annotation.DerivedAnnotation;
 import guttmanlab.core.annotation.PairedMappedFragment;
 import guttmanlab.core.annotation.PopulatedWindow;
 import guttmanlab.core.annotation.SAMFragment;
 import guttmanlab.core.annotation.SingleInterval;
 import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.io.BEDWriter;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
-import guttmanlab.core.datastructures.IntervalTree;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
 import guttmanlab.core.math.ScanStat;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.commons.collections15.Predicate;
 
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
 import net.sf.samtools.util.CloseableIterator;
 
 public abstract class AbstractAnnotationCollection<T extends Annotation> implements AnnotationCollection<T>{
 
 	private Collection<Predicate<T>> filters;
-	private int numAnnotations;
+	/**
+	 * Counts already computed, keyed by the filters that were in place; the count does not depend on the number of threads it was made with
+	 */
+	private Map<List<Predicate<T>>, Integer> counts;
+	/**
+	 * Only references longer than this are split, so most shards are whole references and few reads span two shards;
+	 * memory is bounded by the number of shards in flight, not by their length
+	 */
+	private static final int SHARD_LENGTH=1<<26;
+	/**
+	 * The last shard from getShards, holding the annotations that are on no reference of the coordinate space, such as reads without a position
+	 */
+	protected static final Annotation UNPLACED_SHARD=new SingleInterval(null, 0, 0, Strand.BOTH);
 
 	public AbstractAnnotationCollection(){
-		filters=new ArrayList<Predicate<T>>();
+		//Copied on write so filters can be added while other threads start iterators
+		filters=new CopyOnWriteArrayList<Predicate<T>>();
+		counts=new ConcurrentHashMap<List<Predicate<T>>, Integer>();
 	}
 
 	@Override
 	public void addFilter(Predicate<T> filter) {
 		filters.add(filter);
-		numAnnotations = 0;
 	}
 	
 	public void addFilter(Collection<Predicate<PairedMappedFragment<SAMFragment>>> filters) {
@@ -54,16 +88,121 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 		return filters;
 	}
 
+	/**
+	 * Merge overlapping annotations in one pass over the sorted iterator
+	 * @return A new collection of the merged annotations, cast to this collection's type as in FeatureCollection
+	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public AnnotationCollection<T> merge() {
-		// FIXME Auto-generated method stub
-		throw new UnsupportedOperationException("TODO");
+		return (AnnotationCollection<T>)(AnnotationCollection<?>)merge(1);
+	}
+
+	/**
+	 * Merge overlapping annotations, each reference sequence on its own thread
+	 * More than one thread requires a collection whose region iterators can be used concurrently
+	 * A collection without a coordinate space has no list of references to split on, so it is merged on one thread
+	 * @param numThreads Number of threads
+	 * @return A new collection of the merged annotations
+	 */
+	public FeatureCollection<BlockedAnnotation> merge(int numThreads) {
+		FeatureCollection<BlockedAnnotation> rtrn=new FeatureCollection<BlockedAnnotation>(getReferenceCoordinateSpace());
+		if(numThreads<=1 || getReferenceCoordinateSpace()==null){
+			addMerged(rtrn, mergedIterator());
+			return rtrn;
+		}
+		
+		ExecutorService executor=Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<List<BlockedAnnotation>>> references=new ArrayList<Future<List<BlockedAnnotation>>>();
+			for(final String reference : getReferenceCoordinateSpace().getRefSeqLengths().keySet()){
+				references.add(executor.submit(new Callable<List<BlockedAnnotation>>(){
+					@Override
+					public List<BlockedAnnotation> call() {
+						List<BlockedAnnotation> merged=new ArrayList<BlockedAnnotation>();
+						addMerged(merged, mergedIterator(new SingleInterval(reference, 0, Integer.MAX_VALUE, Strand.BOTH)));
+						return merged;
+					}
+				}));
+			}
+			for(Future<List<BlockedAnnotation>> reference : references){
+				rtrn.addAll(reference.get());
+			}
+			return rtrn;
+		}
+		catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while merging", ex);
+		}
+		catch(ExecutionException ex){
+			Throwable cause=ex.getCause();
+			if(cause instanceof RuntimeException){throw (RuntimeException)cause;}
+			if(cause instanceof Error){throw (Error)cause;}
+			throw new IllegalStateException(cause);
+		}
+		finally{executor.shutdownNow();}
+	}
+	
+	private static void addMerged(Collection<BlockedAnnotation> rtrn, CloseableIterator<BlockedAnnotation> iter){
+		try{
+			while(iter.hasNext()){
+				rtrn.add(iter.next());
+			}
+		}
+		finally{iter.close();}
+	}
+	
+	/**
+	 * @return The merged annotations in sorted order, merged as they are read from the sorted iterator
+	 */
+	public CloseableIterator<BlockedAnnotation> mergedIterator() {
+		return new MergedIterator(sortedIterator());
+	}
+	
+	/**
+	 * @param region The region to merge annotations in
+	 * @return The merged annotations overlapping the region in sorted order
+	 */
+	public CloseableIterator<BlockedAnnotation> mergedIterator(Annotation region) {
+		return new MergedIterator(sortedIterator(region, false));
+	}
+	
+	/**
+	 * Write the merged annotations to a BED file without holding them in memory
+	 * @param fileName The BED file to write
+	 * @throws IOException
+	 */
+	public void writeMergedToBED(String fileName) throws IOException {
+		CloseableIterator<BlockedAnnotation> iter=mergedIterator();
+		BEDWriter writer=new BEDWriter(fileName);
+		try{writer.write(iter);}
+		finally{
+			writer.close();
+			iter.close();
+		}
+	}
+	
+	/**
+	 * Write the merged annotations to a BAM file without holding them in memory
+	 * @param fileName The BAM file to write
+	 */
+	public void writeMergedToBAM(String fileName) {
+		writeToBAM(fileName, mergedIterator());
 	}
 
+	/**
+	 * Stops at the first annotation in the region that overlaps other
+	 */
 	@Override
 	public boolean overlaps(Annotation other) {
-		// FIXME Auto-generated method stub
-		throw new UnsupportedOperationException("TODO");
+		CloseableIterator<T> iter=sortedIterator(other, false);
+		try{
+			while(iter.hasNext()){
+				if(other.overlaps(iter.next())){return true;}
+			}
+			return false;
+		}
+		finally{iter.close();}
 	}
 
 	@Override
@@ -96,12 +235,131 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 		return new WindowIterator<T>(iter,winSize,stepSize);
 	}	
 	
+	/**
+	 * Each shard reads one window length past its end so that windows starting in it are complete,
+	 * and keeps only those windows; the result is in coordinate order
+	 */
+	@Override
+	public CloseableIterator<? extends PopulatedWindow<T>> getPopulatedWindows(final int winSize, final int stepSize, int numThreads) {
+		if(numThreads<=1 || getReferenceCoordinateSpace()==null){return getPopulatedWindows(winSize, stepSize);}
+		CloseableIterator<List<PopulatedWindow<T>>> iter=new ShardIterator<List<PopulatedWindow<T>>>(numThreads){
+			@Override
+			List<PopulatedWindow<T>> process(Annotation shard) {
+				//Annotations without a position are in no window
+				if(shard==UNPLACED_SHARD){return Collections.<PopulatedWindow<T>>emptyList();}
+				int end=(int)Math.min(Integer.MAX_VALUE, (long)shard.getReferenceEndPosition()+winSize);
+				SingleInterval region=new SingleInterval(shard.getReferenceName(), shard.getReferenceStartPosition(), end, Strand.BOTH);
+				StartsIn<PopulatedWindow<T>> startsIn=new StartsIn<PopulatedWindow<T>>(shard);
+				List<PopulatedWindow<T>> rtrn=new ArrayList<PopulatedWindow<T>>();
+				CloseableIterator<? extends PopulatedWindow<T>> windows=new WindowIterator<T>(sortedIterator(region, false), winSize, stepSize);
+				try{
+					while(windows.hasNext()){
+						PopulatedWindow<T> window=windows.next();
+						if(startsIn.evaluate(window)){rtrn.add(window);}
+					}
+				}
+				finally{windows.close();}
+				Collections.sort(rtrn, new Comparator<PopulatedWindow<T>>(){
+					@Override
+					public int compare(PopulatedWindow<T> w1, PopulatedWindow<T> w2) {
+						return Integer.compare(w1.getReferenceStartPosition(), w2.getReferenceStartPosition());
+					}
+				});
+				return rtrn;
+			}
+		};
+		return new ConcatenatedIterator<PopulatedWindow<T>>(iter);
+	}
+	
+	/**
+	 * Flattens the lists returned by a shard iterator
+	 */
+	private static class ConcatenatedIterator<R> implements CloseableIterator<R>{
+		
+		private CloseableIterator<List<R>> lists;
+		private Iterator<R> current;
+		
+		ConcatenatedIterator(CloseableIterator<List<R>> lists){
+			this.lists=lists;
+			this.current=Collections.<R>emptyList().iterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while(!current.hasNext()){
+				if(!lists.hasNext()){return false;}
+				current=lists.next().iterator();
+			}
+			return true;
+		}
+		
+		@Override
+		public R next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			return current.next();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {
+			lists.close();
+		}
+	}
+	
 	@Override
 	public CloseableIterator<? extends PopulatedWindow<T>> getPopulatedWindows(Annotation region, int winSize, int stepSize, boolean includeEmpties) {
 		CloseableIterator<T> iter=sortedIterator(region, false);
 		return new WindowIterator<T>(iter,winSize,region,stepSize,includeEmpties);
 	}
 	
+	@Override
+	public CloseableIterator<CountedWindow<T>> getWindowCounts(Annotation region, int winSize, int stepSize, boolean includeEmpties) {
+		CloseableIterator<T> iter=sortedIterator(region, false);
+		return new CountedWindowIterator<T>(new WindowIterator<T>(iter,winSize,region,stepSize,includeEmpties,true));
+	}
+	
+	@Override
+	public CloseableIterator<CountedWindow<T>> getWindowCounts(int winSize, int stepSize) {
+		CloseableIterator<T> iter=sortedIterator();
+		return new CountedWindowIterator<T>(new WindowIterator<T>(iter,winSize,stepSize,true));
+	}
+	
+	/**
+	 * The windows of a count-only WindowIterator
+	 */
+	private static class CountedWindowIterator<T1 extends Annotation> implements CloseableIterator<CountedWindow<T1>>{
+		
+		private CloseableIterator<PopulatedWindow<T1>> windows;
+		
+		CountedWindowIterator(CloseableIterator<PopulatedWindow<T1>> windows){
+			this.windows=windows;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return windows.hasNext();
+		}
+		
+		@Override
+		public CountedWindow<T1> next() {
+			return (CountedWindow<T1>)windows.next();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {
+			windows.close();
+		}
+	}
+	
 	@Override
 	public int numOverlappers(Annotation region, boolean fullyContained) {
 		int counter=0;
@@ -125,17 +383,51 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 	}
 	
 
+	/**
+	 * Shards build their records in parallel; records are written in shard order, so the file stays sorted
+	 */
+	@Override
+	public void writeToBAM(String fileName, int numThreads){
+		if(numThreads<=1){
+			writeToBAM(fileName);
+			return;
+		}
+		final SAMFileHeader header=getReferenceCoordinateSpace().getBAMFileHeader();
+		CloseableIterator<List<SAMRecord>> iter=mapShards(new ShardFunction<T, List<SAMRecord>>(){
+			@Override
+			public List<SAMRecord> apply(Annotation shard, CloseableIterator<T> annotations) {
+				List<SAMRecord> rtrn=new ArrayList<SAMRecord>();
+				while(annotations.hasNext()){
+					rtrn.add(annotations.next().getSamRecord(header));
+				}
+				return rtrn;
+			}
+		}, numThreads);
+		SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(header, false, new File(fileName));
+		try{
+			while(iter.hasNext()){
+				for(SAMRecord record: iter.next()){
+					writer.addAlignment(record);
+				}
+			}
+		}
+		finally{
+			iter.close();
+			writer.close();
+		}
+	}
+
 	@Override
 	public void writeToBAM(String fileName, Annotation region, boolean fullyContained){
 		writeToBAM(fileName, sortedIterator(region, fullyContained));
 	}
 	
-	private void writeToBAM(String fileName, CloseableIterator<T> iter){
+	private void writeToBAM(String fileName, CloseableIterator<? extends Annotation> iter){
 		SAMFileHeader header=getReferenceCoordinateSpace().getBAMFileHeader();
 		SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(header, false, new File(fileName));
 			
 		while(iter.hasNext()){
-			T ann=iter.next();
+			Annotation ann=iter.next();
 			writer.addAlignment(ann.getSamRecord(header));
 		}
 		writer.close();
@@ -146,13 +438,15 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 
 	/**
 	 * This class requires that you have a sorted iterator of reads
+	 * Windows being filled are held in a circular array indexed by start/stepSize, so a read costs one
+	 * array access per window it touches; windows are returned in order of start once no later read can reach them
 	 * @author mguttman
 	 *
 	 * @param <T1>
 	 */
 	public class WindowIterator<T1 extends Annotation> implements CloseableIterator<PopulatedWindow<T1>>{
 
-		IntervalTree<PopulatedWindow<T1>> windows;
+		WindowRing<T1> windows;
 		CloseableIterator<T1> iter;
 		Iterator<PopulatedWindow<T1>> fullyFormedWindows;
 		int windowLength;
@@ -161,6 +455,9 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 		Annotation region;
 		int stepSize;
 		boolean includeEmpties;
+		boolean countOnly;
+		int currentReference;
+		String currentReferenceName;
 		
 		PopulatedWindow<T1> nextWin;
 		int nextPos;
@@ -168,12 +465,12 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 		public WindowIterator(CloseableIterator<T1> iter, int windowLength, boolean assumeForward){
 			this.iter=iter;
 			this.windowLength=windowLength;
-			this.windows=new IntervalTree<PopulatedWindow<T1>>();
+			this.windows=new WindowRing<T1>();
 			this.hasNext=false;
 			this.assumeForward=assumeForward;
 			this.stepSize=1;
 			this.includeEmpties=false;
-			
+			this.currentReference=ReferenceDictionary.NO_REFERENCE;
 		}
 		
 		public WindowIterator(CloseableIterator<T1> iter, int windowLength)
@@ -207,26 +504,39 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 			this.includeEmpties = includeEmpties;
 		}
 		
+		/**
+		 * @param countOnly Make CountedWindows, which keep counts rather than the reads
+		 */
+		public WindowIterator(CloseableIterator<T1> iter, int windowLength, int stepSize, boolean countOnly)
+		{
+			this(iter,windowLength,stepSize);
+			this.countOnly = countOnly;
+		}
+		
+		/**
+		 * @param countOnly Make CountedWindows, which keep counts rather than the reads
+		 */
+		public WindowIterator(CloseableIterator<T1> iter, int windowLength,Annotation region, int stepSize, boolean includeEmpties, boolean countOnly)
+		{
+			this(iter,windowLength,region,stepSize,includeEmpties);
+			this.countOnly = countOnly;
+		}
+		
+		private PopulatedWindow<T1> newWindow(String referenceName, int start){
+			if(countOnly){return new CountedWindow<T1>(referenceName, start, start+windowLength, Strand.BOTH, region);}
+			return new ContiguousWindow<T1>(referenceName, start, start+windowLength, Strand.BOTH);
+		}
+		
 		@Override
 		public boolean hasNext() {
 			if(fullyFormedWindows!=null && fullyFormedWindows.hasNext()){return true;}
 			boolean hasEmpties = (includeEmpties && region!=null && nextPos < region.getReferenceEndPosition());
-			//else if(iter.hasNext()){updateWindows(); return hasNext();}
-			//else if(!iter.hasNext() && !windows.isEmpty())
-			//{
-			//	updateRemainingWindows();
-			//	return hasNext();
-			//}
-			
 			updateWindows();
 			return (hasEmpties || fullyFormedWindows!=null && fullyFormedWindows.hasNext());
-			
-			//return false;
 		}
 
 		private void updateRemainingWindows(){
-			fullyFormedWindows = windows.valueIterator();
-			windows = new IntervalTree<PopulatedWindow<T1>>();
+			fullyFormedWindows = windows.removeAll().iterator();
 		}
 		
 		@Override
@@ -240,7 +550,7 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 				else
 				{
 					nextPos++;
-					return new ContiguousWindow<T1>(region.getName(), nextPos, nextPos+windowLength, Strand.BOTH);
+					return newWindow(region.getName(), nextPos);
 
 				}
 			}
@@ -251,7 +561,7 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 				nextWin = null;
 			}
 			else
-				rtrn = new ContiguousWindow<T1>(region.getName(), nextPos, nextPos+windowLength, Strand.BOTH);
+				rtrn = newWindow(region.getName(), nextPos);
 			
 			nextPos++;
 			return rtrn;
@@ -284,13 +594,14 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 				if(region!=null)
 					end = Math.min(region.getReferenceEndPosition(), block.getReferenceEndPosition());
 				for(int i=start; i<end; i+=stepSize){
-					PopulatedWindow<T1> window=windows.remove(i, i+windowLength);
+					int index=i/stepSize;
+					PopulatedWindow<T1> window=windows.get(index);
 					if(window==null){
 						//make a window
-						window=new ContiguousWindow<T1>(read.getReferenceName(), i, i+windowLength, Strand.BOTH);
+						window=newWindow(read.getReferenceName(), i);
+						windows.put(index, window);
 					}
 					window.addAnnotation(read);
-					windows.put(window.getReferenceStartPosition(), window.getReferenceEndPosition(), window);
 				}
 			}
 		}
@@ -300,23 +611,25 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 			return (winStart + stepSize -1) / stepSize *stepSize;
 		}
 		
-		private Collection<PopulatedWindow<T1>> removeFullyFormedWindows(T1 read) {
-			Iterator<PopulatedWindow<T1>> iter;
-			if(assumeForward)
-				{iter=windows.getNodesBeforeInterval(read.getReferenceStartPosition(), read.getReferenceStartPosition());}
-			else
-				{iter=windows.getNodesAfterInterval(read.getReferenceEndPosition(), read.getReferenceEndPosition());}
-			ArrayList<PopulatedWindow<T1>> rtrn=new ArrayList<PopulatedWindow<T1>>();
-			while(iter.hasNext()){
-				PopulatedWindow<T1> w=iter.next();
-				if((!w.getReferenceName().equalsIgnoreCase(read.getReferenceName())) || (w.getReferenceEndPosition()<read.getReferenceStartPosition())){
-					rtrn.add(w);
-					windows.remove(w.getReferenceStartPosition(), w.getReferenceEndPosition());
-				}
+		private List<PopulatedWindow<T1>> removeFullyFormedWindows(T1 read) {
+			List<PopulatedWindow<T1>> rtrn;
+			//Windows on the previous reference are all complete
+			if(!ReferenceDictionary.sameReference(read.getReferenceId(), read.getReferenceName(), currentReference, currentReferenceName)){
+				rtrn=windows.removeAll();
+				currentReference=read.getReferenceId();
+				currentReferenceName=read.getReferenceName();
+			}
+			//Reads going backwards can still reach every window, so nothing is complete until the end
+			else if(!assumeForward){
+				rtrn=new ArrayList<PopulatedWindow<T1>>();
+			}
+			else{
+				//Windows starting before this bound end before the read starts
+				long bound=(long)read.getReferenceStartPosition()-windowLength;
+				int lastIndex=(int)Math.max(Integer.MIN_VALUE, Math.floorDiv(bound-1, (long)stepSize));
+				rtrn=windows.removeTo(lastIndex);
 			}
 			this.hasNext=!rtrn.isEmpty();
-			Comparator comparator = new WindowComparator();
-			Collections.sort(rtrn,comparator);
 			return rtrn;
 		}
 
@@ -334,6 +647,88 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 
 	}
 
+	/**
+	 * Windows indexed by an integer, held in a circular array covering the range of indices in use
+	 * Indices may be added at either end; the array doubles when the range outgrows it
+	 */
+	private static class WindowRing<T1 extends Annotation>{
+		
+		/**
+		 * Holds only PopulatedWindow<T1>, read back through window(); generic arrays cannot be created
+		 */
+		private Object[] ring;
+		private int first;
+		private int last;
+		private boolean empty;
+		
+		WindowRing(){
+			this.ring=new Object[16];
+			this.empty=true;
+		}
+		
+		boolean isEmpty(){
+			return empty;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private PopulatedWindow<T1> window(int slot){
+			return (PopulatedWindow<T1>)ring[slot];
+		}
+		
+		PopulatedWindow<T1> get(int index){
+			if(empty || index<first || index>last){return null;}
+			return window(index & (ring.length-1));
+		}
+		
+		void put(int index, PopulatedWindow<T1> window){
+			if(empty){
+				first=index;
+				last=index;
+				empty=false;
+			}
+			else{
+				int newFirst=Math.min(first, index);
+				int newLast=Math.max(last, index);
+				if((long)newLast-newFirst>=ring.length){grow((long)newLast-newFirst+1);}
+				first=newFirst;
+				last=newLast;
+			}
+			ring[index & (ring.length-1)]=window;
+		}
+		
+		private void grow(long size){
+			int length=ring.length;
+			while(length<size){length<<=1;}
+			Object[] grown=new Object[length];
+			for(int i=first; i<=last; i++){
+				grown[i & (length-1)]=ring[i & (ring.length-1)];
+			}
+			ring=grown;
+		}
+		
+		/**
+		 * @return The windows up to and including the index, in order
+		 */
+		List<PopulatedWindow<T1>> removeTo(int index){
+			List<PopulatedWindow<T1>> rtrn=new ArrayList<PopulatedWindow<T1>>();
+			while(!empty && first<=index){
+				int slot=first & (ring.length-1);
+				if(ring[slot]!=null){
+					rtrn.add(window(slot));
+					ring[slot]=null;
+				}
+				if(first==last){empty=true;}
+				else{first++;}
+			}
+			return rtrn;
+		}
+		
+		List<PopulatedWindow<T1>> removeAll(){
+			if(empty){return new ArrayList<PopulatedWindow<T1>>();}
+			return removeTo(last);
+		}
+	}
+	
 	public class WindowComparator implements Comparator<PopulatedWindow<T>>{
 		@Override
 		public int compare(PopulatedWindow<T> win1, PopulatedWindow<T> win2)
@@ -357,21 +752,331 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 		return new CoordinateSpace(sizes);
 	}
 	
+	/**
+	 * Each shard collects the sizes of the annotations starting in it; later shards win, as they would in one pass
+	 */
+	@Override
+	public CoordinateSpace getFeatureCoordinateSpace(int numThreads){
+		if(numThreads<=1 || getReferenceCoordinateSpace()==null){return getFeatureCoordinateSpace();}
+		CloseableIterator<Map<String, Integer>> iter=mapShards(new ShardFunction<T, Map<String, Integer>>(){
+			@Override
+			public Map<String, Integer> apply(Annotation shard, CloseableIterator<T> annotations) {
+				Map<String, Integer> rtrn=new TreeMap<String, Integer>();
+				while(annotations.hasNext()){
+					T annotation=annotations.next();
+					rtrn.put(annotation.getName(), annotation.size());
+				}
+				return rtrn;
+			}
+		}, numThreads);
+		Map<String, Integer> sizes=new TreeMap<String, Integer>();
+		while(iter.hasNext()){
+			sizes.putAll(iter.next());
+		}
+		iter.close();
+		return new CoordinateSpace(sizes);
+	}
+	
+	/**
+	 * The count is cached for the current set of filters, whatever the number of threads, so adding a filter and removing it again does not recount
+	 */
 	@Override
 	public int getNumAnnotations(){
-		if(this.numAnnotations != 0)
-			return this.numAnnotations;
-
+		return getNumAnnotations(1);
+	}
+	
+	@Override
+	public int getNumAnnotations(int numThreads){
+		List<Predicate<T>> key = new ArrayList<Predicate<T>>(filters);
+		Integer rtrn = counts.get(key);
+		if(rtrn == null) {
+			rtrn = countAnnotations(numThreads);
+			counts.put(key, rtrn);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Count the annotations passing the current filters, one shard per task
+	 * @param numThreads Threads to count on; with one thread this is countAnnotations()
+	 * @return The number of annotations
+	 */
+	protected int countAnnotations(int numThreads){
+		if(numThreads<=1 || getReferenceCoordinateSpace()==null){return countAnnotations();}
+		CloseableIterator<Integer> iter=mapShards(new ShardFunction<T, Integer>(){
+			@Override
+			public Integer apply(Annotation shard, CloseableIterator<T> annotations) {
+				int rtrn=0;
+				while(annotations.hasNext()){
+					annotations.next();
+					rtrn++;
+				}
+				return rtrn;
+			}
+		}, numThreads);
+		long rtrn=0;
+		while(iter.hasNext()){
+			rtrn+=iter.next();
+		}
+		iter.close();
+		return (int)rtrn;
+	}
+	
+	/**
+	 * Count the annotations passing the current filters
+	 * Subclasses can override this to count from an index instead of iterating
+	 * @return The number of annotations
+	 */
+	protected int countAnnotations(){
 		CloseableIterator<T> iter = this.sortedIterator();
 		int count = 0;
-		while(iter.hasNext())
-		{
-			iter.next();
-			count++;
+		try {
+			while(iter.hasNext())
+			{
+				iter.next();
+				count++;
+			}
+		}
+		finally{iter.close();}
+		return count;
+	}
+	
+	/**
+	 * Forget cached counts; called by collections whose contents change
+	 */
+	protected void clearCounts(){
+		counts.clear();
+	}
+	
+	/**
+	 * The longest shard; a multiple of the 16kb window of the BAM linear index, so that every piece of a long reference
+	 * starts on an index window and can seek straight to its first read
+	 * @return Bases per shard
+	 */
+	protected int getShardLength(){
+		return SHARD_LENGTH;
+	}
+	
+	/**
+	 * Split the reference sequences into shards for mapShards, one per reference, with references longer than getShardLength() cut into pieces of that length
+	 * The last shard of each reference runs to Integer.MAX_VALUE, so annotations past the stated reference length are not lost,
+	 * and UNPLACED_SHARD comes last, so every annotation is in a shard
+	 * @return Shards in reference order, then by position
+	 * @throws IllegalStateException If the collection has no reference coordinate space to split
+	 */
+	public List<Annotation> getShards(){
+		CoordinateSpace space=getReferenceCoordinateSpace();
+		if(space==null){throw new IllegalStateException("A collection without a reference coordinate space cannot be split into shards");}
+		List<Annotation> rtrn=new ArrayList<Annotation>();
+		int shardLength=getShardLength();
+		for(Map.Entry<String, Integer> reference: space.getRefSeqLengths().entrySet()){
+			int length=reference.getValue();
+			int start=0;
+			while(start+(long)shardLength<length){
+				rtrn.add(new SingleInterval(reference.getKey(), start, start+shardLength, Strand.BOTH));
+				start+=shardLength;
+			}
+			rtrn.add(new SingleInterval(reference.getKey(), start, Integer.MAX_VALUE, Strand.BOTH));
+		}
+		rtrn.add(UNPLACED_SHARD);
+		return rtrn;
+	}
+	
+	/**
+	 * The annotations of one shard, so that every annotation is in exactly one shard
+	 * The unplaced shard is read reference by reference from the references of getReferenceNames() that are not in the coordinate space
+	 * @param shard A shard from getShards
+	 * @return The annotations passing the filters that start in the shard, sorted
+	 */
+	protected CloseableIterator<T> shardIterator(Annotation shard){
+		if(shard==UNPLACED_SHARD){
+			Unplaced<T> unplaced=new Unplaced<T>(getReferenceCoordinateSpace());
+			List<String> references=new ArrayList<String>();
+			for(String reference: getReferenceNames()){
+				if(unplaced.isUnplaced(reference)){references.add(reference);}
+			}
+			return new ReferencesIterator(references.iterator());
+		}
+		return new FilteredIterator<T>(sortedIterator(shard, false), new StartsIn<T>(shard));
+	}
+	
+	/**
+	 * The references that hold annotations, so the unplaced shard can be read without a pass over the whole collection
+	 * By default these are the references of the coordinate space, so the unplaced shard is empty;
+	 * collections that can hold annotations on other references override this
+	 * @return Names of the references holding annotations
+	 */
+	protected Collection<String> getReferenceNames(){
+		return getReferenceCoordinateSpace().getRefSeqLengths().keySet();
+	}
+	
+	/**
+	 * The annotations of each reference in turn, each read with its own region iterator
+	 */
+	private class ReferencesIterator implements CloseableIterator<T>{
+		
+		private Iterator<String> references;
+		private CloseableIterator<T> current;
+		
+		ReferencesIterator(Iterator<String> references){
+			this.references=references;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while(current==null || !current.hasNext()){
+				if(current!=null){current.close();}
+				current=null;
+				if(!references.hasNext()){return false;}
+				current=sortedIterator(new SingleInterval(references.next(), 0, Integer.MAX_VALUE, Strand.BOTH), false);
+			}
+			return true;
+		}
+		
+		@Override
+		public T next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			return current.next();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {
+			if(current!=null){current.close();}
+			current=null;
+		}
+	}
+	
+	@Override
+	public <R> CloseableIterator<R> mapShards(final ShardFunction<T, R> function, int numThreads){
+		return new ShardIterator<R>(numThreads){
+			@Override
+			R process(Annotation shard) {
+				CloseableIterator<T> iter=shardIterator(shard);
+				try{return function.apply(shard, iter);}
+				finally{iter.close();}
+			}
+		};
+	}
+	
+	/**
+	 * Keeps annotations starting in a shard
+	 */
+	protected static class StartsIn<T extends Annotation> implements Predicate<T>{
+		
+		private int start;
+		private int end;
+		
+		public StartsIn(Annotation shard){
+			this.start=shard.getReferenceStartPosition();
+			this.end=shard.getReferenceEndPosition();
+		}
+		
+		@Override
+		public boolean evaluate(T annotation) {
+			int position=annotation.getReferenceStartPosition();
+			return position>=start && position<end;
+		}
+	}
+	
+	/**
+	 * Keeps annotations on no reference of a coordinate space, matching names ignoring case
+	 */
+	protected static class Unplaced<T extends Annotation> implements Predicate<T>{
+		
+		private Set<String> references;
+		
+		public Unplaced(CoordinateSpace space){
+			this.references=new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+			references.addAll(space.getRefSeqLengths().keySet());
+		}
+		
+		/**
+		 * @param reference A reference name, or null
+		 * @return Whether the reference is missing from the coordinate space
+		 */
+		public boolean isUnplaced(String reference) {
+			return reference==null || !references.contains(reference);
+		}
+		
+		@Override
+		public boolean evaluate(T annotation) {
+			return isUnplaced(annotation.getReferenceName());
+		}
+	}
+	
+	/**
+	 * Processes each shard as its own task on a fork-join pool, keeping a few tasks ahead of the caller,
+	 * and returns the results in shard order
+	 */
+	private abstract class ShardIterator<R> implements CloseableIterator<R>{
+		
+		private List<Annotation> shards;
+		private int nextShard;
+		private ForkJoinPool pool;
+		private Queue<ForkJoinTask<R>> running;
+		private int maxRunning;
+		
+		ShardIterator(int numThreads){
+			numThreads=Math.max(1, numThreads);
+			this.shards=getShards();
+			this.pool=new ForkJoinPool(numThreads);
+			this.running=new ArrayDeque<ForkJoinTask<R>>();
+			//One result waiting for the caller while every thread works on the next
+			this.maxRunning=numThreads+1;
+			submit();
+		}
+		
+		abstract R process(Annotation shard);
+		
+		private void submit(){
+			while(running.size()<maxRunning && nextShard<shards.size()){
+				final Annotation shard=shards.get(nextShard++);
+				running.add(pool.submit(new RecursiveTask<R>(){
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected R compute() {
+						return process(shard);
+					}
+				}));
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if(running.isEmpty()){
+				close();
+				return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Exceptions thrown by a shard are rethrown here
+		 */
+		@Override
+		public R next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			R rtrn=running.poll().join();
+			submit();
+			return rtrn;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {
+			running.clear();
+			nextShard=shards.size();
+			pool.shutdownNow();
 		}
-		iter.close();
-		this.numAnnotations = count;
-		return this.numAnnotations;
 	}
 	
 	@Override
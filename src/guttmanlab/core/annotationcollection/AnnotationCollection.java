@@ -2,6 +2,7 @@ package guttmanlab.core.annotationcollection;
 
 import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.CountedWindow;
 import guttmanlab.core.annotation.DerivedAnnotation;
 import guttmanlab.core.annotation.PopulatedWindow;
 import guttmanlab.core.annotation.SAMFragment;
@@ -138,6 +139,24 @@ public interface AnnotationCollection<T extends Annotation> {
 	 */
 	public CloseableIterator<? extends PopulatedWindow<T>> getPopulatedWindows(Annotation region, int windowLength, int stepSize, boolean includeEmpties);
 	
+	/**
+	 * Get the same windows as getPopulatedWindows, but keeping only the number of overlappers on each strand
+	 * @param region The region to scan
+	 * @param windowLength The length of the window
+	 * @param stepSize Step size
+	 * @param includeEmpties Also return windows with zero overlappers
+	 * @return Iterator of windows and their counts
+	 */
+	public CloseableIterator<CountedWindow<T>> getWindowCounts(Annotation region, int windowLength, int stepSize, boolean includeEmpties);
+	
+	/**
+	 * Get the same windows as getPopulatedWindows, but keeping only the number of overlappers on each strand
+	 * @param windowLength The length of the window
+	 * @param stepSize Step size
+	 * @return Iterator of windows and their counts
+	 */
+	public CloseableIterator<CountedWindow<T>> getWindowCounts(int windowLength, int stepSize);
+	
 			
 	/**
 	 * Iterates through the annotations in sortedIterator()
@@ -145,6 +164,44 @@ public interface AnnotationCollection<T extends Annotation> {
 	 */
 	public int getNumAnnotations();
 	
+	/**
+	 * Apply a function to each shard of the collection on a fork-join pool
+	 * Shards are reference sequences, with long references split into pieces, and a last shard without a reference
+	 * for annotations that are on no reference of the coordinate space, such as reads without a position
+	 * @param function The work to do on each shard
+	 * @param numThreads Number of threads
+	 * @return The result for each shard, in coordinate order
+	 */
+	public <R> CloseableIterator<R> mapShards(ShardFunction<T, R> function, int numThreads);
+	
+	/**
+	 * @param numThreads Number of threads to count shards on
+	 * @return the number of annotations in the collection
+	 */
+	public int getNumAnnotations(int numThreads);
+	
+	/**
+	 * @param numThreads Number of threads to scan shards on
+	 * @return The feature coordinate space
+	 */
+	public CoordinateSpace getFeatureCoordinateSpace(int numThreads);
+	
+	/**
+	 * Write the collection of annotations (using filters) to a file, reading shards in parallel
+	 * @param fileName The file to write to
+	 * @param numThreads Number of threads to read shards on
+	 */
+	public void writeToBAM(String fileName, int numThreads);
+	
+	/**
+	 * Get an iterator over all populated windows of size widowLength, made in parallel
+	 * @param windowLength The length of the window
+	 * @param stepSize Step size
+	 * @param numThreads Number of threads to make windows on
+	 * @return Iterator of windows and all of their overlapping reads of type T, in coordinate order
+	 */
+	public CloseableIterator<? extends PopulatedWindow<T>> getPopulatedWindows(int windowLength, int stepSize, int numThreads);
+	
 	/**
 	 * Compute the Scan Distribution p-value for the number of reads overlapping a region
 	 * @param region The region to analyze
@@ -1,29 +1,49 @@
 package guttmanlab.core.annotationcollection;
 
 import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
 import guttmanlab.core.annotation.PairedMappedFragment;
 import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
-import guttmanlab.core.datastructures.IntervalTree;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
 import guttmanlab.core.datastructures.Pair;
-import guttmanlab.core.datastructures.IntervalTree.Node;
 
 import java.io.File;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
-import org.apache.commons.collections15.Predicate;
 import org.apache.log4j.Logger;
 
+import net.sf.samtools.BAMIndex;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
 import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
 /**
  * This class represents a PairedFragmentCollection
  * @author mguttman
@@ -37,15 +57,46 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 	private static final String ALIGNMENT_CIGAR = "aC";
 	private static final String MATE_CIGAR = "mC";
 	private static final String MATE_MAPPING_QUALITY="mQ";
+	/**
+	 * Header comment of a fragment file recording what it was made from
+	 * Bump CACHE_VERSION when the fragment format or the pairing changes so old files are rebuilt
+	 */
+	private static final String CACHE_TAG="guttmanlab.pe";
+	private static final int CACHE_VERSION=2;
+	/**
+	 * Fragment files being built in this JVM, so that two collections of one BAM build it once
+	 * File locks are held by the whole JVM, so they only keep other processes out
+	 */
+	private static final ConcurrentHashMap<String, Object> BUILD_LOCKS=new ConcurrentHashMap<String, Object>();
+	/**
+	 * Fragments sorted in memory while the fragment file is written, shared between the references written at once
+	 */
+	private static final int SORT_RECORDS_IN_RAM=500000;
+	/**
+	 * The per-reference files are read back once, so they are compressed lightly
+	 */
+	private static final int PART_COMPRESSION=1;
 	private File fragmentFile;
 	private BAMSingleReadCollection reads;
 	private SpecialBAMPECollection fragmentReader;
 	private String bam;
+	/**
+	 * The BAM the fragment file is made from, or null if the fragment file is temporary
+	 */
+	private File sourceFile;
+	private int maxPendingMates=DEFAULT_MAX_PENDING_MATES;
+	private int numThreads=Runtime.getRuntime().availableProcessors();
+	private Boolean collated;
+	/**
+	 * Reads waiting for their mate held in memory while pairing, before they are spilled to disk
+	 */
+	public static final int DEFAULT_MAX_PENDING_MATES=1<<19;
 	private static Logger logger = Logger.getLogger(BAMPairedFragmentCollection.class.getName());
 	
 	public BAMPairedFragmentCollection(File bamFile){
 		//Step 1: Initialize a Picard BAM Reader, represents reads
 		reads=new BAMSingleReadCollection(bamFile);
+		this.sourceFile=bamFile.getAbsoluteFile();
 		this.fragmentFile=makeFragmentFile(bamFile.getAbsolutePath());
 		this.bam = bamFile.getName();
 	}
@@ -56,10 +107,41 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		bam = reads.getBamFile();
 	}
 	
+	/**
+	 * Set the memory budget for pairing mates; reads waiting beyond it go to a temporary file until their mate is near
+	 * @param maxPendingMates The number of reads waiting for their mate to hold in memory
+	 */
+	public void setMaxPendingMates(int maxPendingMates) {
+		this.maxPendingMates=maxPendingMates;
+	}
+	
+	/**
+	 * @param numThreads The number of references paired at once when the fragment file is written
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads=numThreads;
+	}
+	
+	/**
+	 * Say whether the reads of each pair are next to each other, for BAMs collated by name whose header does not say so
+	 * @param collated Whether the BAM is collated by read name
+	 */
+	public void setCollated(boolean collated) {
+		this.collated=collated;
+	}
+	
 	public String getBamFile() {
 		return bam;
 	}
 	
+	/**
+	 * Close the readers of the BAM file and of the fragment file
+	 */
+	public synchronized void close() {
+		reads.close();
+		if(fragmentReader!=null){fragmentReader.readers.close();}
+	}
+	
 	public String toString() {
 		return getBamFile().replaceAll(".bam","");
 	}
@@ -72,34 +154,221 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 	private File makeFragmentFile(String bamFile) {
 		String baseName=bamFile.split(".bam")[0];
 		File file=new File(baseName+extension);
-		file.deleteOnExit(); //TODO We might want to cache this, but we need to figure out how to make sure the files are in sync
+		if(sourceFile==null){file.deleteOnExit();}
 		return file;
 	}
 	
-	private SpecialBAMPECollection getPairedEndFragmentFile() {
+	private synchronized SpecialBAMPECollection getPairedEndFragmentFile() {
 		if(this.fragmentReader!=null){return fragmentReader;}
-		else if(this.fragmentFile.exists()){
-			logger.info("Fragment file exists " + fragmentFile.getName());
-			fragmentReader=new SpecialBAMPECollection(fragmentFile);
-			return fragmentReader;
+		if(sourceFile==null){
+			if(!fragmentFile.exists()){writeFragmentFile(fragmentFile, reads.getFileHeader());}
 		}
 		else{
-			//Get the paired iterator
-			CloseableIterator<PairedMappedFragment<SAMFragment>> iter=sortedIterator();
-			//Create an indexed BAM file
-			SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(reads.getFileHeader(), false, fragmentFile);
+			String tag=getCacheTag();
+			if(!isCurrent(fragmentFile, tag)){
+				try{buildFragmentFile(tag);}
+				catch(IOException ex){throw new RuntimeIOException("Could not write fragment file "+fragmentFile, ex);}
+			}
+			else{logger.info("Fragment file exists " + fragmentFile.getName());}
+		}
+		//Make fragment reader of special format
+		fragmentReader=new SpecialBAMPECollection(fragmentFile);
+		return fragmentReader;
+	}
+	
+	/**
+	 * @return The header comment a fragment file of the current BAM must carry: its size, modification time and a checksum of its header
+	 */
+	private String getCacheTag() {
+		StringWriter text=new StringWriter();
+		new SAMTextHeaderCodec().encode(text, reads.getFileHeader());
+		CRC32 crc=new CRC32();
+		crc.update(text.toString().getBytes(StandardCharsets.UTF_8));
+		return CACHE_TAG+"\tversion="+CACHE_VERSION+"\tsize="+sourceFile.length()+"\tmtime="+sourceFile.lastModified()+"\theader="+Long.toHexString(crc.getValue());
+	}
+	
+	/**
+	 * @return Whether the fragment file and its index exist and were made from the current BAM
+	 */
+	private static boolean isCurrent(File file, String tag) {
+		if(!file.exists() || !indexFile(file).exists()){return false;}
+		SAMFileReader reader=null;
+		try{
+			reader=new SAMFileReader(file);
+			reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+			for(String comment: reader.getFileHeader().getComments()){
+				if(comment.equals(SAMTextHeaderCodec.COMMENT_PREFIX+tag)){return true;}
+			}
+			return false;
+		}
+		catch(RuntimeException ex){
+			logger.warn("Could not read fragment file "+file+", it will be rebuilt", ex);
+			return false;
+		}
+		finally{
+			if(reader!=null){reader.close();}
+		}
+	}
+	
+	/**
+	 * @return The index the SAMFileWriterFactory writes for a BAM file
+	 */
+	private static File indexFile(File bamFile) {
+		return new File(bamFile.getParentFile(), baseName(bamFile)+BAMIndex.BAMIndexSuffix);
+	}
+	
+	private static String baseName(File file) {
+		String name=file.getName();
+		int dot=name.lastIndexOf('.');
+		return dot<0 ? name : name.substring(0, dot);
+	}
+	
+	/**
+	 * Rebuild the fragment file unless another thread or process has just done so
+	 * The file is written under a temporary name and renamed into place with its index, so it is never seen half written
+	 */
+	private void buildFragmentFile(String tag) throws IOException {
+		File file=fragmentFile.getAbsoluteFile();
+		Object jvmLock=BUILD_LOCKS.putIfAbsent(file.getPath(), new Object());
+		if(jvmLock==null){jvmLock=BUILD_LOCKS.get(file.getPath());}
+		synchronized(jvmLock){
+			RandomAccessFile lockFile=new RandomAccessFile(new File(file.getPath()+".lock"), "rw");
+			try{
+				FileLock lock=lockFile.getChannel().lock();
+				try{
+					if(isCurrent(file, tag)){
+						logger.info("Fragment file was written by another job " + file.getName());
+						return;
+					}
+					File tmp=File.createTempFile(baseName(file)+".", ".tmp.bam", file.getParentFile());
+					File tmpIndex=indexFile(tmp);
+					try{
+						SAMFileHeader header=reads.getFileHeader().clone();
+						header.addComment(tag);
+						writeFragmentFile(tmp, header);
+						Files.move(tmpIndex.toPath(), indexFile(file).toPath(), StandardCopyOption.ATOMIC_MOVE);
+						Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					}
+					finally{
+						tmp.delete();
+						tmpIndex.delete();
+					}
+				}
+				finally{lock.release();}
+			}
+			finally{lockFile.close();}
+		}
+	}
+	
+	/**
+	 * Pair the reads and write one record per fragment to an indexed BAM file
+	 * Fragments are written without this collection's filters, which are applied as the file is read
+	 * With a BAM index each reference is paired on its own thread into a temporary file sorted by fragment start,
+	 * and the temporary files are copied in header order into the final file, whose index is built as it is written
+	 * Reads collated by name are paired as they are read and the fragments sorted by coordinate as they are written
+	 */
+	private void writeFragmentFile(File file, final SAMFileHeader header) {
+		logger.info("Writing fragment file " + fragmentFile.getName());
+		if(isCollated()){
+			SAMFileHeader sorted=header.clone();
+			sorted.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+			sorted.setGroupOrder(SAMFileHeader.GroupOrder.none);
+			File dir=file.getAbsoluteFile().getParentFile();
+			SAMFileWriterFactory factory=new SAMFileWriterFactory().setCreateIndex(true).setMaxRecordsInRam(SORT_RECORDS_IN_RAM).setTempDirectory(dir);
+			writeFragments(new CollatedPairIterator(reads.sortedIterator()), factory.makeBAMWriter(sorted, false, file));
+			return;
+		}
+		if(!reads.hasIndex()){
+			writeFragments(new PairedIterator(reads.sortedIterator()), new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, file));
+			return;
+		}
+		
+		final File dir=file.getAbsoluteFile().getParentFile();
+		List<SAMSequenceRecord> references=header.getSequenceDictionary().getSequences();
+		int poolSize=Math.max(1, Math.min(numThreads, references.size()));
+		final int maxRecordsInRam=Math.max(1, SORT_RECORDS_IN_RAM/poolSize);
+		ExecutorService executor=Executors.newFixedThreadPool(poolSize);
+		List<Future<File>> parts=new ArrayList<Future<File>>();
+		try{
+			for(final SAMSequenceRecord reference: references){
+				parts.add(executor.submit(new Callable<File>(){
+					@Override
+					public File call() throws IOException {
+						return writeReference(reference.getSequenceName(), header, dir, maxRecordsInRam);
+					}
+				}));
+			}
+			SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, file);
+			try{
+				for(Future<File> part: parts){
+					File partFile=part.get();
+					try{copyFragments(partFile, writer);}
+					finally{partFile.delete();}
+				}
+			}
+			finally{writer.close();}
+		}
+		catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new RuntimeIOException("Interrupted while writing fragment file "+file, ex);
+		}
+		catch(ExecutionException ex){
+			Throwable cause=ex.getCause();
+			if(cause instanceof RuntimeException){throw (RuntimeException)cause;}
+			if(cause instanceof Error){throw (Error)cause;}
+			throw new RuntimeIOException("Could not write fragment file "+file, cause);
+		}
+		finally{
+			executor.shutdownNow();
+			//Parts not yet copied when something failed
+			for(Future<File> part: parts){
+				if(part.isDone() && !part.isCancelled()){
+					try{part.get().delete();}
+					catch(Exception ex){} //The reference failed, so it has no file
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Pair the reads of one reference into a temporary BAM file sorted by fragment start
+	 */
+	private File writeReference(String reference, SAMFileHeader header, File dir, int maxRecordsInRam) throws IOException {
+		File rtrn=File.createTempFile("fragments.", ".tmp.bam", dir);
+		rtrn.deleteOnExit();
+		Annotation shard=new SingleInterval(reference, 0, Integer.MAX_VALUE, Strand.BOTH);
+		SAMFileWriterFactory factory=new SAMFileWriterFactory().setMaxRecordsInRam(maxRecordsInRam).setTempDirectory(dir);
+		writeFragments(new PairedIterator(reads.shardIterator(shard)), factory.makeBAMWriter(header, false, rtrn, PART_COMPRESSION));
+		return rtrn;
+	}
+	
+	private void writeFragments(CloseableIterator<PairedMappedFragment<SAMFragment>> iter, SAMFileWriter writer) {
+		try{
 			//For each pair, write it with appropriate flags
-			logger.info("Writing fragment file " + fragmentFile.getName());
 			while(iter.hasNext()){
 				PairedMappedFragment<SAMFragment> pair=iter.next();
 				convertToCustomSAMFormat(pair, writer);
 			}
+		}
+		finally{
 			//Close iterator and writer
 			iter.close();
 			writer.close();
-			//Make fragment reader of special format
-			fragmentReader=new SpecialBAMPECollection(fragmentFile);
-			return fragmentReader;
+		}
+	}
+	
+	private static void copyFragments(File part, SAMFileWriter writer) {
+		SAMFileReader reader=new SAMFileReader(part);
+		reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		SAMRecordIterator iter=reader.iterator();
+		try{
+			while(iter.hasNext()){
+				writer.addAlignment(iter.next());
+			}
+		}
+		finally{
+			iter.close();
+			reader.close();
 		}
 	}
 	
@@ -127,8 +396,8 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		record.setMateAlignmentStart(alignment.getMateAlignmentStart());
 		record.setAlignmentStart(alignment.getAlignmentStart());
 		
-		record.setAttribute(ALIGNMENT_CIGAR, record.getCigarString()); //Alignment cigar
-		record.setAttribute(MATE_CIGAR, mate.getCigarString());
+		record.setAttribute(ALIGNMENT_CIGAR, SAMFragment.packCigar(record.getCigar())); //Alignment cigar
+		record.setAttribute(MATE_CIGAR, SAMFragment.packCigar(mate.getCigar()));
 		record.setAttribute(MATE_MAPPING_QUALITY, mate.getMappingQuality());
 		
 		int fragmentLength=Math.max(pair.getRead1().getReferenceEndPosition(), pair.getRead2().getReferenceEndPosition())- Math.min(pair.getRead1().getReferenceStartPosition(), pair.getRead2().getReferenceStartPosition());
@@ -151,18 +420,35 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 	
 	@Override
 	public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator() {
+		//Reads collated by name are only in coordinate order once the fragment file is written
+		if(isCollated()){return new FilteredIterator<PairedMappedFragment<SAMFragment>>(getPairedEndFragmentFile().sortedIterator(), getFilters());}
 		return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new PairedIterator(reads.sortedIterator()), getFilters());
 	}
+	
+	/**
+	 * @return Whether the reads are sorted or grouped by read name, so that the reads of a pair are next to each other
+	 * Unless set, this is taken from the header
+	 */
+	private boolean isCollated() {
+		if(collated!=null){return collated;}
+		SAMFileHeader header=reads.getFileHeader();
+		return header.getSortOrder()==SAMFileHeader.SortOrder.queryname || header.getGroupOrder()==SAMFileHeader.GroupOrder.query;
+	}
 
 	@Override
 	public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator(Annotation region, boolean fullyContained) {
 		//Go through the fragments iterator and parse from SAM into new format
 		SpecialBAMPECollection fragments=this.getPairedEndFragmentFile();
-		Collection<Predicate<PairedMappedFragment<SAMFragment>>> c = getFilters();
-		Iterator<Predicate<PairedMappedFragment<SAMFragment>>> iter = c.iterator();
-		while(iter.hasNext())
-			fragments.addFilter(iter.next());
-		return fragments.sortedIterator(region, fullyContained);
+		return new FilteredIterator<PairedMappedFragment<SAMFragment>>(fragments.sortedIterator(region, fullyContained), getFilters());
+	}
+
+	/**
+	 * Without filters the fragment records are counted as they are, without splitting them into reads
+	 */
+	@Override
+	public int numOverlappers(Annotation region, boolean fullyContained) {
+		if(!getFilters().isEmpty()){return super.numOverlappers(region, fullyContained);}
+		return getPairedEndFragmentFile().countOverlapping(region);
 	}
 
 	/**
@@ -174,20 +460,17 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 
 		CloseableIterator<SAMFragment> iter;
 		Pair<SAMFragment> fullyFormed;
-		Map<String, Pair<SAMFragment>> partials;
-		String currentReference="";
-		IntervalTree<String> matePosition;
+		MatePairer mates;
+		int currentReference=ReferenceDictionary.NO_REFERENCE;
 
 		public PairedIterator(CloseableIterator<SAMFragment> iter){
 			this.iter=iter;
-			this.partials=new TreeMap<String, Pair<SAMFragment>>();
-			this.matePosition=new IntervalTree<String>();
+			this.mates=new MatePairer(reads.getFileHeader(), maxPendingMates);
 		}
 
 		@Override
 		public boolean hasNext() {
 			if(fullyFormed!=null){ return true;}
-			//else if(iter.hasNext()){update(); return hasNext();}
 			findNext();
 			return fullyFormed!=null;
 		}
@@ -198,65 +481,23 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 				SAMFragment read=iter.next();
 	
 				//When switching from chromosome we should clear cache
-				if(!read.getReferenceName().equalsIgnoreCase(currentReference)){
-					currentReference=read.getReferenceName();
-					this.partials=new TreeMap<String, Pair<SAMFragment>>();
-					this.matePosition=new IntervalTree<String>();
+				if(read.getReferenceId()!=currentReference){
+					currentReference=read.getReferenceId();
+					mates.clear();
 				}
 	
-	
 				//check if read has a pair
 				boolean isPaired=read.getSamRecord().getReadPairedFlag();
 				boolean mateMapped=!read.getSamRecord().getMateUnmappedFlag();
-				boolean onSameReference=read.getSamRecord().getReferenceName().equalsIgnoreCase(read.getSamRecord().getMateReferenceName());
+				boolean onSameReference=read.getReferenceId()==ReferenceDictionary.getId(read.getMateReferenceName());
 	
 				if(isPaired && mateMapped && onSameReference){
-					Pair<SAMFragment> pair;
-					if(partials.containsKey(read.getName())){
-						pair=partials.remove(read.getName());
-					}
-					else{pair=new Pair<SAMFragment>();}
-	
-					if(read.getSamRecord().getFirstOfPairFlag()){
-						//if(pair.hasValue1()){System.err.println("WARN: Overriding value 1");}
-						pair.setValue1(read);
-					}
-					else{
-						//if(pair.hasValue2()){System.err.println("WARN: Overriding value 2");}
-						pair.setValue2(read);
-					}
-	
-					if(pair.hasValue1() && pair.hasValue2()){
-						fullyFormed=pair;
-						this.matePosition.remove(read.getSamRecord().getAlignmentStart(), read.getSamRecord().getAlignmentStart());
-					}
-					else if(read.getSamRecord().getAlignmentStart()<read.getSamRecord().getMateAlignmentStart()){
-						partials.put(read.getName(), pair);
-						this.matePosition.put(read.getSamRecord().getMateAlignmentStart(), read.getSamRecord().getMateAlignmentStart(), read.getName());
-					}
-					else{
-						//TODO Consider saving the unmapped reads
-					}
-	
-					removePartials(read);
+					//TODO Consider saving the unmapped reads
+					fullyFormed=mates.add(read);
 				}
 			}
 		}
 
-		/**
-		 * Check the number of partials less than the read-max
-		 * @param read
-		 * @return
-		 */
-		private void removePartials(SAMFragment read) {
-			Iterator<Node<String>> iter=this.matePosition.reverseIterator(read.getSamRecord().getAlignmentStart(), read.getSamRecord().getAlignmentStart());
-			while(iter.hasNext()){
-				Node<String> node=iter.next();
-				Pair<SAMFragment> pair=this.partials.remove(node.getValue()); //TODO Consider saving the unmapped reads
-				this.matePosition.remove(node.getStart(), node.getEnd());
-			}
-		}
-
 		@Override
 		public PairedMappedFragment<SAMFragment> next() {
 			PairedMappedFragment<SAMFragment> rtrn=new PairedMappedFragment<SAMFragment>(fullyFormed);
@@ -272,7 +513,7 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		@Override
 		public void close() {
 			iter.close();
-
+			mates.close();
 		}}
 	
 	public void writeToFile(String fileName) {
@@ -314,23 +555,39 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 	 */
 	private class SpecialBAMPECollection extends AbstractAnnotationCollection<PairedMappedFragment<SAMFragment>>{
 
-		private SAMFileReader reader;
+		private SAMFileReaderPool readers;
 		private CoordinateSpace referenceSpace;
 		
 		public SpecialBAMPECollection(File bamFile){
 			super();
-			this.reader=new SAMFileReader(bamFile);
-			this.referenceSpace=new CoordinateSpace(reader.getFileHeader());
+			this.readers=new SAMFileReaderPool(bamFile);
+			this.referenceSpace=new CoordinateSpace(readers.getFileHeader());
 		}
 
 		@Override
 		public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator() {
-			return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(reader), getFilters());
+			return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(readers.iterator()), getFilters());
 		}
 
 		@Override
 		public CloseableIterator<PairedMappedFragment<SAMFragment>> sortedIterator(Annotation region, boolean fullyContained) {
-			return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(reader, region), getFilters());
+			return new FilteredIterator<PairedMappedFragment<SAMFragment>>(new WrappedIterator(readers.queryOverlapping(region.getReferenceName(), region.getReferenceStartPosition()+1, region.getReferenceEndPosition())), getFilters());
+		}
+
+		/**
+		 * @return The number of fragment records overlapping the region, as returned by sortedIterator(region) without filters
+		 */
+		public int countOverlapping(Annotation region) {
+			SAMRecordIterator iter=readers.queryOverlapping(region.getReferenceName(), region.getReferenceStartPosition()+1, region.getReferenceEndPosition());
+			int counter=0;
+			try{
+				while(iter.hasNext()){
+					iter.next();
+					counter++;
+				}
+			}
+			finally{iter.close();}
+			return counter;
 		}
 
 		public void writeToFile(String fileName) {
@@ -342,7 +599,7 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		}
 		
 		private void writeToFile(String fileName, CloseableIterator<PairedMappedFragment<SAMFragment>> iter){
-			SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(reader.getFileHeader(), false, new File(fileName));
+			SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(readers.getFileHeader(), false, new File(fileName));
 		
 			while(iter.hasNext()){
 				PairedMappedFragment<SAMFragment> ann=iter.next();
@@ -369,12 +626,8 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 
 			SAMRecordIterator iter;
 			
-			public WrappedIterator(SAMFileReader reader){
-				this.iter=reader.iterator();
-			}
-			
-			public WrappedIterator(SAMFileReader reader, Annotation region) {
-				this.iter=reader.queryOverlapping(region.getReferenceName(), region.getReferenceStartPosition()+1, region.getReferenceEndPosition());
+			public WrappedIterator(SAMRecordIterator iter){
+				this.iter=iter;
 			}
 
 			@Override
@@ -382,63 +635,13 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 				return iter.hasNext();
 			}
 
+			/**
+			 * Both reads are views of the fragment record
+			 */
 			@Override
 			public PairedMappedFragment<SAMFragment> next() {
 				SAMRecord record=iter.next();
-				PairedMappedFragment<SAMFragment> reads=getSAMRecords(reader.getFileHeader(), record);
-				return reads;
-			}
-
-			/**
-			 * Split the record into the two component reads
-			 * @param fileHeader The file header from the parsed BAM file
-			 * @param record The record to split
-			 * @return The paired end fragment with the two reads
-			 */
-			private PairedMappedFragment<SAMFragment> getSAMRecords(SAMFileHeader fileHeader, SAMRecord record) {
-				//Make Read1
-				SAMRecord read1=new SAMRecord(fileHeader);
-				read1.setAlignmentStart(record.getAlignmentStart());
-				read1.setCigarString(record.getAttribute(ALIGNMENT_CIGAR).toString());
-				read1.setFirstOfPairFlag(record.getFirstOfPairFlag());
-				read1.setReadName(record.getReadName());
-				read1.setReadNegativeStrandFlag(record.getReadNegativeStrandFlag());
-				read1.setReferenceName(record.getReferenceName());
-				read1.setReadPairedFlag(true);
-				read1.setMappingQuality(record.getMappingQuality());
-				
-				//Make Read2
-				SAMRecord read2=new SAMRecord(fileHeader);
-				read2.setAlignmentStart(record.getMateAlignmentStart());
-				read2.setCigarString(record.getAttribute(MATE_CIGAR).toString());
-				read2.setFirstOfPairFlag(!record.getFirstOfPairFlag());
-				read2.setReadName(record.getReadName());
-				read2.setReadNegativeStrandFlag(record.getMateNegativeStrandFlag());
-				read2.setReferenceName(record.getMateReferenceName());
-				read2.setReadPairedFlag(true);
-				read2.setMappingQuality(new Integer(record.getAttribute(MATE_MAPPING_QUALITY).toString()));
-				
-				//Add mate info to each read
-				//Read1
-				read1.setMateAlignmentStart(record.getMateAlignmentStart());
-				read1.setMateNegativeStrandFlag(record.getMateNegativeStrandFlag());
-				read1.setMateReferenceName(record.getMateReferenceName());
-				read1.setMateUnmappedFlag(record.getMateUnmappedFlag());
-				read1.setProperPairFlag(record.getProperPairFlag());
-				
-				//Read2
-				read2.setMateAlignmentStart(record.getAlignmentStart());
-				read2.setMateNegativeStrandFlag(record.getReadNegativeStrandFlag());
-				read2.setMateReferenceName(record.getReferenceName());
-				read2.setMateUnmappedFlag(record.getReadUnmappedFlag());
-				read2.setProperPairFlag(record.getProperPairFlag());
-				
-				SAMFragment frag1=new SAMFragment(read1);
-				SAMFragment frag2=new SAMFragment(read2);
-				
-				if(!record.getFirstOfPairFlag()){return new PairedMappedFragment<SAMFragment>(frag1, frag2);}
-				
-				return new PairedMappedFragment<SAMFragment>(frag1, frag2);	
+				return new PairedMappedFragment<SAMFragment>(new FragmentRead(record, false), new FragmentRead(record, true));
 			}
 
 			@Override
@@ -449,6 +652,188 @@ public class BAMPairedFragmentCollection extends AbstractAnnotationCollection<Pa
 		}
 	}	
 	
+	/**
+	 * Pair the reads of a BAM collated by read name
+	 * Only the reads of the current name are held, so memory does not grow with the insert size or the file
+	 * Reads pair as in PairedIterator: both mapped to the same reference, each at the other's mate position
+	 * @author mguttman
+	 *
+	 */
+	private class CollatedPairIterator implements CloseableIterator<PairedMappedFragment<SAMFragment>>{
+
+		CloseableIterator<SAMFragment> iter;
+		/**
+		 * The first read of the next name
+		 */
+		SAMFragment nextRead;
+		List<SAMFragment> group=new ArrayList<SAMFragment>();
+		Queue<Pair<SAMFragment>> fullyFormed=new ArrayDeque<Pair<SAMFragment>>();
+
+		public CollatedPairIterator(CloseableIterator<SAMFragment> iter){
+			this.iter=iter;
+			this.nextRead=iter.hasNext() ? iter.next() : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(fullyFormed.isEmpty() && nextRead!=null){
+				readGroup();
+				pairGroup();
+			}
+			return !fullyFormed.isEmpty();
+		}
+
+		/**
+		 * Collect the reads sharing the name of the next read
+		 */
+		private void readGroup() {
+			group.clear();
+			String name=nextRead.getName();
+			while(nextRead!=null && nextRead.getName().equals(name)){
+				if(isMappedPair(nextRead.getSamRecord())){group.add(nextRead);}
+				nextRead=iter.hasNext() ? iter.next() : null;
+			}
+		}
+
+		private boolean isMappedPair(SAMRecord record) {
+			return record.getReadPairedFlag() && !record.getReadUnmappedFlag() && !record.getMateUnmappedFlag() && record.getReferenceIndex().equals(record.getMateReferenceIndex());
+		}
+
+		/**
+		 * Pair each first of pair read with a second of pair read at its mate position
+		 */
+		private void pairGroup() {
+			for(int i=0; i<group.size(); i++){
+				if(group.get(i)==null || !group.get(i).getSamRecord().getFirstOfPairFlag()){continue;}
+				SAMRecord first=group.get(i).getSamRecord();
+				for(int j=0; j<group.size(); j++){
+					SAMFragment mate=group.get(j);
+					if(mate==null || i==j){continue;}
+					SAMRecord second=mate.getSamRecord();
+					if(second.getSecondOfPairFlag() && second.getAlignmentStart()==first.getMateAlignmentStart() && first.getAlignmentStart()==second.getMateAlignmentStart()){
+						fullyFormed.add(new Pair<SAMFragment>(group.get(i), mate));
+						group.set(j, null);
+						break;
+					}
+				}
+			}
+		}
+
+		@Override
+		public PairedMappedFragment<SAMFragment> next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			return new PairedMappedFragment<SAMFragment>(fullyFormed.poll());
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			iter.close();
+		}
+	}
+	
+	/**
+	 * One read of a record of the fragment file, read from the record's fields and its packed cigars
+	 * The SAMRecord of the read is only made if getSamRecord is called
+	 * @author mguttman
+	 */
+	private static class FragmentRead extends SAMFragment {
+		
+		private SAMRecord fragment;
+		/**
+		 * Whether this is the read stored as the mate of the fragment record
+		 */
+		private boolean mate;
+		private SAMRecord record;
+		
+		FragmentRead(SAMRecord fragment, boolean mate){
+			super(false);
+			this.fragment=fragment;
+			this.mate=mate;
+		}
+		
+		@Override
+		protected BlockedAnnotation decodeBlocks() {
+			int[] cigar=fragment.getSignedIntArrayAttribute(mate ? MATE_CIGAR : ALIGNMENT_CIGAR);
+			return SAMFragment.parseCigar(cigar, getReferenceName(), getReferenceStartPosition(), getOrientation(), getName());
+		}
+		
+		@Override
+		public String getName() {
+			return fragment.getReadName();
+		}
+		
+		@Override
+		public String getReferenceName() {
+			return mate ? fragment.getMateReferenceName() : fragment.getReferenceName();
+		}
+		
+		@Override
+		public int getReferenceStartPosition() {
+			return (mate ? fragment.getMateAlignmentStart() : fragment.getAlignmentStart())-1;
+		}
+		
+		private boolean isNegativeStrand() {
+			return mate ? fragment.getMateNegativeStrandFlag() : fragment.getReadNegativeStrandFlag();
+		}
+		
+		@Override
+		public Strand getOrientation() {
+			return getOrientation(isNegativeStrand(), fragment.getFirstOfPairFlag()!=mate);
+		}
+		
+		@Override
+		public Strand getReadOrientation() {
+			return isNegativeStrand() ? Strand.NEGATIVE : Strand.POSITIVE;
+		}
+		
+		@Override
+		public boolean isPaired() {
+			return true;
+		}
+		
+		@Override
+		public int getMateReferenceStart() {
+			return (mate ? fragment.getAlignmentStart() : fragment.getMateAlignmentStart())-1;
+		}
+		
+		@Override
+		public String getMateReferenceName() {
+			return mate ? fragment.getReferenceName() : fragment.getMateReferenceName();
+		}
+		
+		@Override
+		public int getMappingQuality() {
+			return mate ? fragment.getIntegerAttribute(MATE_MAPPING_QUALITY).intValue() : fragment.getMappingQuality();
+		}
+		
+		@Override
+		public synchronized SAMRecord getSamRecord() {
+			if(record==null){
+				SAMRecord read=new SAMRecord(fragment.getHeader());
+				read.setReadName(getName());
+				read.setReferenceName(getReferenceName());
+				read.setAlignmentStart(getReferenceStartPosition()+1);
+				read.setCigar(SAMFragment.unpackCigar(fragment.getSignedIntArrayAttribute(mate ? MATE_CIGAR : ALIGNMENT_CIGAR)));
+				read.setReadPairedFlag(true);
+				read.setFirstOfPairFlag(fragment.getFirstOfPairFlag()!=mate);
+				read.setReadNegativeStrandFlag(isNegativeStrand());
+				read.setMappingQuality(getMappingQuality());
+				read.setMateReferenceName(getMateReferenceName());
+				read.setMateAlignmentStart(getMateReferenceStart()+1);
+				read.setMateNegativeStrandFlag(mate ? fragment.getReadNegativeStrandFlag() : fragment.getMateNegativeStrandFlag());
+				read.setMateUnmappedFlag(mate ? fragment.getReadUnmappedFlag() : fragment.getMateUnmappedFlag());
+				read.setProperPairFlag(fragment.getProperPairFlag());
+				record=read;
+			}
+			return record;
+		}
+	}
+	
 	/*public BAMPairedFragmentCollection convert(AnnotationCollection<? extends Annotation> features, boolean fullyContained){
 		//TODO This needs to be rewritten directly use the paired end iterator to write to disk
 		return new BAMPairedFragmentCollection(this.reads.convert(features, fullyContained));
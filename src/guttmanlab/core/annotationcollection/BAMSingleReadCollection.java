@@ -5,13 +5,33 @@ import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.PairedMappedFragment;
 import guttmanlab.core.annotation.SAMFragment;
 import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.predicate.MappedReadFilter;
 import guttmanlab.core.annotation.predicate.StrandFilter;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.collections15.Predicate;
+
+import net.sf.samtools.AbstractBAMFileIndex;
+import net.sf.samtools.BAMIndexMetaData;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
@@ -19,6 +39,7 @@ import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
 import net.sf.samtools.util.CloseableIterator;
 
 /**
@@ -28,14 +49,21 @@ import net.sf.samtools.util.CloseableIterator;
  */
 public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFragment>{
 
-	private SAMFileReader reader;
+	/**
+	 * Block queries this close together are read in one pass; it is the width of a window of the BAM linear index
+	 */
+	private static final int COALESCE_DISTANCE=16384;
+	/**
+	 * Each open iterator has a reader of its own, so iterators can be open at the same time and used from several threads
+	 */
+	private SAMFileReaderPool readers;
 	private CoordinateSpace referenceSpace;
 	private String bam;
 	
 	public BAMSingleReadCollection(File bamFile){
 		super();
-		this.reader=new SAMFileReader(bamFile);
-		this.referenceSpace=new CoordinateSpace(reader.getFileHeader());
+		this.readers=new SAMFileReaderPool(bamFile);
+		this.referenceSpace=new CoordinateSpace(readers.getFileHeader());
 		this.bam = bamFile.getName();
 	}
 
@@ -43,6 +71,13 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		return bam;
 	}
 	
+	/**
+	 * Close the readers of the BAM file; iterators still open keep their reader until they are closed
+	 */
+	public void close() {
+		readers.close();
+	}
+	
 	public String toString() {
 		return getBamFile().replaceAll(".bam","");
 	}
@@ -50,7 +85,7 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 	
 	@Override
 	public CloseableIterator<SAMFragment> sortedIterator() {
-		return new FilteredIterator<SAMFragment>(new WrappedIterator(reader.iterator()), getFilters());
+		return new FilteredIterator<SAMFragment>(new WrappedIterator(readers.iterator()), getFilters());
 	}
 
 	@Override
@@ -59,7 +94,277 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		return new FilteredIterator<SAMFragment>(iter_chain, getFilters(),region.getOrientation());
 	}
 	
-	public class CloseableIteratorChain implements Iterator<SAMFragment>{
+	/**
+	 * Reads overlapping any of the regions, each read returned once, in file order
+	 * The blocks of all regions are sorted and those close enough to share BGZF blocks are read in a single pass,
+	 * so one sequential scan serves a whole list of genes
+	 * @param regions The regions; each keeps its own strand and fullyContained test
+	 * @param fullyContained Whether reads must be fully contained in a region
+	 * @return An iterator over the reads
+	 */
+	public CloseableIterator<SAMFragment> sortedIterator(Collection<? extends Annotation> regions, boolean fullyContained) {
+		return new FilteredIterator<SAMFragment>(new MultiRegionIterator(regions, fullyContained), getFilters());
+	}
+	
+	/**
+	 * Counts what sortedIterator(region, fullyContained) would return, reads overlapping several blocks once per block
+	 * Overlap is decided from the alignment span and flags; a read is only turned into a SAMFragment when it
+	 * reaches past the edge of the block it was found in, or when there are filters to evaluate
+	 */
+	@Override
+	public int numOverlappers(Annotation region, boolean fullyContained) {
+		//Whether a read on each strand is compatible with the region and passes its strand filter
+		SingleInterval first=null;
+		Iterator<SingleInterval> blocks=region.getBlocks();
+		while(blocks.hasNext() && first==null){
+			SingleInterval block=blocks.next();
+			if(block.size()>0){first=block;}
+		}
+		if(first==null){return super.numOverlappers(region, fullyContained);}
+		StrandFilter<Annotation> strandFilter=new StrandFilter<Annotation>(region.getOrientation());
+		SingleInterval plus=new SingleInterval(region.getReferenceName(), first.getReferenceStartPosition(), first.getReferenceEndPosition(), Strand.POSITIVE);
+		SingleInterval minus=new SingleInterval(region.getReferenceName(), first.getReferenceStartPosition(), first.getReferenceEndPosition(), Strand.NEGATIVE);
+		boolean acceptPlus=region.overlaps(plus) && strandFilter.evaluate(plus);
+		boolean acceptMinus=region.overlaps(minus) && strandFilter.evaluate(minus);
+		
+		Collection<Predicate<SAMFragment>> filters=getFilters();
+		ReadSpan span=new ReadSpan();
+		int counter=0;
+		blocks=region.getBlocks();
+		while(blocks.hasNext()){
+			SingleInterval block=blocks.next();
+			int blockStart=block.getReferenceStartPosition();
+			int blockEnd=block.getReferenceEndPosition();
+			SAMRecordIterator iter=readers.queryOverlapping(region.getReferenceName(), blockStart+1, blockEnd);
+			try{
+				while(iter.hasNext()){
+					SAMRecord record=iter.next();
+					if(!(isNegative(record) ? acceptMinus : acceptPlus)){continue;}
+					span.set(record);
+					if(span.numBlocks==0 || span.end<=region.getReferenceStartPosition() || span.firstBlockStart>=region.getReferenceEndPosition()){continue;}
+					
+					SAMFragment fragment=null;
+					boolean inBlock=span.start>=blockStart && span.end<=blockEnd;
+					boolean crossesBlock=span.numBlocks==1 && !fullyContained && span.firstBlockStart<blockEnd && span.end>blockStart;
+					if(!inBlock && !crossesBlock){
+						fragment=new SAMFragment(record);
+						if(!region.overlaps(fragment, fullyContained)){continue;}
+					}
+					if(!filters.isEmpty()){
+						if(fragment==null){fragment=new SAMFragment(record);}
+						if(!passes(fragment, filters)){continue;}
+					}
+					counter++;
+				}
+			}
+			finally{iter.close();}
+		}
+		return counter;
+	}
+	
+	private static boolean passes(SAMFragment fragment, Collection<Predicate<SAMFragment>> filters){
+		for(Predicate<SAMFragment> filter: filters){
+			if(!filter.evaluate(fragment)){return false;}
+		}
+		return true;
+	}
+	
+	/**
+	 * The strand SAMFragment gives a read, from its flags
+	 */
+	private static boolean isNegative(SAMRecord record){
+		boolean rtrn=record.getReadNegativeStrandFlag();
+		if(record.getReadPairedFlag() && record.getFirstOfPairFlag()){rtrn=!rtrn;}
+		return rtrn;
+	}
+	
+	/**
+	 * The extent of a read's aligned blocks, walked from the cigar without building the blocks
+	 * Blocks are split the same way as in SAMFragment: by deletions and skipped regions
+	 */
+	private static class ReadSpan {
+		int start;
+		int firstBlockStart;
+		int end;
+		int numBlocks;
+		
+		void set(SAMRecord record){
+			start=record.getAlignmentStart()-1;
+			numBlocks=0;
+			int position=start;
+			int blockStart=start;
+			for(CigarElement element: record.getCigar().getCigarElements()){
+				CigarOperator op=element.getOperator();
+				if(!op.consumesReferenceBases()){continue;}
+				if(!op.consumesReadBases()){
+					addBlock(blockStart, position);
+					blockStart=position+element.getLength();
+				}
+				position+=element.getLength();
+			}
+			addBlock(blockStart, position);
+		}
+		
+		private void addBlock(int blockStart, int blockEnd){
+			if(blockEnd<=blockStart){return;}
+			if(numBlocks==0){firstBlockStart=blockStart;}
+			end=blockEnd;
+			numBlocks++;
+		}
+	}
+	
+	/**
+	 * Scans the coalesced block spans of each reference in turn and returns the reads overlapping some region
+	 * A read found by two neighbouring scans is only returned by the first one
+	 * @author mguttman
+	 *
+	 */
+	private class MultiRegionIterator implements CloseableIterator<SAMFragment>{
+		
+		private Iterator<List<Annotation>> references;
+		private boolean fullyContained;
+		private String referenceName;
+		/**
+		 * Regions on the current reference, by start
+		 */
+		private List<Annotation> regions;
+		/**
+		 * Coalesced spans on the current reference, as 1-based inclusive start and end pairs
+		 */
+		private List<int[]> spans;
+		private int nextSpan;
+		private int nextRegion;
+		private List<Annotation> activeRegions;
+		private SAMRecordIterator currentIterator;
+		private int previousSpanEnd;
+		private SAMFragment next;
+		
+		MultiRegionIterator(Collection<? extends Annotation> regions, boolean fullyContained){
+			//Group by reference, in BAM header order
+			Map<Integer, List<Annotation>> byReference=new TreeMap<Integer, List<Annotation>>();
+			for(Annotation region: regions){
+				int index=readers.getFileHeader().getSequenceIndex(region.getReferenceName());
+				if(index<0){continue;}
+				List<Annotation> list=byReference.get(index);
+				if(list==null){
+					list=new ArrayList<Annotation>();
+					byReference.put(index, list);
+				}
+				list.add(region);
+			}
+			this.references=byReference.values().iterator();
+			this.fullyContained=fullyContained;
+			this.activeRegions=new ArrayList<Annotation>();
+		}
+		
+		private void startReference(List<Annotation> regions){
+			Collections.sort(regions, new Comparator<Annotation>(){
+				@Override
+				public int compare(Annotation a, Annotation b) {
+					return Integer.compare(a.getReferenceStartPosition(), b.getReferenceStartPosition());
+				}
+			});
+			List<int[]> blocks=new ArrayList<int[]>();
+			for(Annotation region: regions){
+				Iterator<SingleInterval> iter=region.getBlocks();
+				while(iter.hasNext()){
+					SingleInterval block=iter.next();
+					blocks.add(new int[]{block.getReferenceStartPosition()+1, block.getReferenceEndPosition()});
+				}
+			}
+			Collections.sort(blocks, new Comparator<int[]>(){
+				@Override
+				public int compare(int[] a, int[] b) {
+					return Integer.compare(a[0], b[0]);
+				}
+			});
+			List<int[]> spans=new ArrayList<int[]>();
+			int[] current=null;
+			for(int[] block: blocks){
+				if(current!=null && block[0]-current[1]<=COALESCE_DISTANCE){current[1]=Math.max(current[1], block[1]);}
+				else{
+					current=block;
+					spans.add(current);
+				}
+			}
+			this.referenceName=regions.get(0).getReferenceName();
+			this.regions=regions;
+			this.spans=spans;
+			this.nextSpan=0;
+			this.nextRegion=0;
+			this.activeRegions.clear();
+			this.previousSpanEnd=0;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while(next==null){
+				if(currentIterator==null){
+					if(spans==null || nextSpan==spans.size()){
+						if(!references.hasNext()){return false;}
+						startReference(references.next());
+						continue;
+					}
+					int[] span=spans.get(nextSpan++);
+					currentIterator=readers.queryOverlapping(referenceName, span[0], span[1]);
+				}
+				if(!currentIterator.hasNext()){
+					currentIterator.close();
+					currentIterator=null;
+					previousSpanEnd=spans.get(nextSpan-1)[1];
+					continue;
+				}
+				SAMRecord record=currentIterator.next();
+				//Already returned by the scan of the previous span
+				if(record.getAlignmentStart()<=previousSpanEnd){continue;}
+				SAMFragment fragment=new SAMFragment(record);
+				if(overlapsRegion(fragment)){next=fragment;}
+			}
+			return true;
+		}
+		
+		/**
+		 * Regions are swept along with the reads, since both are sorted by start
+		 */
+		private boolean overlapsRegion(SAMFragment fragment){
+			int start=fragment.getReferenceStartPosition();
+			int end=fragment.getReferenceEndPosition();
+			while(nextRegion<regions.size() && regions.get(nextRegion).getReferenceStartPosition()<end){
+				activeRegions.add(regions.get(nextRegion++));
+			}
+			boolean rtrn=false;
+			Iterator<Annotation> iter=activeRegions.iterator();
+			while(iter.hasNext()){
+				Annotation region=iter.next();
+				if(region.getReferenceEndPosition()<=start){iter.remove();}
+				else if(!rtrn && region.overlaps(fragment, fullyContained) && new StrandFilter<SAMFragment>(region.getOrientation()).evaluate(fragment)){rtrn=true;}
+			}
+			return rtrn;
+		}
+
+		@Override
+		public SAMFragment next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			SAMFragment rtrn=next;
+			next=null;
+			return rtrn;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			if(currentIterator!=null){currentIterator.close();}
+		}
+	}
+	
+	/**
+	 * Reads overlapping each block of a region in turn; each block query holds a pooled reader until it runs out or the chain is closed
+	 */
+	public class CloseableIteratorChain implements CloseableIterator<SAMFragment>{
 		
 		private CloseableIterator<SAMFragment> currentIterator;
 		private Iterator<SingleInterval> blocks;
@@ -83,7 +388,7 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 				if(blocks.hasNext())
 				{
 					Annotation block = blocks.next();
-					currentIterator = new WrappedIterator(reader.queryOverlapping(region.getReferenceName(), block.getReferenceStartPosition()+1,block.getReferenceEndPosition()), region, fullyContained);
+					currentIterator = new WrappedIterator(readers.queryOverlapping(region.getReferenceName(), block.getReferenceStartPosition()+1,block.getReferenceEndPosition()), region, fullyContained);
 					return hasNext();
 				}
 				else //there were no more blocks
@@ -139,6 +444,19 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		public void remove() {
 			throw new UnsupportedOperationException();
 		}
+
+		/**
+		 * Gives the reader of the current block back, for callers that stop before the end
+		 */
+		@Override
+		public void close() {
+			if(currentIterator!=null){
+				currentIterator.close();
+				currentIterator=null;
+			}
+			blocks=Collections.<SingleInterval>emptyList().iterator();
+			next=null;
+		}
 	}
 
 		
@@ -149,7 +467,7 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 	}
 	
 	private void writeToFile(String fileName, CloseableIterator<SAMFragment> iter){
-		SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(this.reader.getFileHeader(), false, new File(fileName));
+		SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).makeSAMOrBAMWriter(this.readers.getFileHeader(), false, new File(fileName));
 		
 		while(iter.hasNext()){
 			SAMFragment ann=iter.next();
@@ -217,19 +535,143 @@ public class BAMSingleReadCollection extends AbstractAnnotationCollection<SAMFra
 		}
 	}
 
+	/**
+	 * Unfiltered counts, and counts of mapped reads, come straight from the BAM index
+	 * Other filters are evaluated by counting each reference on its own thread, so they must be safe to share between threads
+	 */
+	@Override
+	protected int countAnnotations(){
+		return countAnnotations(Runtime.getRuntime().availableProcessors());
+	}
+	
+	@Override
+	protected int countAnnotations(int numThreads){
+		if(!readers.hasIndex()){return super.countAnnotations();}
+		Integer rtrn=countFromIndex();
+		if(rtrn!=null){return rtrn;}
+		return countInParallel(numThreads);
+	}
+	
+	/**
+	 * Reads are taken straight from the index query for the shard, without building a region to test them against;
+	 * the unplaced shard holds the reads without a position, from the end of the file
+	 * Requires an indexed BAM
+	 */
+	@Override
+	protected CloseableIterator<SAMFragment> shardIterator(Annotation shard){
+		if(shard==UNPLACED_SHARD){return new FilteredIterator<SAMFragment>(new WrappedIterator(readers.queryUnmapped()), getFilters());}
+		int end=shard.getReferenceEndPosition()==Integer.MAX_VALUE ? 0 : shard.getReferenceEndPosition();
+		SAMRecordIterator records=readers.query(shard.getReferenceName(), shard.getReferenceStartPosition()+1, end, false);
+		CloseableIterator<SAMFragment> iter=new FilteredIterator<SAMFragment>(new WrappedIterator(records), getFilters());
+		return new FilteredIterator<SAMFragment>(iter, new StartsIn<SAMFragment>(shard));
+	}
+	
+	/**
+	 * @return The count from the index metadata, or null if the index cannot answer for the current filters
+	 */
+	private Integer countFromIndex(){
+		boolean mappedOnly=false;
+		for(Predicate<SAMFragment> filter: getFilters()){
+			if(filter instanceof MappedReadFilter){mappedOnly=true;}
+			else{return null;}
+		}
+		SAMFileReader reader=readers.acquire();
+		try{
+			if(!(reader.getIndex() instanceof AbstractBAMFileIndex)){return null;}
+			AbstractBAMFileIndex index=(AbstractBAMFileIndex)reader.getIndex();
+			long rtrn=0;
+			int numReferences=readers.getFileHeader().getSequenceDictionary().size();
+			for(int i=0; i<numReferences; i++){
+				BAMIndexMetaData metaData=index.getMetaData(i);
+				rtrn+=metaData.getAlignedRecordCount();
+				if(!mappedOnly){rtrn+=metaData.getUnalignedRecordCount();}
+			}
+			if(!mappedOnly){
+				//Reads without a position are not in any reference's metadata; older indices do not record them
+				Long noCoordinate=index.getNoCoordinateCount();
+				if(noCoordinate==null){return null;}
+				rtrn+=noCoordinate;
+			}
+			return (int)rtrn;
+		}
+		finally{readers.release(reader);}
+	}
+	
+	private int countInParallel(int numThreads){
+		final List<Predicate<SAMFragment>> filters=new ArrayList<Predicate<SAMFragment>>(getFilters());
+		List<String> references=new ArrayList<String>();
+		for(SAMSequenceRecord sequence: readers.getFileHeader().getSequenceDictionary().getSequences()){
+			references.add(sequence.getSequenceName());
+		}
+		//Reads without a position are counted on their own
+		references.add(null);
+		
+		ExecutorService executor=Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, references.size())));
+		try{
+			List<Future<Integer>> counts=new ArrayList<Future<Integer>>();
+			for(final String reference: references){
+				counts.add(executor.submit(new Callable<Integer>(){
+					@Override
+					public Integer call() {
+						return count(reference, filters);
+					}
+				}));
+			}
+			long rtrn=0;
+			for(Future<Integer> count: counts){
+				rtrn+=count.get();
+			}
+			return (int)rtrn;
+		}
+		catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while counting "+bam, ex);
+		}
+		catch(ExecutionException ex){
+			Throwable cause=ex.getCause();
+			if(cause instanceof RuntimeException){throw (RuntimeException)cause;}
+			if(cause instanceof Error){throw (Error)cause;}
+			throw new IllegalStateException(cause);
+		}
+		finally{executor.shutdownNow();}
+	}
+	
+	/**
+	 * Count one reference
+	 * @param reference The reference name, or null for reads without a position
+	 */
+	private int count(String reference, List<Predicate<SAMFragment>> filters){
+		SAMRecordIterator records=reference==null ? readers.queryUnmapped() : readers.query(reference, 0, 0, false);
+		CloseableIterator<SAMFragment> iter=new FilteredIterator<SAMFragment>(new WrappedIterator(records), filters);
+		int rtrn=0;
+		try{
+			while(iter.hasNext()){
+				iter.next();
+				rtrn++;
+			}
+		}
+		finally{iter.close();}
+		return rtrn;
+	}
+
 	@Override
 	public CoordinateSpace getReferenceCoordinateSpace() {
 		return this.referenceSpace;
 	}
 	
-	public SAMFileHeader getFileHeader(){return this.reader.getFileHeader();}
+	public SAMFileHeader getFileHeader(){return this.readers.getFileHeader();}
+
+	/**
+	 * @return Whether the BAM has an index, so that shardIterator can be used
+	 */
+	boolean hasIndex(){return readers.hasIndex();}
 
 	public PairedMappedFragment<SAMFragment> findReads(SAMFragment fragment) {
 		//TODO A few ideas about how to implement this, simplest, just look up alignment start and alignment end and match names
-		SAMRecordIterator alignment=this.reader.queryAlignmentStart(fragment.getSamRecord().getReferenceName(), fragment.getSamRecord().getAlignmentStart());
+		SAMRecordIterator alignment=this.readers.queryAlignmentStart(fragment.getSamRecord().getReferenceName(), fragment.getSamRecord().getAlignmentStart());
 		SAMFragment read1=findRead(alignment, fragment.getName());;
 		
-		SAMRecordIterator mate=this.reader.queryAlignmentStart(fragment.getSamRecord().getReferenceName(), fragment.getSamRecord().getMateAlignmentStart());
+		SAMRecordIterator mate=this.readers.queryAlignmentStart(fragment.getSamRecord().getReferenceName(), fragment.getSamRecord().getMateAlignmentStart());
 		SAMFragment read2=findRead(mate, fragment.getName());
 		
 		PairedMappedFragment<SAMFragment> rtrn=new PairedMappedFragment<SAMFragment>(read1, read2);
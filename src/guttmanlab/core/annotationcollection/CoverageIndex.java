@@ -0,0 +1,517 @@
+package guttmanlab.core.annotationcollection;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Fragment counts for any region, built in one pass over a collection
+ * For each reference and strand the block starts and block ends are kept as sorted arrays, so the number of blocks
+ * overlapping [s,e) is the number of starts before e less the number of ends at or before s, found by binary search
+ * A spliced fragment with several blocks in the region is counted once by subtracting the gaps between its blocks
+ * that fall inside the region; those are the only gaps read, so a count costs O(log n) plus the gaps opening in the region
+ * A region with several blocks counts each fragment once however many of its blocks the fragment overlaps: blocks spanning
+ * an intron of the region are taken off again, and so are spliced fragments that reach another block of the region across a gap,
+ * whose blocks are kept for this
+ *
+ * Fragments are split into positive, negative and unstranded tracks and combined as StrandFilter would for the region's strand
+ * The index can be written to a file and read back so that it is built once per collection; the file records the size and
+ * modification time of the source file and a checksum of the references of the collection, and is refused if they have changed
+ * @author mguttman
+ *
+ */
+public class CoverageIndex {
+
+	static final int MAGIC=0x47434f56;
+	static final int VERSION=2;
+	private static final Strand[] TRACKS={Strand.POSITIVE, Strand.NEGATIVE, Strand.BOTH};
+
+	/**
+	 * Tracks for each reference, indexed as TRACKS
+	 */
+	private Map<String, Track[]> references;
+	/**
+	 * Identity of the collection the index was built from, or null if it was not built from a file
+	 */
+	private String source;
+
+	private CoverageIndex(Map<String, Track[]> references, String source){
+		this.references=references;
+		this.source=source;
+	}
+
+	/**
+	 * Build the index of a collection read from a file, so the index can be written and checked against the file when read
+	 * @param collection The fragments to count
+	 * @param sourceFile The file the collection was read from
+	 * @return The index
+	 */
+	public static CoverageIndex build(AnnotationCollection<? extends Annotation> collection, File sourceFile){
+		CoverageIndex rtrn=build(collection);
+		rtrn.source=getSource(collection, sourceFile);
+		return rtrn;
+	}
+
+	/**
+	 * @return The size and modification time of the file and a checksum of the references of the collection
+	 */
+	private static String getSource(AnnotationCollection<? extends Annotation> collection, File sourceFile){
+		CRC32 crc=new CRC32();
+		CoordinateSpace space=collection.getReferenceCoordinateSpace();
+		if(space!=null){
+			for(Map.Entry<String, Integer> reference: space.getRefSeqLengths().entrySet()){
+				crc.update((reference.getKey()+"\t"+reference.getValue()+"\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return "size="+sourceFile.length()+"\tmtime="+sourceFile.lastModified()+"\treferences="+Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Build the index from the sorted iterator of a collection (using filters)
+	 * Fragments without blocks and fragments of unknown strand are not counted, as in numOverlappers
+	 * The index can only be written if it is built with build(collection, sourceFile)
+	 * @param collection The fragments to count
+	 * @return The index
+	 */
+	public static CoverageIndex build(AnnotationCollection<? extends Annotation> collection){
+		Map<String, Builder[]> builders=new LinkedHashMap<String, Builder[]>();
+		CloseableIterator<? extends Annotation> iter=collection.sortedIterator();
+		try{
+			while(iter.hasNext()){
+				Annotation fragment=iter.next();
+				int track=track(fragment.getOrientation());
+				if(track<0 || fragment.getNumberOfBlocks()==0){continue;}
+				Builder[] tracks=builders.get(fragment.getReferenceName());
+				if(tracks==null){
+					tracks=new Builder[TRACKS.length];
+					for(int i=0; i<tracks.length; i++){tracks[i]=new Builder();}
+					builders.put(fragment.getReferenceName(), tracks);
+				}
+				tracks[track].add(fragment);
+			}
+		}
+		finally{iter.close();}
+
+		Map<String, Track[]> references=new LinkedHashMap<String, Track[]>();
+		for(Map.Entry<String, Builder[]> entry: builders.entrySet()){
+			Track[] tracks=new Track[TRACKS.length];
+			for(int i=0; i<tracks.length; i++){tracks[i]=entry.getValue()[i].build();}
+			references.put(entry.getKey(), tracks);
+		}
+		return new CoverageIndex(references, null);
+	}
+
+	private static int track(Strand orientation){
+		for(int i=0; i<TRACKS.length; i++){
+			if(TRACKS[i].equals(orientation)){return i;}
+		}
+		return -1;
+	}
+
+	/**
+	 * Count the fragments overlapping an interval
+	 * @param reference The reference name
+	 * @param start Interval start
+	 * @param end Interval end, exclusive
+	 * @param strand POSITIVE or NEGATIVE to count that strand and unstranded fragments, BOTH to count all of them
+	 * @return The number of fragments with a block overlapping the interval
+	 */
+	public int count(String reference, int start, int end, Strand strand){
+		if(start>=end){return 0;}
+		return count(reference, new int[]{start}, new int[]{end}, strand);
+	}
+
+	/**
+	 * Count the fragments overlapping a region, each fragment once however many blocks of the region it overlaps,
+	 * as numOverlappers(region, false) does
+	 * @param region The region
+	 * @return The number of fragments with a block overlapping a block of the region, on the region's strand
+	 */
+	public int count(Annotation region){
+		int[] starts=new int[region.getNumberOfBlocks()];
+		int[] ends=new int[starts.length];
+		int numBlocks=0;
+		Iterator<SingleInterval> blocks=region.getBlocks();
+		while(blocks.hasNext()){
+			SingleInterval block=blocks.next();
+			if(block.getReferenceStartPosition()>=block.getReferenceEndPosition()){continue;}
+			starts[numBlocks]=block.getReferenceStartPosition();
+			ends[numBlocks]=block.getReferenceEndPosition();
+			numBlocks++;
+		}
+		if(numBlocks==0){return 0;}
+		return count(region.getReferenceName(), Arrays.copyOf(starts, numBlocks), Arrays.copyOf(ends, numBlocks), region.getOrientation());
+	}
+
+	/**
+	 * @param starts Block starts, sorted
+	 * @param ends Block ends, exclusive, sorted and not overlapping the next block
+	 */
+	private int count(String reference, int[] starts, int[] ends, Strand strand){
+		Track[] tracks=references.get(reference);
+		if(tracks==null){return 0;}
+		int rtrn=tracks[2].count(starts, ends);
+		if(strand.equals(Strand.BOTH) || strand.equals(Strand.POSITIVE)){rtrn+=tracks[0].count(starts, ends);}
+		if(strand.equals(Strand.BOTH) || strand.equals(Strand.NEGATIVE)){rtrn+=tracks[1].count(starts, ends);}
+		return rtrn;
+	}
+
+	/**
+	 * @param strand POSITIVE or NEGATIVE for that strand and unstranded fragments, BOTH for all of them
+	 * @return The number of fragments counted
+	 */
+	public int getNumFragments(Strand strand){
+		return count(strand, null);
+	}
+
+	/**
+	 * @param reference The reference name
+	 * @param strand POSITIVE or NEGATIVE for that strand and unstranded fragments, BOTH for all of them
+	 * @return The number of fragments counted on the reference
+	 */
+	public int getNumFragments(String reference, Strand strand){
+		return count(strand, reference);
+	}
+
+	private int count(Strand strand, String reference){
+		int rtrn=0;
+		for(Map.Entry<String, Track[]> entry: references.entrySet()){
+			if(reference!=null && !reference.equals(entry.getKey())){continue;}
+			Track[] tracks=entry.getValue();
+			rtrn+=tracks[2].numFragments;
+			if(strand.equals(Strand.BOTH) || strand.equals(Strand.POSITIVE)){rtrn+=tracks[0].numFragments;}
+			if(strand.equals(Strand.BOTH) || strand.equals(Strand.NEGATIVE)){rtrn+=tracks[1].numFragments;}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Write the index to a file, with the identity of its source
+	 * @param file The file to write
+	 * @throws IOException
+	 * @throws IllegalStateException If the index was not built with build(collection, sourceFile), so it could not be checked when read
+	 */
+	public void write(File file) throws IOException {
+		if(source==null){throw new IllegalStateException("Only an index built with build(collection, sourceFile) can be written");}
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(source);
+			out.writeInt(references.size());
+			for(Map.Entry<String, Track[]> entry: references.entrySet()){
+				out.writeUTF(entry.getKey());
+				for(Track track: entry.getValue()){
+					track.write(out);
+				}
+			}
+		}
+		finally{out.close();}
+	}
+
+	/**
+	 * Read an index written by write, checking that it was built from the current version of its source
+	 * @param file The file to read
+	 * @param collection The collection the index was built from
+	 * @param sourceFile The file the collection was read from
+	 * @return The index
+	 * @throws IOException If the file is not a coverage index of this version, or was built from another version of the source
+	 */
+	public static CoverageIndex read(File file, AnnotationCollection<? extends Annotation> collection, File sourceFile) throws IOException {
+		DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+		try{
+			if(in.readInt()!=MAGIC){throw new IOException(file+" is not a coverage index");}
+			int version=in.readInt();
+			if(version!=VERSION){throw new IOException(file+" is coverage index version "+version+", expected "+VERSION);}
+			String source=in.readUTF();
+			if(!source.equals(getSource(collection, sourceFile))){throw new IOException(file+" was built from another version of "+sourceFile+" and must be rebuilt");}
+			int numReferences=in.readInt();
+			Map<String, Track[]> references=new LinkedHashMap<String, Track[]>();
+			for(int i=0; i<numReferences; i++){
+				String name=in.readUTF();
+				Track[] tracks=new Track[TRACKS.length];
+				for(int j=0; j<tracks.length; j++){tracks[j]=Track.read(in);}
+				references.put(name, tracks);
+			}
+			return new CoverageIndex(references, source);
+		}
+		finally{in.close();}
+	}
+
+	/**
+	 * The fragments of one strand of one reference
+	 */
+	private static class Track {
+
+		final int numFragments;
+		final int[] blockStarts;
+		final int[] blockEnds;
+		/**
+		 * Ends of the blocks in the order of blockStarts, and the longest block, to find the blocks spanning an interval
+		 */
+		final int[] startOrderEnds;
+		final int maxBlockLength;
+		/**
+		 * Gaps between consecutive blocks of a fragment, sorted by start, with the matching ends and the spliced fragment each belongs to
+		 */
+		final int[] gapStarts;
+		final int[] gapEnds;
+		final int[] gapFragments;
+		/**
+		 * Blocks of the spliced fragments as start, end pairs; those of fragment i are from fragmentOffsets[i] to fragmentOffsets[i+1]
+		 */
+		final int[] fragmentOffsets;
+		final int[] fragmentBlocks;
+
+		Track(int numFragments, int[] blockStarts, int[] blockEnds, int[] startOrderEnds, int maxBlockLength, int[] gapStarts, int[] gapEnds, int[] gapFragments, int[] fragmentOffsets, int[] fragmentBlocks){
+			this.numFragments=numFragments;
+			this.blockStarts=blockStarts;
+			this.blockEnds=blockEnds;
+			this.startOrderEnds=startOrderEnds;
+			this.maxBlockLength=maxBlockLength;
+			this.gapStarts=gapStarts;
+			this.gapEnds=gapEnds;
+			this.gapFragments=gapFragments;
+			this.fragmentOffsets=fragmentOffsets;
+			this.fragmentBlocks=fragmentBlocks;
+		}
+
+		int count(int start, int end){
+			//Blocks starting before the end less blocks ending at or before the start
+			int rtrn=firstAtLeast(blockStarts, end)-firstAtLeast(blockEnds, start+1);
+			//A gap opening and closing inside the interval joins two counted blocks of one fragment
+			for(int i=firstAtLeast(gapStarts, start+1); i<gapStarts.length && gapStarts[i]<end; i++){
+				if(gapEnds[i]<end){rtrn--;}
+			}
+			return rtrn;
+		}
+
+		/**
+		 * A fragment overlapping m blocks of the region is counted m times by the blocks, so m-1 is taken off again
+		 * Going along the region, each repeat is either a block of the fragment spanning an intron of the region,
+		 * found from the blocks starting shortly before the intron, or a gap of the fragment and an intron of the region
+		 * both lying between two overlaps, found from the gaps opening inside the region
+		 * @param starts Block starts of a region, sorted
+		 * @param ends Block ends of the region
+		 * @return The number of fragments overlapping a block of the region
+		 */
+		int count(int[] starts, int[] ends){
+			int rtrn=0;
+			for(int i=0; i<starts.length; i++){
+				rtrn+=count(starts[i], ends[i]);
+			}
+			if(starts.length<2){return rtrn;}
+			for(int i=1; i<starts.length; i++){
+				rtrn-=numSpanning(ends[i-1], starts[i]);
+			}
+			int first=firstAtLeast(gapStarts, starts[0]+1);
+			int last=firstAtLeast(gapStarts, ends[ends.length-1]);
+			if(first>=last){return rtrn;}
+			int[] fragments=Arrays.copyOfRange(gapFragments, first, last);
+			Arrays.sort(fragments);
+			for(int i=0; i<fragments.length; i++){
+				if(i>0 && fragments[i]==fragments[i-1]){continue;}
+				rtrn-=numSplicedRepeats(fragments[i], starts, ends);
+			}
+			return rtrn;
+		}
+
+		/**
+		 * @return The number of blocks starting before the intron start and ending after the intron end
+		 */
+		private int numSpanning(int intronStart, int intronEnd){
+			int rtrn=0;
+			for(int i=firstAtLeast(blockStarts, intronEnd+1-maxBlockLength); i<blockStarts.length && blockStarts[i]<intronStart; i++){
+				if(startOrderEnds[i]>intronEnd){rtrn++;}
+			}
+			return rtrn;
+		}
+
+		/**
+		 * @return The number of overlaps of the spliced fragment with the region that follow the previous overlap across both a gap and an intron
+		 */
+		private int numSplicedRepeats(int fragment, int[] starts, int[] ends){
+			int rtrn=0;
+			int block=fragmentOffsets[fragment];
+			int lastBlock=fragmentOffsets[fragment+1];
+			int i=0;
+			int previousBlock=-1;
+			int previousRegionBlock=-1;
+			while(i<starts.length && block<lastBlock){
+				int blockStart=fragmentBlocks[2*block];
+				int blockEnd=fragmentBlocks[2*block+1];
+				if(blockEnd<=starts[i]){block++;}
+				else if(ends[i]<=blockStart){i++;}
+				else{
+					if(previousBlock>=0 && previousBlock!=block && previousRegionBlock!=i){rtrn++;}
+					previousBlock=block;
+					previousRegionBlock=i;
+					if(blockEnd<ends[i]){block++;}
+					else{i++;}
+				}
+			}
+			return rtrn;
+		}
+
+		/**
+		 * @return The index of the first value at least key, or the length if there is none
+		 */
+		private static int firstAtLeast(int[] values, int key){
+			int low=0;
+			int high=values.length;
+			while(low<high){
+				int mid=(low+high)>>>1;
+				if(values[mid]<key){low=mid+1;}
+				else{high=mid;}
+			}
+			return low;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(numFragments);
+			write(out, blockStarts);
+			write(out, blockEnds);
+			write(out, startOrderEnds);
+			out.writeInt(maxBlockLength);
+			write(out, gapStarts);
+			write(out, gapEnds);
+			write(out, gapFragments);
+			write(out, fragmentOffsets);
+			write(out, fragmentBlocks);
+		}
+
+		private static void write(DataOutputStream out, int[] values) throws IOException {
+			out.writeInt(values.length);
+			for(int value: values){out.writeInt(value);}
+		}
+
+		static Track read(DataInputStream in) throws IOException {
+			int numFragments=in.readInt();
+			int[] blockStarts=readInts(in);
+			int[] blockEnds=readInts(in);
+			int[] startOrderEnds=readInts(in);
+			int maxBlockLength=in.readInt();
+			return new Track(numFragments, blockStarts, blockEnds, startOrderEnds, maxBlockLength, readInts(in), readInts(in), readInts(in), readInts(in), readInts(in));
+		}
+
+		private static int[] readInts(DataInputStream in) throws IOException {
+			int[] rtrn=new int[in.readInt()];
+			for(int i=0; i<rtrn.length; i++){rtrn[i]=in.readInt();}
+			return rtrn;
+		}
+	}
+
+	/**
+	 * Collects the blocks and gaps of one track before they are sorted
+	 */
+	private static class Builder {
+
+		private int numFragments;
+		private int[] blockStarts=new int[16];
+		private int[] blockEnds=new int[16];
+		private int numBlocks;
+		/**
+		 * Gap start in the high and gap number in the low 32 bits, so sorting sorts by start
+		 */
+		private long[] gaps=new long[16];
+		private int[] gapEnds=new int[16];
+		private int[] gapFragments=new int[16];
+		private int numGaps;
+		private int[] fragmentOffsets=new int[16];
+		private int[] fragmentBlocks=new int[32];
+		private int numSpliced;
+		private int numFragmentBlocks;
+
+		void add(Annotation fragment){
+			numFragments++;
+			boolean spliced=fragment.getNumberOfBlocks()>1;
+			if(spliced){
+				if(numSpliced+1>=fragmentOffsets.length){fragmentOffsets=Arrays.copyOf(fragmentOffsets, fragmentOffsets.length*2);}
+				fragmentOffsets[numSpliced]=numFragmentBlocks;
+			}
+			Iterator<SingleInterval> blocks=fragment.getBlocks();
+			int previousEnd=-1;
+			while(blocks.hasNext()){
+				SingleInterval block=blocks.next();
+				if(numBlocks==blockStarts.length){
+					blockStarts=Arrays.copyOf(blockStarts, numBlocks*2);
+					blockEnds=Arrays.copyOf(blockEnds, numBlocks*2);
+				}
+				blockStarts[numBlocks]=block.getReferenceStartPosition();
+				blockEnds[numBlocks]=block.getReferenceEndPosition();
+				numBlocks++;
+				if(spliced){
+					if(2*numFragmentBlocks==fragmentBlocks.length){fragmentBlocks=Arrays.copyOf(fragmentBlocks, fragmentBlocks.length*2);}
+					fragmentBlocks[2*numFragmentBlocks]=block.getReferenceStartPosition();
+					fragmentBlocks[2*numFragmentBlocks+1]=block.getReferenceEndPosition();
+					numFragmentBlocks++;
+				}
+				if(previousEnd>=0){
+					if(numGaps==gaps.length){
+						gaps=Arrays.copyOf(gaps, numGaps*2);
+						gapEnds=Arrays.copyOf(gapEnds, numGaps*2);
+						gapFragments=Arrays.copyOf(gapFragments, numGaps*2);
+					}
+					gaps[numGaps]=((long)previousEnd<<32) | numGaps;
+					gapEnds[numGaps]=block.getReferenceStartPosition();
+					gapFragments[numGaps]=numSpliced;
+					numGaps++;
+				}
+				previousEnd=block.getReferenceEndPosition();
+			}
+			if(spliced){numSpliced++;}
+		}
+
+		Track build(){
+			//Start in the high and end in the low 32 bits, so sorting sorts by start
+			long[] blocks=new long[numBlocks];
+			int maxBlockLength=0;
+			for(int i=0; i<numBlocks; i++){
+				blocks[i]=((long)blockStarts[i]<<32) | (blockEnds[i] & 0xffffffffL);
+				maxBlockLength=Math.max(maxBlockLength, blockEnds[i]-blockStarts[i]);
+			}
+			Arrays.sort(blocks);
+			int[] starts=new int[numBlocks];
+			int[] startOrderEnds=new int[numBlocks];
+			for(int i=0; i<numBlocks; i++){
+				starts[i]=(int)(blocks[i]>>>32);
+				startOrderEnds[i]=(int)blocks[i];
+			}
+			int[] ends=Arrays.copyOf(startOrderEnds, numBlocks);
+			Arrays.sort(ends);
+			long[] sortedGaps=Arrays.copyOf(gaps, numGaps);
+			Arrays.sort(sortedGaps);
+			int[] gapStarts=new int[numGaps];
+			int[] sortedGapEnds=new int[numGaps];
+			int[] sortedGapFragments=new int[numGaps];
+			for(int i=0; i<numGaps; i++){
+				int gap=(int)sortedGaps[i];
+				gapStarts[i]=(int)(sortedGaps[i]>>>32);
+				sortedGapEnds[i]=gapEnds[gap];
+				sortedGapFragments[i]=gapFragments[gap];
+			}
+			int[] offsets=Arrays.copyOf(fragmentOffsets, numSpliced+1);
+			offsets[numSpliced]=numFragmentBlocks;
+			return new Track(numFragments, starts, ends, startOrderEnds, maxBlockLength, gapStarts, sortedGapEnds, sortedGapFragments, offsets, Arrays.copyOf(fragmentBlocks, 2*numFragmentBlocks));
+		}
+	}
+
+}
@@ -2,19 +2,21 @@ package guttmanlab.core.annotationcollection;
 
 import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.io.BEDWriter;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
 import guttmanlab.core.datastructures.IntervalTree;
 import guttmanlab.core.datastructures.IntervalTree.Node;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
-import sun.nio.cs.ext.TIS_620;
 import net.sf.samtools.util.CloseableIterator;
 
 public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnnotationCollection<T> implements Collection<T> {
@@ -23,13 +25,21 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 	 * The reference coordinate system that features are mapped to
 	 */
 	private CoordinateSpace referenceCoordinateSpace;
+	/**
+	 * Order of references, fixed when the collection is built: the order of the coordinate space (ie BAM header order), matched ignoring case
+	 */
+	private Comparator<String> referenceOrder;
+	/**
+	 * Per-reference trees, in reference order
+	 */
 	private Map<String, IntervalTree<T>> annotationTree;
 	private int featureCount;
 	
 	public FeatureCollection(CoordinateSpace referenceSpace){
 		super();
 		this.referenceCoordinateSpace=referenceSpace;
-		this.annotationTree=new TreeMap<String, IntervalTree<T>>();
+		this.referenceOrder=referenceSpace==null ? String.CASE_INSENSITIVE_ORDER : referenceSpace.getReferenceOrder();
+		this.annotationTree=new TreeMap<String, IntervalTree<T>>(referenceOrder);
 	}
 	
 	/**
@@ -46,6 +56,7 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 		tree.put(annotation.getReferenceStartPosition(), annotation.getReferenceEndPosition(), annotation);
 		annotationTree.put(annotation.getReferenceName(), tree);
 		featureCount++;
+		clearCounts();
 		return !alreadyContains;
 	}
 
@@ -63,13 +74,12 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 	}
 	
 	private void writeToFile(String fileName, CloseableIterator<T> iter) throws IOException{
-		FileWriter writer=new FileWriter(fileName);
-		while(iter.hasNext()){
-			T next=iter.next();
-			writer.write(next.toString()+"\n");
+		BEDWriter writer=new BEDWriter(fileName);
+		try{writer.write(iter);}
+		finally{
+			writer.close();
+			iter.close();
 		}
-		writer.close();
-		iter.close();
 	}
 
 	@Override
@@ -80,10 +90,19 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 	@Override
 	public CloseableIterator<T> sortedIterator(Annotation region, boolean fullyContained) {
 		IntervalTree<T> tree=this.annotationTree.get(region.getReferenceName());
+		if(tree==null){return new FilteredIterator<T>(Collections.<T>emptyList().iterator(), getFilters());}
 		Iterator<T> iter=tree.overlappingValueIterator(region.getReferenceStartPosition(), region.getReferenceEndPosition());
 		return new FilteredIterator<T>(iter, getFilters());
 	}
 	
+	/**
+	 * Every reference with a tree, including references that are not in the coordinate space
+	 */
+	@Override
+	protected Collection<String> getReferenceNames() {
+		return annotationTree.keySet();
+	}
+	
 	@Override
 	public FeatureCollection<T> merge() {
 		CloseableIterator<T> old = sortedIterator();
@@ -235,7 +254,10 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 			return false;
 		}
 		boolean rtrn = node.getContainedValues().remove(annot);
-		if(rtrn) featureCount--;
+		if(rtrn) {
+			featureCount--;
+			clearCounts();
+		}
 		return rtrn;
 	}
 
@@ -247,15 +269,65 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 		return true;
 	}
 
+	/**
+	 * Add annotations in bulk
+	 * References that are new to this collection have their tree built in one pass from the sorted annotations,
+	 * which gives the same contents as adding the annotations one at a time
+	 */
 	@Override
 	public boolean addAll(Collection<? extends T> annotations) {
 		boolean rtrn = false;
+		Map<String, List<T>> newReferences = new TreeMap<String, List<T>>(referenceOrder);
 		for(T annotation : annotations) {
-			boolean changed = add(annotation);
-			if(changed) rtrn = true;
+			String chr = annotation.getReferenceName();
+			if(annotationTree.containsKey(chr)) {
+				boolean changed = add(annotation);
+				if(changed) rtrn = true;
+			}
+			else {
+				List<T> list = newReferences.get(chr);
+				if(list == null) {
+					list = new ArrayList<T>();
+					newReferences.put(chr, list);
+				}
+				list.add(annotation);
+			}
+		}
+		for(List<T> list : newReferences.values()) {
+			annotationTree.put(list.get(0).getReferenceName(), buildTree(list));
+			featureCount += list.size();
+			clearCounts();
+			rtrn = true;
 		}
 		return rtrn;
 	}
+	
+	/**
+	 * @param annotations Annotations on one reference, in the order they would have been added
+	 * @return An interval tree of the annotations
+	 */
+	private IntervalTree<T> buildTree(List<T> annotations) {
+		//Stable sort, so equal intervals keep their order
+		Collections.sort(annotations, new Comparator<T>() {
+			@Override
+			public int compare(T a, T b) {
+				if(a.getReferenceStartPosition() != b.getReferenceStartPosition()) {
+					return a.getReferenceStartPosition() < b.getReferenceStartPosition() ? -1 : 1;
+				}
+				if(a.getReferenceEndPosition() != b.getReferenceEndPosition()) {
+					return a.getReferenceEndPosition() < b.getReferenceEndPosition() ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		int[] starts = new int[annotations.size()];
+		int[] ends = new int[annotations.size()];
+		for(int i = 0; i < starts.length; i++) {
+			starts[i] = annotations.get(i).getReferenceStartPosition();
+			ends[i] = annotations.get(i).getReferenceEndPosition();
+		}
+		return IntervalTree.fromSorted(starts, ends, annotations, starts.length);
+	}
 
 	@Override
 	public boolean removeAll(Collection<?> annotations) {
@@ -275,6 +347,7 @@ public class FeatureCollection<T extends BlockedAnnotation> extends AbstractAnno
 	@Override
 	public void clear() {
 		annotationTree.clear();
+		clearCounts();
 		featureCount = 0;
 		for(IntervalTree<T> tree : annotationTree.values()) {
 			featureCount += tree.size();
@@ -6,41 +6,61 @@ import guttmanlab.core.annotation.predicate.StrandFilter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import net.sf.samtools.util.CloseableIterator;
 
 import org.apache.commons.collections15.Predicate;
 
+/**
+ * Returns the records of an iterator that pass every filter
+ * The filters are copied when the iterator is made, so changing a collection's filters does not affect open iterators
+ * and iterators on one collection can be used from several threads
+ * @author mguttman
+ *
+ * @param <T>
+ */
 public class FilteredIterator<T extends Annotation> implements CloseableIterator<T>{
 
 		CloseableIterator<T> iter;
 		Collection<Predicate<T>> filters;
 		T next;
 		boolean started;
-		StrandFilter<T> sf;
 		
 		public FilteredIterator(CloseableIterator<T> iter, Collection<Predicate<T>> filters){
 			this.iter=iter;
-			this.filters=filters;
+			this.filters=chain(filters, null);
 		}
 		
 		public FilteredIterator(CloseableIterator<T> iter, Predicate<T> filter){
 			this.iter=iter;
-			this.filters=new ArrayList<Predicate<T>>();
-			this.filters.add(filter);
+			this.filters=chain(new ArrayList<Predicate<T>>(), filter);
 		}
 		
 		public FilteredIterator(Iterator<T> iter, Collection<Predicate<T>> filters){
 			this.iter=new CloseableWrapper(iter);
-			this.filters=filters;
+			this.filters=chain(filters, null);
+		}
+		
+		public FilteredIterator(CloseableIterator<T> iter, Collection<Predicate<T>> filters, Strand region) {
+			this.iter=iter;
+			this.filters=chain(filters, new StrandFilter<T>(region));
 		}
 		
 		public FilteredIterator(Iterator<T> iter,Collection<Predicate<T>> filters, Strand region) {
 			this.iter=new CloseableWrapper(iter);
-			this.filters=filters;
-			this.sf = new StrandFilter<T>(region);
-			this.filters.add(sf);
+			this.filters=chain(filters, new StrandFilter<T>(region));
+		}
+		
+		/**
+		 * @return An unmodifiable copy of the filters, with the extra filter last if there is one
+		 */
+		private static <T extends Annotation> Collection<Predicate<T>> chain(Collection<Predicate<T>> filters, Predicate<T> extra){
+			List<Predicate<T>> rtrn=new ArrayList<Predicate<T>>(filters);
+			if(extra!=null){rtrn.add(extra);}
+			return Collections.unmodifiableList(rtrn);
 		}
 
 		@Override
@@ -78,8 +98,6 @@ public class FilteredIterator<T extends Annotation> implements CloseableIterator
 
 		@Override
 		public void close() {
-			if(sf!=null)
-				filters.remove(sf);
 			iter.close();
 		}
 	
@@ -105,10 +123,12 @@ public class FilteredIterator<T extends Annotation> implements CloseableIterator
 			throw new UnsupportedOperationException();
 		}
 
+		/**
+		 * Closes the wrapped iterator if it holds resources
+		 */
 		@Override
 		public void close() {
-			// TODO Auto-generated method stub
-			
+			if(iter instanceof CloseableIterator){((CloseableIterator<?>)iter).close();}
 		}}
 		
 		
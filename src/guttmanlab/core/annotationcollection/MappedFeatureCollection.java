@@ -0,0 +1,406 @@
+package guttmanlab.core.annotationcollection;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * A read-only collection of genes backed by a memory-mapped binary annotation file
+ * Records are only decoded as they are iterated, so opening the file does not load it onto the heap
+ *
+ * The file holds, for each reference, its records sorted by start followed by a coarse index,
+ * then a directory of the references and a footer pointing at the directory:
+ *
+ * Record: start delta, length, strand, flags, [cds start, cds end], [name], block count, then the gap before and length of each block
+ * Starts are deltas from the previous record; the first record of each index group is a delta from the group start
+ * Index entry (every INDEX_INTERVAL records): offset of the group, start of its first record, and the maximum end of all records up to the end of the group
+ *
+ * Integers are unsigned varints, cds positions are zigzag varints relative to the start
+ * Files are written by guttmanlab.core.annotation.io.BinaryAnnotationFileIO
+ * @author mguttman
+ *
+ */
+public class MappedFeatureCollection extends AbstractAnnotationCollection<Gene> {
+
+	public static final int MAGIC=0x474C4241; //GLBA
+	public static final int VERSION=1;
+	/**
+	 * Number of records per index entry
+	 */
+	public static final int INDEX_INTERVAL=64;
+	public static final int HAS_CDS=1;
+	public static final int HAS_NAME=2;
+	/**
+	 * Magic and directory offset at the end of the file
+	 */
+	public static final int FOOTER_SIZE=12;
+
+	private static final Charset UTF8=Charset.forName("UTF-8");
+	private static final Strand[] STRANDS=new Strand[128];
+	static{
+		for(Strand strand : Strand.values()){
+			STRANDS[strand.toString().charAt(0)]=strand;
+		}
+	}
+
+	private CoordinateSpace referenceCoordinateSpace;
+	/**
+	 * Per-reference sections; references are ordered as in the coordinate space of the file and matched ignoring case, as in FeatureCollection
+	 */
+	private Map<String, Reference> references;
+	private int featureCount;
+
+	/**
+	 * Open a binary annotation file
+	 * @param fileName The file to open
+	 * @throws IOException If the file cannot be read or is not a binary annotation file
+	 */
+	public MappedFeatureCollection(String fileName) throws IOException {
+		super();
+		RandomAccessFile file=new RandomAccessFile(fileName, "r");
+		try{
+			FileChannel channel=file.getChannel();
+			long length=channel.size();
+			if(length<8+FOOTER_SIZE){throw new IOException(fileName+" is not a binary annotation file");}
+			ByteBuffer footer=channel.map(FileChannel.MapMode.READ_ONLY, length-FOOTER_SIZE, FOOTER_SIZE);
+			long directoryOffset=footer.getLong();
+			ByteBuffer header=channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+			if(footer.getInt()!=MAGIC || header.getInt()!=MAGIC){throw new IOException(fileName+" is not a binary annotation file");}
+			int version=header.getInt();
+			if(version!=VERSION){throw new IOException(fileName+" has version "+version+", expected "+VERSION);}
+
+			ByteBuffer directory=channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, length-FOOTER_SIZE-directoryOffset);
+			int numSizes=directory.getInt();
+			Map<String, Integer> sizes=new LinkedHashMap<String, Integer>();
+			for(int i=0; i<numSizes; i++){
+				String name=readString(directory);
+				sizes.put(name, directory.getInt());
+			}
+			this.referenceCoordinateSpace=new CoordinateSpace(sizes);
+			this.references=new TreeMap<String, Reference>(referenceCoordinateSpace.getReferenceOrder());
+
+			int numReferences=directory.getInt();
+			for(int i=0; i<numReferences; i++){
+				String name=readString(directory);
+				int count=directory.getInt();
+				long recordOffset=directory.getLong();
+				int recordLength=directory.getInt();
+				int numIndexEntries=directory.getInt();
+				//The index follows the records of its reference
+				MappedByteBuffer section=channel.map(FileChannel.MapMode.READ_ONLY, recordOffset, (long)recordLength+12L*numIndexEntries);
+				references.put(name, new Reference(name, count, section, recordLength, numIndexEntries));
+				featureCount+=count;
+			}
+		}
+		finally{
+			//Mapped buffers stay valid once the file is closed
+			file.close();
+		}
+	}
+
+	private static String readString(ByteBuffer buffer){
+		byte[] bytes=new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * @return The number of genes in the file
+	 */
+	public int getCount() {
+		return featureCount;
+	}
+
+	@Override
+	public int getNumAnnotations(){
+		if(getFilters().isEmpty()){return featureCount;}
+		return super.getNumAnnotations();
+	}
+
+	@Override
+	public CloseableIterator<Gene> sortedIterator() {
+		return new FilteredIterator<Gene>(new ReferencesIterator(references.values().iterator()), getFilters());
+	}
+
+	@Override
+	public CloseableIterator<Gene> sortedIterator(Annotation region, boolean fullyContained) {
+		Reference reference=references.get(region.getReferenceName());
+		Iterator<Gene> iter;
+		if(reference==null){iter=Collections.<Gene>emptyList().iterator();}
+		else{iter=new RecordIterator(reference, region.getReferenceStartPosition(), region.getReferenceEndPosition(), fullyContained);}
+		return new FilteredIterator<Gene>(iter, getFilters());
+	}
+
+	@Override
+	public boolean overlaps(Annotation other) {
+		CloseableIterator<Gene> overlappers=sortedIterator(other, false);
+		try{
+			while(overlappers.hasNext()){
+				if(other.overlaps(overlappers.next())){return true;}
+			}
+			return false;
+		}
+		finally{overlappers.close();}
+	}
+
+	@Override
+	public CoordinateSpace getReferenceCoordinateSpace() {
+		return referenceCoordinateSpace;
+	}
+
+	/**
+	 * Every reference with a section in the file, including references that are not in the coordinate space
+	 */
+	@Override
+	protected Collection<String> getReferenceNames() {
+		return references.keySet();
+	}
+
+	/**
+	 * Copy the genes into an in-memory collection
+	 * @return A FeatureCollection holding the genes that pass the filters
+	 */
+	public FeatureCollection<Gene> toFeatureCollection(){
+		FeatureCollection<Gene> rtrn=new FeatureCollection<Gene>(referenceCoordinateSpace);
+		CloseableIterator<Gene> iter=sortedIterator();
+		while(iter.hasNext()){
+			rtrn.add(iter.next());
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	/**
+	 * The mapped records and index of one reference
+	 */
+	private static class Reference {
+
+		final String name;
+		final int count;
+		final ByteBuffer section;
+		final int recordLength;
+		final int numIndexEntries;
+
+		Reference(String name, int count, ByteBuffer section, int recordLength, int numIndexEntries){
+			this.name=name;
+			this.count=count;
+			this.section=section;
+			this.recordLength=recordLength;
+			this.numIndexEntries=numIndexEntries;
+		}
+
+		int groupOffset(int group){return section.getInt(recordLength+12*group);}
+		int groupStart(int group){return section.getInt(recordLength+12*group+4);}
+		int groupMaxEnd(int group){return section.getInt(recordLength+12*group+8);}
+
+		/**
+		 * @param start Query start
+		 * @return The first index group that can hold a record ending after start
+		 */
+		int firstGroupEndingAfter(int start){
+			//Maximum ends are cumulative, so they are sorted
+			int low=0;
+			int high=numIndexEntries;
+			while(low<high){
+				int mid=(low+high)>>>1;
+				if(groupMaxEnd(mid)>start){high=mid;}
+				else{low=mid+1;}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Decodes the records of one reference in order, optionally restricted to a region
+	 */
+	private class RecordIterator implements Iterator<Gene> {
+
+		private final Reference reference;
+		private final ByteBuffer buffer;
+		private final int regionStart;
+		private final int regionEnd;
+		private final boolean fullyContained;
+		private int recordIndex;
+		private int previousStart;
+		private int[] blockStarts=new int[8];
+		private int[] blockEnds=new int[8];
+		private Gene next;
+
+		RecordIterator(Reference reference){
+			this(reference, Integer.MIN_VALUE, Integer.MAX_VALUE, false, 0);
+		}
+
+		RecordIterator(Reference reference, int regionStart, int regionEnd, boolean fullyContained){
+			this(reference, regionStart, regionEnd, fullyContained, reference.firstGroupEndingAfter(regionStart));
+		}
+
+		private RecordIterator(Reference reference, int regionStart, int regionEnd, boolean fullyContained, int group){
+			this.reference=reference;
+			this.buffer=reference.section.duplicate();
+			this.regionStart=regionStart;
+			this.regionEnd=regionEnd;
+			this.fullyContained=fullyContained;
+			this.recordIndex=group*INDEX_INTERVAL;
+			if(group<reference.numIndexEntries){buffer.position(reference.groupOffset(group));}
+			else{recordIndex=reference.count;}
+			advance();
+		}
+
+		private void advance(){
+			next=null;
+			while(recordIndex<reference.count){
+				if(recordIndex%INDEX_INTERVAL==0){previousStart=reference.groupStart(recordIndex/INDEX_INTERVAL);}
+				int start=previousStart+readVarint();
+				previousStart=start;
+				recordIndex++;
+				if(start>=regionEnd){
+					//Records are sorted by start, so nothing later can overlap
+					recordIndex=reference.count;
+					return;
+				}
+				int end=start+readVarint();
+				boolean keep=fullyContained ? (start>=regionStart && end<=regionEnd) : end>regionStart;
+				if(keep){
+					next=decode(start, end);
+					return;
+				}
+				skip();
+			}
+		}
+
+		private Gene decode(int start, int end){
+			Strand orientation=STRANDS[buffer.get()];
+			int flags=buffer.get();
+			int cdsStart=Gene.NO_CDS;
+			int cdsEnd=Gene.NO_CDS;
+			if((flags & HAS_CDS)!=0){
+				cdsStart=start+readZigzag();
+				cdsEnd=start+readZigzag();
+			}
+			String name=null;
+			if((flags & HAS_NAME)!=0){
+				byte[] bytes=new byte[readVarint()];
+				buffer.get(bytes);
+				name=new String(bytes, UTF8);
+			}
+			int numBlocks=readVarint();
+			if(numBlocks>blockStarts.length){
+				blockStarts=new int[numBlocks];
+				blockEnds=new int[numBlocks];
+			}
+			int position=start;
+			for(int i=0; i<numBlocks; i++){
+				blockStarts[i]=position+readVarint();
+				blockEnds[i]=blockStarts[i]+readVarint();
+				position=blockEnds[i];
+			}
+			return new Gene(reference.name, blockStarts, blockEnds, numBlocks, orientation, cdsStart, cdsEnd, name);
+		}
+
+		private void skip(){
+			buffer.get();
+			int flags=buffer.get();
+			if((flags & HAS_CDS)!=0){
+				readVarint();
+				readVarint();
+			}
+			if((flags & HAS_NAME)!=0){
+				int length=readVarint();
+				buffer.position(buffer.position()+length);
+			}
+			int numBlocks=readVarint();
+			for(int i=0; i<2*numBlocks; i++){
+				readVarint();
+			}
+		}
+
+		private int readVarint(){
+			int rtrn=0;
+			int shift=0;
+			byte b;
+			do{
+				b=buffer.get();
+				rtrn|=(b & 0x7F)<<shift;
+				shift+=7;
+			}while(b<0);
+			return rtrn;
+		}
+
+		private int readZigzag(){
+			int value=readVarint();
+			return (value>>>1)^-(value & 1);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next!=null;
+		}
+
+		@Override
+		public Gene next() {
+			if(next==null){throw new NoSuchElementException();}
+			Gene rtrn=next;
+			advance();
+			return rtrn;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Chains the records of each reference in turn
+	 */
+	private class ReferencesIterator implements CloseableIterator<Gene> {
+
+		private Iterator<Reference> referenceIterator;
+		private RecordIterator current;
+
+		ReferencesIterator(Iterator<Reference> referenceIterator){
+			this.referenceIterator=referenceIterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(current==null || !current.hasNext()){
+				if(!referenceIterator.hasNext()){return false;}
+				current=new RecordIterator(referenceIterator.next());
+			}
+			return true;
+		}
+
+		@Override
+		public Gene next() {
+			if(!hasNext()){throw new NoSuchElementException();}
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {}
+	}
+
+}
@@ -0,0 +1,385 @@
+package guttmanlab.core.annotationcollection;
+
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.datastructures.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Pairs mates from reads sorted by coordinate, one reference at a time
+ * A read whose mate is still to come waits in an open-addressing hash table keyed by a 64-bit hash of its name
+ * Waiting reads expire in order of mate position once the reads pass the position where the mate should have been
+ *
+ * When more than maxPending reads are waiting they are written to a temporary file sorted by mate position,
+ * and read back as the reads reach each mate's position, so memory is bounded whatever the insert size
+ * @author mguttman
+ *
+ */
+final class MatePairer {
+
+	private static final int INITIAL_CAPACITY=1<<10;
+	/**
+	 * Spill files open at once before they are merged into one
+	 */
+	private static final int MAX_RUNS=32;
+
+	private SAMFileHeader header;
+	private int maxPending;
+	private long[] hashes;
+	private Waiting[] table;
+	private int numWaiting;
+	private PriorityQueue<Waiting> expiry;
+	private List<Run> runs;
+
+	/**
+	 * @param header The header of the reads, used to write and read spilled reads
+	 * @param maxPending The number of waiting reads to hold in memory before spilling them to disk
+	 */
+	MatePairer(SAMFileHeader header, int maxPending){
+		this.header=header;
+		this.maxPending=Math.max(1, maxPending);
+		this.hashes=new long[INITIAL_CAPACITY];
+		this.table=new Waiting[INITIAL_CAPACITY];
+		this.expiry=new PriorityQueue<Waiting>(11, new Comparator<Waiting>(){
+			@Override
+			public int compare(Waiting w1, Waiting w2) {
+				return Integer.compare(w1.matePosition, w2.matePosition);
+			}
+		});
+		this.runs=new ArrayList<Run>();
+	}
+
+	/**
+	 * A read waiting for its mate
+	 */
+	private static class Waiting {
+		final long hash;
+		final int matePosition;
+		SAMFragment read;
+
+		Waiting(long hash, SAMFragment read){
+			this.hash=hash;
+			this.read=read;
+			this.matePosition=read.getSamRecord().getMateAlignmentStart();
+		}
+	}
+
+	/**
+	 * Add the next read; the read must be paired with its mate mapped to the same reference
+	 * A read without a waiting mate waits if its mate starts at or after it
+	 * @param read The next read in coordinate order
+	 * @return The pair, first of pair as value 1, if this read completes one; otherwise null
+	 */
+	Pair<SAMFragment> add(SAMFragment read){
+		SAMRecord record=read.getSamRecord();
+		int position=record.getAlignmentStart();
+		reload(position);
+		expire(position);
+
+		long hash=hash(read.getName());
+		int slot=find(hash, read.getName());
+		if(slot>=0){
+			Waiting mate=table[slot];
+			removeSlot(slot);
+			SAMFragment other=mate.read;
+			//Expiry ignores reads that have been paired
+			mate.read=null;
+			Pair<SAMFragment> pair=new Pair<SAMFragment>();
+			set(pair, other);
+			set(pair, read);
+			return pair.hasValue1() && pair.hasValue2() ? pair : null;
+		}
+		if(position<=record.getMateAlignmentStart()){
+			insert(new Waiting(hash, read));
+			if(numWaiting>maxPending){spill();}
+		}
+		return null;
+	}
+
+	private static void set(Pair<SAMFragment> pair, SAMFragment read){
+		if(read.getSamRecord().getFirstOfPairFlag()){pair.setValue1(read);}
+		else{pair.setValue2(read);}
+	}
+
+	/**
+	 * @return The number of reads waiting in memory
+	 */
+	int getNumWaiting(){
+		return numWaiting;
+	}
+
+	/**
+	 * Drop every waiting read, in memory and on disk; called when the reads move to a new reference
+	 */
+	void clear(){
+		if(numWaiting>0 || table.length>INITIAL_CAPACITY){
+			hashes=new long[INITIAL_CAPACITY];
+			table=new Waiting[INITIAL_CAPACITY];
+			numWaiting=0;
+		}
+		expiry.clear();
+		for(Run run: runs){run.close();}
+		runs.clear();
+	}
+
+	/**
+	 * Delete any spill files
+	 */
+	void close(){
+		clear();
+	}
+
+	/**
+	 * Drop reads whose mate should have started before the position
+	 */
+	private void expire(int position){
+		while(!expiry.isEmpty() && expiry.peek().matePosition<position){
+			Waiting waiting=expiry.poll();
+			if(waiting.read!=null){
+				removeSlot(slotOf(waiting));
+				waiting.read=null;
+			}
+		}
+	}
+
+	/**
+	 * Bring back spilled reads whose mate starts at the position; those whose mate started earlier are dropped
+	 */
+	private void reload(int position){
+		Iterator<Run> iter=runs.iterator();
+		while(iter.hasNext()){
+			Run run=iter.next();
+			while(run.head!=null && run.head.getMateAlignmentStart()<=position){
+				SAMRecord record=run.head;
+				run.advance();
+				if(record.getMateAlignmentStart()==position){
+					SAMFragment read=new SAMFragment(record);
+					insert(new Waiting(hash(read.getName()), read));
+				}
+			}
+			if(run.head==null){
+				run.close();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Write all waiting reads to a new file sorted by mate position
+	 */
+	private void spill(){
+		List<Waiting> waiting=new ArrayList<Waiting>(numWaiting);
+		for(Waiting w: table){
+			if(w!=null){waiting.add(w);}
+		}
+		Collections.sort(waiting, expiry.comparator());
+		List<SAMRecord> records=new ArrayList<SAMRecord>(waiting.size());
+		for(Waiting w: waiting){
+			records.add(w.read.getSamRecord());
+			w.read=null;
+		}
+		runs.add(Run.write(header, records.iterator()));
+		hashes=new long[INITIAL_CAPACITY];
+		table=new Waiting[INITIAL_CAPACITY];
+		numWaiting=0;
+		expiry.clear();
+		if(runs.size()>=MAX_RUNS){mergeRuns();}
+	}
+
+	/**
+	 * Merge the spill files into one, keeping the mate position order
+	 */
+	private void mergeRuns(){
+		final List<Run> merging=new ArrayList<Run>(runs);
+		Iterator<SAMRecord> merged=new Iterator<SAMRecord>(){
+			@Override
+			public boolean hasNext() {
+				for(Run run: merging){
+					if(run.head!=null){return true;}
+				}
+				return false;
+			}
+
+			@Override
+			public SAMRecord next() {
+				Run min=null;
+				for(Run run: merging){
+					if(run.head!=null && (min==null || run.head.getMateAlignmentStart()<min.head.getMateAlignmentStart())){min=run;}
+				}
+				SAMRecord rtrn=min.head;
+				min.advance();
+				return rtrn;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		Run run=Run.write(header, merged);
+		for(Run old: merging){old.close();}
+		runs.clear();
+		runs.add(run);
+	}
+
+	private void insert(Waiting waiting){
+		if(2*(numWaiting+1)>table.length){resize(2*table.length);}
+		int mask=table.length-1;
+		int slot=(int)mix(waiting.hash) & mask;
+		while(table[slot]!=null){slot=(slot+1) & mask;}
+		hashes[slot]=waiting.hash;
+		table[slot]=waiting;
+		numWaiting++;
+		expiry.add(waiting);
+	}
+
+	/**
+	 * @return The slot holding the read name, or -1
+	 */
+	private int find(long hash, String name){
+		int mask=table.length-1;
+		int slot=(int)mix(hash) & mask;
+		while(table[slot]!=null){
+			if(hashes[slot]==hash && table[slot].read.getName().equals(name)){return slot;}
+			slot=(slot+1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The slot holding this entry, which must be in the table; names can repeat, so entries are compared by identity
+	 */
+	private int slotOf(Waiting waiting){
+		int mask=table.length-1;
+		int slot=(int)mix(waiting.hash) & mask;
+		while(table[slot]!=waiting){slot=(slot+1) & mask;}
+		return slot;
+	}
+
+	/**
+	 * Empty a slot, moving later entries of its probe run back so no tombstone is needed
+	 */
+	private void removeSlot(int slot){
+		int mask=table.length-1;
+		table[slot]=null;
+		numWaiting--;
+		int next=(slot+1) & mask;
+		while(table[next]!=null){
+			int home=(int)mix(hashes[next]) & mask;
+			//Move the entry back if its home is not between the empty slot and its current slot
+			if(((next-home) & mask)>=((next-slot) & mask)){
+				table[slot]=table[next];
+				hashes[slot]=hashes[next];
+				table[next]=null;
+				slot=next;
+			}
+			next=(next+1) & mask;
+		}
+	}
+
+	private void resize(int capacity){
+		long[] oldHashes=hashes;
+		Waiting[] oldTable=table;
+		hashes=new long[capacity];
+		table=new Waiting[capacity];
+		int mask=capacity-1;
+		for(int i=0; i<oldTable.length; i++){
+			if(oldTable[i]==null){continue;}
+			int slot=(int)mix(oldHashes[i]) & mask;
+			while(table[slot]!=null){slot=(slot+1) & mask;}
+			hashes[slot]=oldHashes[i];
+			table[slot]=oldTable[i];
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the name
+	 */
+	static long hash(String name){
+		long rtrn=0xcbf29ce484222325L;
+		for(int i=0; i<name.length(); i++){
+			rtrn^=name.charAt(i);
+			rtrn*=0x100000001b3L;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Spread the hash bits so that the low bits used for the slot depend on all of them
+	 */
+	private static long mix(long hash){
+		hash^=hash>>>33;
+		hash*=0xff51afd7ed558ccdL;
+		hash^=hash>>>33;
+		return hash;
+	}
+
+	/**
+	 * A temporary file of reads sorted by mate position, read back one record at a time
+	 */
+	private static class Run {
+
+		private File file;
+		private InputStream in;
+		private BAMRecordCodec codec;
+		SAMRecord head;
+
+		private Run(File file, SAMFileHeader header) throws IOException {
+			this.file=file;
+			this.in=new BufferedInputStream(new FileInputStream(file), 1<<16);
+			this.codec=new BAMRecordCodec(header);
+			codec.setInputStream(in);
+			advance();
+		}
+
+		static Run write(SAMFileHeader header, Iterator<SAMRecord> records){
+			try{
+				File file=File.createTempFile("mates", ".spill");
+				file.deleteOnExit();
+				OutputStream out=new BufferedOutputStream(new FileOutputStream(file), 1<<16);
+				try{
+					BAMRecordCodec codec=new BAMRecordCodec(header);
+					codec.setOutputStream(out);
+					while(records.hasNext()){
+						codec.encode(records.next());
+					}
+				}
+				finally{out.close();}
+				return new Run(file, header);
+			}
+			catch(IOException ex){
+				throw new RuntimeIOException("Could not spill waiting mates to disk", ex);
+			}
+		}
+
+		void advance(){
+			head=codec.decode();
+		}
+
+		void close(){
+			head=null;
+			try{in.close();}
+			catch(IOException ex){throw new RuntimeIOException(ex);}
+			finally{file.delete();}
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+package guttmanlab.core.annotationcollection;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Merges overlapping annotations in one pass over a sorted iterator
+ * Annotations are merged when they overlap, ie share a base on compatible strands, and a merged annotation holds the union of their blocks
+ * An annotation that overlaps nothing is returned with its blocks and name as they are
+ *
+ * Only merged annotations that can still be reached by a later annotation are held, so memory is bounded by the
+ * annotations spanning any one position rather than by the size of the collection
+ * @author mguttman
+ *
+ */
+public class MergedIterator implements CloseableIterator<BlockedAnnotation> {
+
+	private CloseableIterator<? extends Annotation> iter;
+	/**
+	 * Merged annotations that end after the start of the last annotation read
+	 */
+	private List<BlockedAnnotation> open;
+	/**
+	 * Finished merged annotations, held until nothing open starts before them; all on the current reference
+	 */
+	private PriorityQueue<BlockedAnnotation> closed;
+	private int currentReference;
+	private String currentReferenceName;
+	/**
+	 * Annotation read from the iterator but not added yet, because it starts a new reference and the previous one is still being returned
+	 */
+	private Annotation pending;
+
+	/**
+	 * @param iter Annotations sorted by reference and start
+	 */
+	public MergedIterator(CloseableIterator<? extends Annotation> iter){
+		this.iter=iter;
+		this.open=new ArrayList<BlockedAnnotation>();
+		this.closed=new PriorityQueue<BlockedAnnotation>(11, new Comparator<BlockedAnnotation>(){
+			@Override
+			public int compare(BlockedAnnotation a, BlockedAnnotation b) {
+				if(a.getReferenceStartPosition()!=b.getReferenceStartPosition()){
+					return a.getReferenceStartPosition()<b.getReferenceStartPosition() ? -1 : 1;
+				}
+				if(a.getReferenceEndPosition()!=b.getReferenceEndPosition()){
+					return a.getReferenceEndPosition()<b.getReferenceEndPosition() ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		this.currentReference=ReferenceDictionary.NO_REFERENCE;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while(!ready()){
+			if(pending==null){
+				if(!iter.hasNext()){
+					closeAll();
+					break;
+				}
+				pending=iter.next();
+			}
+			if(!ReferenceDictionary.sameReference(pending.getReferenceId(), pending.getReferenceName(), currentReference, currentReferenceName)){
+				//Positions are only ordered within a reference, so everything on the previous reference goes out first
+				closeAll();
+				if(!closed.isEmpty()){continue;}
+				currentReference=pending.getReferenceId();
+				currentReferenceName=pending.getReferenceName();
+			}
+			add(pending);
+			pending=null;
+		}
+		return !closed.isEmpty();
+	}
+
+	/**
+	 * @return Whether the first closed annotation can be returned without breaking the sort order
+	 */
+	private boolean ready(){
+		if(closed.isEmpty()){return false;}
+		int start=closed.peek().getReferenceStartPosition();
+		for(BlockedAnnotation merged : open){
+			if(merged.getReferenceStartPosition()<start){return false;}
+		}
+		return true;
+	}
+
+	private void add(Annotation annotation){
+		BlockedAnnotation merged=null;
+		Iterator<BlockedAnnotation> iter=open.iterator();
+		while(iter.hasNext()){
+			BlockedAnnotation other=iter.next();
+			if(other.getReferenceEndPosition()<=annotation.getReferenceStartPosition()){
+				//Later annotations start at or after this one, so nothing can reach it any more
+				iter.remove();
+				closed.add(other);
+			}
+			else if(other.overlaps(merged==null ? annotation : merged)){
+				Annotation union=(merged==null ? annotation : merged).union(other);
+				//Strands can conflict when an unstranded annotation overlaps both strands; the other one is then left as it is
+				if(union.getNumberOfBlocks()>0){
+					merged=(BlockedAnnotation)union;
+					iter.remove();
+				}
+			}
+		}
+		if(merged==null){merged=new BlockedAnnotation(annotation);}
+		open.add(merged);
+	}
+
+	private void closeAll(){
+		closed.addAll(open);
+		open.clear();
+	}
+
+	@Override
+	public BlockedAnnotation next() {
+		if(!hasNext()){throw new NoSuchElementException();}
+		return closed.poll();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		iter.close();
+	}
+
+}
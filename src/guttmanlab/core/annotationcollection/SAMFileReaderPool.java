@@ -0,0 +1,180 @@
+package guttmanlab.core.annotationcollection;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Readers of one BAM file, handed out one per open iterator
+ * A SAMFileReader allows a single open iterator, so each query takes a reader of its own and gives it back
+ * when the iterator is closed or runs out; readers are only opened when none is free
+ * At most maxIdle free readers are kept open, so the pool shrinks back after a burst of concurrent iterators
+ * @author mguttman
+ *
+ */
+public class SAMFileReaderPool {
+
+	private File bamFile;
+	private SAMFileHeader header;
+	private boolean hasIndex;
+	private Queue<SAMFileReader> idle;
+	private int maxIdle;
+	private volatile boolean closed;
+
+	public SAMFileReaderPool(File bamFile){
+		this(bamFile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param bamFile The BAM file
+	 * @param maxIdle Most free readers to keep open; readers given back beyond this are closed
+	 */
+	public SAMFileReaderPool(File bamFile, int maxIdle){
+		this.bamFile=bamFile;
+		this.maxIdle=Math.max(1, maxIdle);
+		this.idle=new ConcurrentLinkedQueue<SAMFileReader>();
+		SAMFileReader reader=new SAMFileReader(bamFile);
+		this.header=reader.getFileHeader();
+		this.hasIndex=reader.hasIndex();
+		idle.add(reader);
+	}
+
+	/**
+	 * @return The header, shared by all readers
+	 */
+	public SAMFileHeader getFileHeader(){
+		return header;
+	}
+
+	public boolean hasIndex(){
+		return hasIndex;
+	}
+
+	/**
+	 * Take a reader for exclusive use; it must be given back with release
+	 * @return A free reader
+	 */
+	public SAMFileReader acquire(){
+		SAMFileReader rtrn=idle.poll();
+		if(rtrn==null){rtrn=new SAMFileReader(bamFile);}
+		return rtrn;
+	}
+
+	/**
+	 * @param reader A reader from acquire, with no open iterator
+	 */
+	public void release(SAMFileReader reader){
+		if(closed || idle.size()>=maxIdle){
+			reader.close();
+			return;
+		}
+		idle.add(reader);
+		//Closed while the reader was being given back
+		if(closed){close();}
+	}
+
+	/**
+	 * @return All records in file order
+	 */
+	public SAMRecordIterator iterator(){
+		SAMFileReader reader=acquire();
+		return new PooledIterator(reader, reader.iterator());
+	}
+
+	/**
+	 * @return Records overlapping the 1-based closed interval, as in SAMFileReader
+	 */
+	public SAMRecordIterator queryOverlapping(String sequence, int start, int end){
+		SAMFileReader reader=acquire();
+		return new PooledIterator(reader, reader.queryOverlapping(sequence, start, end));
+	}
+
+	/**
+	 * @return Records in the 1-based closed interval, as in SAMFileReader
+	 */
+	public SAMRecordIterator query(String sequence, int start, int end, boolean contained){
+		SAMFileReader reader=acquire();
+		return new PooledIterator(reader, reader.query(sequence, start, end, contained));
+	}
+
+	/**
+	 * @return Unmapped records without a position
+	 */
+	public SAMRecordIterator queryUnmapped(){
+		SAMFileReader reader=acquire();
+		return new PooledIterator(reader, reader.queryUnmapped());
+	}
+
+	/**
+	 * @return Records starting at the 1-based position
+	 */
+	public SAMRecordIterator queryAlignmentStart(String sequence, int start){
+		SAMFileReader reader=acquire();
+		return new PooledIterator(reader, reader.queryAlignmentStart(sequence, start));
+	}
+
+	/**
+	 * Close the free readers; readers still in use are closed when they are given back
+	 * The pool can still be queried afterwards, but keeps no reader open
+	 */
+	public void close(){
+		closed=true;
+		SAMFileReader reader;
+		while((reader=idle.poll())!=null){
+			reader.close();
+		}
+	}
+
+	/**
+	 * Gives its reader back to the pool once, when closed or when there are no more records
+	 */
+	private class PooledIterator implements SAMRecordIterator{
+
+		private SAMFileReader reader;
+		private SAMRecordIterator iter;
+
+		PooledIterator(SAMFileReader reader, SAMRecordIterator iter){
+			this.reader=reader;
+			this.iter=iter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if(reader==null){return false;}
+			if(iter.hasNext()){return true;}
+			close();
+			return false;
+		}
+
+		@Override
+		public SAMRecord next() {
+			return iter.next();
+		}
+
+		@Override
+		public void remove() {
+			iter.remove();
+		}
+
+		@Override
+		public void close() {
+			if(reader==null){return;}
+			iter.close();
+			release(reader);
+			reader=null;
+		}
+
+		@Override
+		public SAMRecordIterator assertSorted(SortOrder sortOrder) {
+			iter.assertSorted(sortOrder);
+			return this;
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package guttmanlab.core.annotationcollection;
+
+import guttmanlab.core.annotation.Annotation;
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Work done on one shard of a collection, a reference sequence or a piece of one, by AnnotationCollection.mapShards
+ * The last shard has no reference name and holds the annotations without a position
+ * Shards are processed on several threads at once, so implementations should not share mutable state
+ * @author mguttman
+ *
+ * @param <T> The annotation type of the collection
+ * @param <R> The result for a shard
+ */
+public interface ShardFunction<T extends Annotation, R> {
+
+	/**
+	 * @param shard The region of the shard
+	 * @param annotations The annotations starting in the shard, sorted; closed by the caller
+	 * @return The result for this shard
+	 */
+	public R apply(Annotation shard, CloseableIterator<T> annotations);
+
+}
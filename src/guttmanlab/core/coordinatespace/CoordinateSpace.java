@@ -6,6 +6,8 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -23,6 +25,7 @@ public class CoordinateSpace {
 	/**
 	 * Description of reference sequences in this coordinate space
 	 * Key is reference name, value is reference length
+	 * Iteration follows the order of the source (table or header), which is the sort order of the space
 	 */
 	private Map<String, Integer> refSizes;
 		
@@ -69,6 +72,50 @@ public class CoordinateSpace {
 		return refSizes;
 	}
 	
+	/**
+	 * Get a comparator that sorts reference names in the order of this space, as it is now, matching names ignoring case
+	 * Names that are not in the space sort after all names that are, alphabetically
+	 * The comparator keeps its own copy of the order, so it is safe to key sorted containers with it
+	 * @return Comparator of reference names
+	 */
+	public Comparator<String> getReferenceOrder() {
+		final Map<String, Integer> positions=new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		for(String chr : refSizes.keySet()) {
+			if(!positions.containsKey(chr)) {
+				positions.put(chr, Integer.valueOf(positions.size()));
+			}
+		}
+		return new Comparator<String>() {
+			@Override
+			public int compare(String name1, String name2) {
+				Integer position1=positions.get(name1);
+				Integer position2=positions.get(name2);
+				if(position1!=null && position2!=null) {return position1.compareTo(position2);}
+				if(position1!=null) {return -1;}
+				if(position2!=null) {return 1;}
+				return String.CASE_INSENSITIVE_ORDER.compare(name1, name2);
+			}
+		};
+	}
+	
+	/**
+	 * Get a comparator that sorts annotations by reference in the order of this space, as it is now, then as the annotations compare themselves
+	 * @return Comparator of annotations
+	 */
+	public Comparator<Annotation> getAnnotationOrder() {
+		final Comparator<String> referenceOrder=getReferenceOrder();
+		return new Comparator<Annotation>() {
+			@Override
+			public int compare(Annotation a, Annotation b) {
+				if(!ReferenceDictionary.sameReference(a, b)) {
+					int comp=referenceOrder.compare(a.getReferenceName(), b.getReferenceName());
+					if(comp!=0) {return comp;}
+				}
+				return a.compareTo(b);
+			}
+		};
+	}
+	
 	/**
 	 * @return Total length of all reference sequences
 	 */
@@ -86,7 +133,7 @@ public class CoordinateSpace {
 	 * @return Map associating each reference name with sequence length
 	 */
 	private Map<String, Integer> getRefSeqLengthsFromSamHeader(SAMFileHeader header) {
-		Map<String, Integer> rtrn=new TreeMap<String, Integer>();
+		Map<String, Integer> rtrn=new LinkedHashMap<String, Integer>();
 		List<SAMSequenceRecord> records = header.getSequenceDictionary().getSequences();
 		if (records.size() > 0) {
 			for (SAMSequenceRecord rec : header.getSequenceDictionary().getSequences()) {
@@ -104,7 +151,7 @@ public class CoordinateSpace {
 	 * @return Map associating each reference name with sequence length
 	 */
 	private Map<String, Integer> getRefSeqLengthsFromTable(String referenceSizesFile) {
-		Map<String, Integer> rtrn=new TreeMap<String, Integer>();
+		Map<String, Integer> rtrn=new LinkedHashMap<String, Integer>();
 		
 		try{	
 			BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(referenceSizesFile)));
@@ -0,0 +1,195 @@
+package guttmanlab.core.coordinatespace;
+
+import guttmanlab.core.annotation.Annotation;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide table of reference names, interned to dense integer ids
+ * Annotations carry the id of their reference so that hot identity checks are integer compares instead of string compares
+ * Names are matched ignoring case, as every reference comparison in this library has always done
+ * The table only gives identity and hashing: ids are assigned first come first served, so they say nothing about sort order
+ * Annotations on different references compare by name; collections that sort in BAM header order take that order from their CoordinateSpace
+ * Names that are not references, such as the feature names used as references of a feature space, are not interned:
+ * they get NOT_INTERNED instead of an id and are compared by name
+ * @author mguttman
+ *
+ */
+public final class ReferenceDictionary {
+
+	/**
+	 * Id of a missing (null) reference name
+	 */
+	public static final int NO_REFERENCE=-1;
+
+	/**
+	 * Id of a name that was looked up without being interned; compare such names with the methods that also take the names
+	 */
+	public static final int NOT_INTERNED=-2;
+
+	private static final int INITIAL_CAPACITY=256;
+
+	/**
+	 * Lookup by exact name; the common case, so it does not take the lock
+	 */
+	private static final Map<String, Integer> idsByExactName=new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Lookup ignoring case, only used the first time a given spelling is seen; guarded by the class lock
+	 */
+	private static final Map<String, Integer> idsByName=new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+
+	//Arrays only grow and entries are written before the arrays are republished, so readers only need the volatile reads
+	private static volatile String[] names=new String[INITIAL_CAPACITY];
+	private static volatile int[] hashes=new int[INITIAL_CAPACITY];
+	private static int numReferences=0;
+
+	private ReferenceDictionary(){}
+
+	/**
+	 * @param referenceName A reference name
+	 * @return The id of the reference, assigning a new one if the name has not been seen
+	 */
+	public static int getId(String referenceName){
+		if(referenceName==null){return NO_REFERENCE;}
+		Integer id=idsByExactName.get(referenceName);
+		if(id!=null){return id.intValue();}
+		return intern(referenceName);
+	}
+
+	/**
+	 * Look a name up without adding it to the dictionary, for names that are not references (ie feature names)
+	 * @param name A name
+	 * @return The id of the name if it has been interned, otherwise NOT_INTERNED
+	 */
+	public static int lookupId(String name){
+		if(name==null){return NO_REFERENCE;}
+		Integer id=idsByExactName.get(name);
+		if(id!=null){return id.intValue();}
+		synchronized(ReferenceDictionary.class){
+			id=idsByName.get(name);
+		}
+		return id==null ? NOT_INTERNED : id.intValue();
+	}
+
+	/**
+	 * @param referenceName A reference name
+	 * @return The id of the reference
+	 */
+	private static synchronized int intern(String referenceName){
+		Integer id=idsByName.get(referenceName);
+		if(id==null){
+			if(numReferences==names.length){
+				String[] newNames=Arrays.copyOf(names, numReferences*2);
+				int[] newHashes=Arrays.copyOf(hashes, numReferences*2);
+				newHashes[numReferences]=nameHash(referenceName);
+				newNames[numReferences]=referenceName;
+				hashes=newHashes;
+				names=newNames;
+			}
+			else{
+				hashes[numReferences]=nameHash(referenceName);
+				names[numReferences]=referenceName;
+				publish();
+			}
+			id=Integer.valueOf(numReferences++);
+			idsByName.put(referenceName, id);
+		}
+		idsByExactName.put(referenceName, id);
+		return id.intValue();
+	}
+
+	/**
+	 * Volatile writes of the current arrays, so entries written before this are visible to readers
+	 */
+	private static void publish(){
+		int[] h=hashes;
+		hashes=h;
+		String[] n=names;
+		names=n;
+	}
+
+	/**
+	 * @param id A reference id
+	 * @return The name the reference was first seen with
+	 */
+	public static String getName(int id){
+		if(id==NO_REFERENCE){return null;}
+		return names[id];
+	}
+
+	/**
+	 * Order of references that does not depend on any coordinate space: by name, ignoring case
+	 * To sort in the order of a BAM header use the comparators of its CoordinateSpace
+	 * @param id1 A reference id
+	 * @param id2 Another reference id
+	 * @return Negative, zero or positive as the first reference sorts before, with or after the second
+	 */
+	public static int compare(int id1, int id2){
+		if(id1==id2){return 0;}
+		if(id1==NO_REFERENCE){return -1;}
+		if(id2==NO_REFERENCE){return 1;}
+		String[] n=names;
+		return n[id1].compareToIgnoreCase(n[id2]);
+	}
+
+	/**
+	 * Compare references that may not be interned, falling back to the names
+	 * @param id1 A reference id, or NOT_INTERNED
+	 * @param name1 The name of the first reference
+	 * @param id2 Another reference id, or NOT_INTERNED
+	 * @param name2 The name of the second reference
+	 * @return Negative, zero or positive as the first reference sorts before, with or after the second
+	 */
+	public static int compare(int id1, String name1, int id2, String name2){
+		if(id1!=NOT_INTERNED && id2!=NOT_INTERNED){return compare(id1, id2);}
+		if(id1==NO_REFERENCE){return -1;}
+		if(id2==NO_REFERENCE){return 1;}
+		return name1.compareToIgnoreCase(name2);
+	}
+
+	/**
+	 * @param id1 A reference id, or NOT_INTERNED
+	 * @param name1 The name of the first reference
+	 * @param id2 Another reference id, or NOT_INTERNED
+	 * @param name2 The name of the second reference
+	 * @return Whether the two are the same reference
+	 */
+	public static boolean sameReference(int id1, String name1, int id2, String name2){
+		if(id1!=NOT_INTERNED && id2!=NOT_INTERNED){return id1==id2;}
+		if(id1==NO_REFERENCE || id2==NO_REFERENCE){return false;}
+		return name1.equalsIgnoreCase(name2);
+	}
+
+	/**
+	 * @param a An annotation
+	 * @param b Another annotation
+	 * @return Whether the two annotations are on the same reference
+	 */
+	public static boolean sameReference(Annotation a, Annotation b){
+		return sameReference(a.getReferenceId(), a.getReferenceName(), b.getReferenceId(), b.getReferenceName());
+	}
+
+	/**
+	 * A hash code of the name ignoring case, so it agrees with sameReference whether or not the names are interned
+	 * @param id A reference id, or NOT_INTERNED
+	 * @param name The name of the reference
+	 * @return Hash code of the reference
+	 */
+	public static int hash(int id, String name){
+		if(id==NO_REFERENCE){return 0;}
+		if(id!=NOT_INTERNED){return hashes[id];}
+		return nameHash(name);
+	}
+
+	private static int nameHash(String name){
+		int rtrn=0;
+		for(int i=0; i<name.length(); i++){
+			rtrn=31*rtrn+Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+		}
+		return rtrn;
+	}
+}
@@ -85,6 +85,65 @@ public class IntervalTree<V>
 		}
 	}
 	
+	/**
+	 * Build a balanced tree in linear time from intervals that are already sorted by start, then end.
+	 * Equal intervals share one node holding their values in order, as repeated calls to put would give.
+	 * @param starts The interval starts.
+	 * @param ends The interval ends.
+	 * @param values The value of each interval.
+	 * @param count The number of intervals to use from the arrays.
+	 * @return The tree.
+	 */
+	public static <V> IntervalTree<V> fromSorted( int[] starts, int[] ends, List<V> values, int count )
+	{
+		List<Node<V>> nodes = new ArrayList<Node<V>>();
+		Node<V> last = null;
+		for ( int i = 0; i < count; i++ )
+		{
+			int start = starts[i];
+			int end = ends[i];
+			if ( start > end )
+				throw new IllegalArgumentException("Start cannot exceed end. Start=" + start + "; end="+end);
+			if ( last != null )
+			{
+				int cmpVal = last.compare(start,end);
+				if ( cmpVal < 0 )
+					throw new IllegalArgumentException("Intervals are not sorted at " + start + "-" + end);
+				if ( cmpVal == 0 )
+				{
+					last.addContainedValue(values.get(i));
+					continue;
+				}
+			}
+			last = new Node<V>(start,end,values.get(i));
+			nodes.add(last);
+		}
+
+		IntervalTree<V> tree = new IntervalTree<V>();
+		if ( !nodes.isEmpty() )
+		{
+			//All levels but the deepest are full; coloring the deepest level red keeps every path's black count equal
+			int deepest = 31 - Integer.numberOfLeadingZeros(nodes.size());
+			tree.mRoot = link(nodes, 0, nodes.size(), null, 0, deepest);
+		}
+		return tree;
+	}
+
+	private static <V> Node<V> link( List<Node<V>> nodes, int from, int to, Node<V> parent, int depth, int deepest )
+	{
+		if ( from >= to )
+			return null;
+		int mid = (from + to) >>> 1;
+		Node<V> node = nodes.get(mid);
+		node.mParent = parent;
+		node.mIsBlack = depth == 0 || depth < deepest;
+		node.mLeft = link(nodes, from, mid, node, depth + 1, deepest);
+		node.mRight = link(nodes, mid + 1, to, node, depth + 1, deepest);
+		node.mSize = to - from;
+		node.setMaxEnd();
+		return node;
+	}
+
 	/**
 	 * Put a new interval into the tree (or update the value associated with an existing interval).
 	 * If the interval is novel, the special sentinel value is returned.
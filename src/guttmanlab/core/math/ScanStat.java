@@ -1,11 +1,100 @@
 package guttmanlab.core.math;
 import java.math.BigDecimal;
+import java.util.Arrays;
 
 import jsc.distributions.Binomial;
-import jsc.distributions.Poisson;
+import jsc.util.Maths;
 
+/**
+ * Scan statistic p-values
+ * Poisson probabilities are computed in log space from a shared table of log factorials, using the same terms as
+ * jsc's Poisson, so no distribution objects are made per term
+ * An instance holds the Poisson cumulative distribution for one lambda and window, extended as larger counts are seen,
+ * for scanning many windows against the same background
+ */
 public class ScanStat {
 	
+	/**
+	 * Largest count whose log factorial is kept in the table
+	 */
+	private static final int MAX_TABLE_SIZE=1<<20;
+	private static volatile double[] logFactorials=new double[0];
+	
+	private double lambda;
+	private double w;
+	private double T;
+	private double lambdaW;
+	private double logLambdaW;
+	/**
+	 * Poisson pmf and cdf at lambdaW for 0..numTerms-1
+	 */
+	private double[] pmf;
+	private double[] cdf;
+	private int numTerms;
+	
+	/**
+	 * @param lambda    # reads on chromosome / # non-masked bases on chromosome
+	 * @param w            window size
+	 * @param T            # non-masked bases on chromosome
+	 */
+	public ScanStat(double lambda, double w, double T){
+		this.lambda=lambda;
+		this.w=w;
+		this.T=T;
+		this.lambdaW=lambda*w;
+		this.logLambdaW=Math.log(lambdaW);
+		this.pmf=new double[16];
+		this.cdf=new double[16];
+	}
+	
+	/**
+	 * @param k Observed count
+	 * @return The same value as scanPVal(k, lambda, w, T)
+	 */
+	public synchronized double pValue(int k){
+		if(k<=2){return 1;}
+		extendTo(k-1);
+		double a=((k-lambdaW)/k)*(lambda*(T-w)*pmf[k-1]);
+		double result=cdf[k-1]*Math.exp(-a);
+		double p=1-result;
+		p=Math.abs(p);
+		p=Math.min(1, p);
+		return p;
+	}
+	
+	/**
+	 * @param counts Observed counts
+	 * @return The p-value of each count, as pValue
+	 */
+	public synchronized double[] pValues(int[] counts){
+		int max=0;
+		for(int k: counts){max=Math.max(max, k);}
+		if(max>2){extendTo(max-1);}
+		double[] rtrn=new double[counts.length];
+		for(int i=0; i<counts.length; i++){
+			rtrn[i]=pValue(counts[i]);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Make the pmf and cdf cover 0..k
+	 */
+	private void extendTo(int k){
+		if(k<numTerms){return;}
+		if(!(lambdaW>0)){throw new IllegalArgumentException("Invalid Poisson parameter.");}
+		if(k>=pmf.length){
+			int length=Math.max(k+1, 2*pmf.length);
+			pmf=Arrays.copyOf(pmf, length);
+			cdf=Arrays.copyOf(cdf, length);
+		}
+		for(int i=numTerms; i<=k; i++){
+			pmf[i]=Math.exp(logPoisson(i, lambdaW, logLambdaW));
+			cdf[i]=(i==0 ? 0 : cdf[i-1])+pmf[i];
+		}
+		numTerms=k+1;
+	}
+	
 	public static double getPValue(double controlCount, double sampleCount, double controlTotal, double sampleTotal, double winSize,int chrSize)
 	{
 		if(sampleCount < 2)
@@ -67,16 +156,59 @@ public class ScanStat {
 		
 	}
 	
+	/**
+	 * @return The Poisson pdf at k, as jsc's Poisson(lambda).pdf(k)
+	 */
 	public static double poisson(int k, double lambda){
-		Poisson poiss=new Poisson(lambda);
-		return poiss.pdf(k);
+		checkPoisson(k, lambda);
+		return Math.exp(logPoisson(k, lambda, Math.log(lambda)));
 	}
 	
+	/**
+	 * @return The Poisson cdf at k, summing the pdf from 0
+	 */
 	public static double Fp(int k,double lambdaW){
+		if(k<0){return 0;}
+		checkPoisson(0, lambdaW);
+		double logLambdaW=Math.log(lambdaW);
 		double sum=0;
 		for(int i=0; i<=k; i++){
-			sum+=poisson(i, lambdaW);
+			sum+=Math.exp(logPoisson(i, lambdaW, logLambdaW));
 		}
 		return sum;
 	}
+	
+	private static void checkPoisson(int k, double lambda){
+		if(!(lambda>0)){throw new IllegalArgumentException("Invalid Poisson parameter.");}
+		if(k<0){throw new IllegalArgumentException("Invalid variate-value.");}
+	}
+	
+	/**
+	 * The log of the Poisson pdf, with the terms in the order jsc uses so the values are the same
+	 */
+	private static double logPoisson(int k, double lambda, double logLambda){
+		return (double)k*logLambda-lambda-logFactorial(k);
+	}
+	
+	/**
+	 * @return jsc's log factorial of k, from the table when k is small enough
+	 */
+	private static double logFactorial(int k){
+		double[] table=logFactorials;
+		if(k<table.length){return table[k];}
+		if(k>=MAX_TABLE_SIZE){return Maths.logFactorial(k);}
+		return growLogFactorials(k)[k];
+	}
+	
+	private static synchronized double[] growLogFactorials(int k){
+		double[] table=logFactorials;
+		if(k<table.length){return table;}
+		int length=(int)Math.min(MAX_TABLE_SIZE, Math.max(k+1L, 2L*table.length));
+		double[] grown=Arrays.copyOf(table, length);
+		for(int i=table.length; i<length; i++){
+			grown[i]=Maths.logFactorial(i);
+		}
+		logFactorials=grown;
+		return grown;
+	}
 }
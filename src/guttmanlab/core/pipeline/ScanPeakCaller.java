@@ -0,0 +1,266 @@
+package guttmanlab.core.pipeline;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.io.BEDFileIO;
+import guttmanlab.core.annotation.io.BEDWriter;
+import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.annotationcollection.BAMPairedFragmentCollection;
+import guttmanlab.core.math.ScanStat;
+import guttmanlab.core.util.CommandLineParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.util.CloseableIterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Calls windows of genes enriched in a sample over a control with the scan statistic
+ * Each gene is one task: the sample and control fragments overlapping it are read together in one coordinate-sorted pass,
+ * which gives both the gene totals and the window counts, and each window is scored with ScanStat.getPValue
+ * Genes are scored on a thread pool and written in the order they were given, each gene's windows by start
+ * @author mguttman
+ *
+ */
+public class ScanPeakCaller {
+
+	private static Logger logger = Logger.getLogger(ScanPeakCaller.class.getName());
+	/**
+	 * Genes scored ahead of the one being written, per thread
+	 */
+	private static final int GENES_PER_THREAD=4;
+
+	private AnnotationCollection<? extends Annotation> sample;
+	private AnnotationCollection<? extends Annotation> control;
+	private int windowSize;
+	private int stepSize;
+	private double maxP;
+
+	/**
+	 * @param sample The sample fragments
+	 * @param control The control fragments
+	 * @param windowSize Window size
+	 * @param stepSize Window step size
+	 * @param maxP Largest p-value to report
+	 */
+	public ScanPeakCaller(AnnotationCollection<? extends Annotation> sample, AnnotationCollection<? extends Annotation> control, int windowSize, int stepSize, double maxP){
+		this.sample=sample;
+		this.control=control;
+		this.windowSize=windowSize;
+		this.stepSize=stepSize;
+		this.maxP=maxP;
+	}
+
+	/**
+	 * A scored window of a gene
+	 */
+	public static class Peak extends SingleInterval {
+
+		private String gene;
+		private int sampleCount;
+		private int controlCount;
+		private double pValue;
+
+		Peak(String reference, int start, int end, String gene, int sampleCount, int controlCount, double pValue){
+			super(reference, start, end);
+			this.gene=gene;
+			this.sampleCount=sampleCount;
+			this.controlCount=controlCount;
+			this.pValue=pValue;
+		}
+
+		public String getGene(){return gene;}
+
+		public int getSampleCount(){return sampleCount;}
+
+		public int getControlCount(){return controlCount;}
+
+		public double getPValue(){return pValue;}
+
+		/**
+		 * Write the window as a BED line named by its gene, with its p-value as the score
+		 * @param out The writer
+		 * @throws IOException
+		 */
+		public void write(BEDWriter out) throws IOException {
+			out.write(this, 0, 0, 0, pValue, gene, getReferenceEndPosition(), getReferenceEndPosition());
+		}
+	}
+
+	/**
+	 * The windows of one gene
+	 */
+	private static class GeneResult {
+		List<Peak> peaks=new ArrayList<Peak>();
+		int numWindows;
+	}
+
+	/**
+	 * Score the windows of a gene
+	 * Windows are those getPopulatedWindows(gene, windowSize, stepSize) would make, counted over the gene's span
+	 * @param gene The gene
+	 * @return The windows with a p-value of at most maxP, by start
+	 */
+	public List<Peak> scoreGene(Annotation gene){
+		return score(gene).peaks;
+	}
+
+	private GeneResult score(Annotation gene){
+		int first=roundUp(gene.getReferenceStartPosition()-windowSize+1);
+		int numWindows=Math.max(0, (gene.getReferenceEndPosition()-first+stepSize-1)/stepSize);
+		int[] sampleCounts=new int[numWindows];
+		int[] controlCounts=new int[numWindows];
+		int sampleTotal=0;
+		int controlTotal=0;
+
+		CloseableIterator<? extends Annotation> sampleIter=sample.sortedIterator(gene, false);
+		CloseableIterator<? extends Annotation> controlIter=control.sortedIterator(gene, false);
+		try{
+			Annotation nextSample=sampleIter.hasNext() ? sampleIter.next() : null;
+			Annotation nextControl=controlIter.hasNext() ? controlIter.next() : null;
+			while(nextSample!=null || nextControl!=null){
+				if(nextControl==null || (nextSample!=null && nextSample.getReferenceStartPosition()<=nextControl.getReferenceStartPosition())){
+					addToWindows(nextSample, gene, first, sampleCounts);
+					sampleTotal++;
+					nextSample=sampleIter.hasNext() ? sampleIter.next() : null;
+				}
+				else{
+					addToWindows(nextControl, gene, first, controlCounts);
+					controlTotal++;
+					nextControl=controlIter.hasNext() ? controlIter.next() : null;
+				}
+			}
+		}
+		finally{
+			sampleIter.close();
+			controlIter.close();
+		}
+
+		GeneResult rtrn=new GeneResult();
+		rtrn.numWindows=numWindows;
+		for(int i=0; i<numWindows; i++){
+			double pValue=ScanStat.getPValue(controlCounts[i], sampleCounts[i], controlTotal, sampleTotal, windowSize, gene.size());
+			if(pValue<=maxP){
+				int start=first+i*stepSize;
+				rtrn.peaks.add(new Peak(gene.getReferenceName(), start, start+windowSize, gene.getName(), sampleCounts[i], controlCounts[i], pValue));
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Count a fragment in the windows of the gene it touches, as WindowIterator does
+	 */
+	private void addToWindows(Annotation fragment, Annotation gene, int first, int[] counts){
+		Iterator<SingleInterval> blocks=fragment.getBlocks();
+		while(blocks.hasNext()){
+			SingleInterval block=blocks.next();
+			int start=Math.max(first, roundUp(block.getReferenceStartPosition()-windowSize));
+			int end=Math.min(gene.getReferenceEndPosition(), block.getReferenceEndPosition());
+			for(int i=start; i<end; i+=stepSize){
+				counts[(i-first)/stepSize]++;
+			}
+		}
+	}
+
+	private int roundUp(int winStart){
+		return (winStart + stepSize -1) / stepSize *stepSize;
+	}
+
+	/**
+	 * Score genes on a thread pool and write the reported windows as BED lines, in gene order
+	 * Each window is named by its gene and scored with its p-value
+	 * @param genes The genes to score
+	 * @param out Where to write the windows
+	 * @param numThreads Number of threads
+	 * @return The number of windows scored
+	 * @throws IOException
+	 */
+	public long callPeaks(Iterator<? extends Annotation> genes, BEDWriter out, int numThreads) throws IOException {
+		ExecutorService executor=Executors.newFixedThreadPool(Math.max(1, numThreads));
+		Queue<Future<GeneResult>> running=new ArrayDeque<Future<GeneResult>>();
+		int maxRunning=GENES_PER_THREAD*Math.max(1, numThreads);
+		long numWindows=0;
+		int numGenes=0;
+		long startTime=System.currentTimeMillis();
+		try{
+			while(genes.hasNext() || !running.isEmpty()){
+				while(genes.hasNext() && running.size()<maxRunning){
+					final Annotation gene=genes.next();
+					running.add(executor.submit(new Callable<GeneResult>(){
+						@Override
+						public GeneResult call() {
+							return score(gene);
+						}
+					}));
+				}
+				GeneResult result=running.poll().get();
+				for(Peak peak: result.peaks){
+					peak.write(out);
+				}
+				numWindows+=result.numWindows;
+				numGenes++;
+			}
+		}
+		catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while calling peaks", ex);
+		}
+		catch(ExecutionException ex){
+			Throwable cause=ex.getCause();
+			if(cause instanceof IOException){throw (IOException)cause;}
+			if(cause instanceof RuntimeException){throw (RuntimeException)cause;}
+			if(cause instanceof Error){throw (Error)cause;}
+			throw new IOException(cause);
+		}
+		finally{executor.shutdownNow();}
+
+		double seconds=Math.max(1, System.currentTimeMillis()-startTime)/1000.0;
+		logger.info("Scored "+numGenes+" genes and "+numWindows+" windows in "+seconds+" seconds ("+Math.round(numGenes/seconds)+" genes/s, "+Math.round(numWindows/seconds)+" windows/s)");
+		return numWindows;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-b", "Bam sample file", true);
+		p.addStringArg("-i", "Bam input file", true);
+		p.addStringArg("-o", "Output BED file",true);
+		p.addStringArg("-g", "Bed gene file", false, "/storage/Annotations/RefSeq/mm9/RefSeq.bed");
+		p.addStringArg("-s", "Chromsome size file", false, "/storage/Users/cburghard/Projects/RAP_Pipeline/mm9chrm.bed");
+		p.addIntArg("-ws", "Window size", false, 5000);
+		p.addIntArg("-step", "Window step size", false, 500);
+		p.addDoubleArg("-p", "P value cutoff", false, .005);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		p.parse(args);
+
+		BEDFileIO io = new BEDFileIO(p.getStringArg("-s"));
+		AnnotationCollection<? extends Annotation> genes = io.loadFromFile(p.getStringArg("-g"));
+		BAMPairedFragmentCollection sample = new BAMPairedFragmentCollection(new File(p.getStringArg("-b")));
+		BAMPairedFragmentCollection control = new BAMPairedFragmentCollection(new File(p.getStringArg("-i")));
+		ScanPeakCaller caller = new ScanPeakCaller(sample, control, p.getIntArg("-ws"), p.getIntArg("-step"), p.getDoubleArg("-p"));
+
+		BEDWriter writer = new BEDWriter(p.getStringArg("-o"));
+		CloseableIterator<? extends Annotation> iter = genes.sortedIterator();
+		try{
+			caller.callPeaks(iter, writer, p.getIntArg("-t"));
+		}
+		finally{
+			iter.close();
+			writer.close();
+		}
+	}
+
+}
@@ -1,17 +1,12 @@
 package guttmanlab.core.serialize.sam;
 
-import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.BlockedAnnotation;
-import guttmanlab.core.annotation.DerivedAnnotation;
 import guttmanlab.core.annotation.MappedFragment;
 import guttmanlab.core.annotation.SAMFragment;
-import guttmanlab.core.annotation.SingleInterval;
 import guttmanlab.core.annotation.predicate.ReadFlag;
-import guttmanlab.core.annotationcollection.AnnotationCollection;
 import guttmanlab.core.util.SAMFlagDecoder;
 
 import java.util.Collection;
-import java.util.Iterator;
 
 import net.sf.samtools.SAMRecord;
 
@@ -21,7 +16,6 @@ import org.apache.avro.generic.GenericRecord;
 public class AvroSamRecord extends BlockedAnnotation implements GenericRecord, MappedFragment {
 	
 	private GenericRecord record;
-	private Annotation annotation;
 	private boolean firstReadTranscriptionStrand;
 	public static int MIN_MAPPING_QUALITY = 0;
 	public static int MAX_MAPPING_QUALITY = Integer.MAX_VALUE; // mapq=255 means mapping quality not available
@@ -66,8 +60,8 @@ public class AvroSamRecord extends BlockedAnnotation implements GenericRecord, M
 			}
 		}
 		
-		// Construct annotation
-		annotation = SAMFragment.parseCigar(cigar, chr, start, strand, name);
+		// Blocks are stored in this annotation itself
+		SAMFragment.addCigarBlocks(this, cigar, chr, start, strand, name);
 	}
 	
 	/**
@@ -145,41 +139,6 @@ public class AvroSamRecord extends BlockedAnnotation implements GenericRecord, M
 		return getIntAttribute("pos");
 	}
 
-	@Override
-	public int getReferenceEndPosition() {
-		return annotation.getReferenceEndPosition();
-	}
-
-	@Override
-	public Iterator<SingleInterval> getBlocks() {
-		return annotation.getBlocks();
-	}
-
-	@Override
-	public int getNumberOfBlocks() {
-		return annotation.getNumberOfBlocks();
-	}
-
-	@Override
-	public int size() {
-		return annotation.size();
-	}
-
-	@Override
-	public Strand getOrientation() {
-		return annotation.getOrientation();
-	}
-
-	@Override
-	public int getRelativePositionFrom5PrimeOfFeature(int referenceStart) {
-		return annotation.getRelativePositionFrom5PrimeOfFeature(referenceStart);
-	}
-
-	@Override
-	public AnnotationCollection<DerivedAnnotation<? extends Annotation>> getWindows(int windowSize, int stepSize) {
-		return annotation.getWindows(windowSize, stepSize);
-	}
-
 	@Override
 	public void setOrientation(Strand orientation) {
 		throw new UnsupportedOperationException("AvroSamRecord objects are immutable");
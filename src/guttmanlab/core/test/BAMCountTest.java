@@ -0,0 +1,454 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.CountedWindow;
+import guttmanlab.core.annotation.PopulatedWindow;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.io.BEDWriter;
+import guttmanlab.core.annotation.predicate.MappedReadFilter;
+import guttmanlab.core.annotation.predicate.MinimumLengthFilter;
+import guttmanlab.core.annotation.predicate.StrandFilter;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+import guttmanlab.core.annotationcollection.CoverageIndex;
+import guttmanlab.core.annotationcollection.ShardFunction;
+import guttmanlab.core.pipeline.ScanPeakCaller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+import org.apache.commons.collections15.Predicate;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BAMCountTest {
+
+	private File bamFile;
+
+	@Before
+	public void setUp() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("countChr1", 100000));
+		header.addSequence(new SAMSequenceRecord("countChr2", 100000));
+		header.addSequence(new SAMSequenceRecord("countChr3", 100000));
+		bamFile = File.createTempFile("BAMCountTest", ".bam");
+		bamFile.deleteOnExit();
+		new File(bamFile.getAbsolutePath().replaceAll(".bam$", ".bai")).deleteOnExit();
+
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bamFile);
+		//countChr3 has no reads
+		for(int i = 0; i < 50; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			record.setReferenceName(i < 30 ? "countChr1" : "countChr2");
+			record.setAlignmentStart(100 + i * 10);
+			record.setCigarString(i % 3 == 0 ? "10M" : "20M");
+			if(i == 5 || i == 25) {record.setCigarString("5M100N15M");}
+			record.setReadNegativeStrandFlag(i % 2 == 0);
+			record.setReadString("ACGTACGTACGTACGTACGT".substring(0, i % 3 == 0 ? 10 : 20));
+			record.setBaseQualityString("IIIIIIIIIIIIIIIIIIII".substring(0, i % 3 == 0 ? 10 : 20));
+			//Placed but unmapped reads
+			if(i % 7 == 0) {
+				record.setReadUnmappedFlag(true);
+				record.setCigarString("*");
+			}
+			writer.addAlignment(record);
+		}
+		for(int i = 0; i < 5; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("unplaced" + i);
+			record.setReadUnmappedFlag(true);
+			record.setReadString("ACGT");
+			record.setBaseQualityString("IIII");
+			writer.addAlignment(record);
+		}
+		writer.close();
+	}
+
+	private static int iterate(BAMSingleReadCollection bam) {
+		CloseableIterator<SAMFragment> iter = bam.sortedIterator();
+		int rtrn = 0;
+		while(iter.hasNext()) {
+			iter.next();
+			rtrn++;
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void CountsMatchIteration() {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		assertEquals("all records from the index", 55, bam.getNumAnnotations());
+		assertEquals(iterate(bam), bam.getNumAnnotations());
+
+		bam.addFilter(new MappedReadFilter<SAMFragment>());
+		assertEquals("mapped records from the index", 42, bam.getNumAnnotations());
+		assertEquals(iterate(bam), bam.getNumAnnotations());
+
+		bam.addFilter(new MinimumLengthFilter<SAMFragment>(10));
+		assertEquals("counted per reference", iterate(bam), bam.getNumAnnotations());
+		assertEquals(28, bam.getNumAnnotations());
+	}
+
+	private static int iterate(BAMSingleReadCollection bam, Annotation region, boolean fullyContained) {
+		CloseableIterator<SAMFragment> iter = bam.sortedIterator(region, fullyContained);
+		int rtrn = 0;
+		while(iter.hasNext()) {
+			iter.next();
+			rtrn++;
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void RegionCountsMatchIteration() {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		BlockedAnnotation gene = new BlockedAnnotation("gene");
+		gene.addBlocks(new SingleInterval("countChr1", 140, 160, Strand.POSITIVE));
+		gene.addBlocks(new SingleInterval("countChr1", 240, 400, Strand.POSITIVE));
+		List<Annotation> regions = new ArrayList<Annotation>();
+		regions.add(gene);
+		regions.add(new SingleInterval("countChr1", 100, 160, Strand.NEGATIVE));
+		regions.add(new SingleInterval("countChr1", 150, 400, Strand.BOTH));
+		regions.add(new SingleInterval("countChr3", 0, 1000, Strand.BOTH));
+		for(Annotation region : regions) {
+			for(boolean fullyContained : new boolean[] {false, true}) {
+				assertEquals(region.toUCSC(), iterate(bam, region, fullyContained), bam.numOverlappers(region, fullyContained));
+			}
+		}
+		assertTrue(bam.numOverlappers(gene, false) > 0);
+		bam.addFilter(new MinimumLengthFilter<SAMFragment>(10));
+		assertEquals(iterate(bam, gene, false), bam.numOverlappers(gene, false));
+	}
+
+	@Test
+	public void RegionListReturnsEachReadOnce() {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		BlockedAnnotation gene = new BlockedAnnotation("gene");
+		gene.addBlocks(new SingleInterval("countChr1", 140, 160, Strand.BOTH));
+		gene.addBlocks(new SingleInterval("countChr1", 240, 400, Strand.BOTH));
+		List<Annotation> regions = new ArrayList<Annotation>();
+		regions.add(new SingleInterval("countChr2", 400, 450, Strand.BOTH));
+		regions.add(gene);
+		regions.add(new SingleInterval("countChr1", 380, 420, Strand.BOTH));
+
+		Set<String> expected = new TreeSet<String>();
+		int perRegion = 0;
+		for(Annotation region : regions) {
+			CloseableIterator<SAMFragment> iter = bam.sortedIterator(region, false);
+			while(iter.hasNext()) {
+				expected.add(iter.next().getName());
+				perRegion++;
+			}
+			iter.close();
+		}
+		List<String> names = new ArrayList<String>();
+		CloseableIterator<SAMFragment> iter = bam.sortedIterator(regions, false);
+		while(iter.hasNext()) {
+			names.add(iter.next().getName());
+		}
+		iter.close();
+		assertEquals(expected, new TreeSet<String>(names));
+		assertEquals("no read is returned twice", expected.size(), names.size());
+		assertTrue("the spliced read overlaps two exons", perRegion > names.size());
+		assertEquals("countChr1 comes first in the header", "read4", names.get(0));
+	}
+
+	@Test
+	public void ConcurrentIterators() throws Exception {
+		final BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		final SingleInterval region = new SingleInterval("countChr1", 100, 400, Strand.BOTH);
+		final int expected = iterate(bam, region, false);
+
+		//Two iterators open at once on one collection
+		CloseableIterator<SAMFragment> outer = bam.sortedIterator();
+		int count = 0;
+		while(outer.hasNext()) {
+			outer.next();
+			if(count++ == 10) {assertEquals(expected, iterate(bam, region, false));}
+		}
+		outer.close();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+		for(int i = 0; i < 20; i++) {
+			counts.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return iterate(bam, region, false);
+				}
+			}));
+		}
+		for(Future<Integer> c : counts) {
+			assertEquals(expected, c.get().intValue());
+		}
+		executor.shutdown();
+		assertEquals("iterators leave the collection's filters alone", 0, bam.getFilters().size());
+	}
+
+	private static List<String> windows(CloseableIterator<? extends PopulatedWindow<SAMFragment>> iter) {
+		List<String> rtrn = new ArrayList<String>();
+		while(iter.hasNext()) {
+			PopulatedWindow<SAMFragment> window = iter.next();
+			rtrn.add(window.toUCSC() + ":" + window.getNumberOfAnnotationsInWindow());
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void ShardsMatchOnePass() {
+		//Small shards so that reads and windows fall across shard boundaries
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile) {
+			@Override
+			protected int getShardLength() {return 128;}
+		};
+		bam.addFilter(new MinimumLengthFilter<SAMFragment>(10));
+		assertEquals(iterate(bam), bam.getNumAnnotations(4));
+
+		//Sweeping each reference on its own, as the shards do
+		List<String> expected = new ArrayList<String>();
+		for(String reference : new String[] {"countChr1", "countChr2", "countChr3"}) {
+			expected.addAll(windows(bam.getPopulatedWindows(new SingleInterval(reference, 0, 100000, Strand.BOTH), 50, 25)));
+		}
+		List<String> sharded = windows(bam.getPopulatedWindows(50, 25, 4));
+		assertEquals("one pass starts again at each reference", expected, windows(bam.getPopulatedWindows(50, 25)));
+		assertEquals(new TreeSet<String>(expected), new TreeSet<String>(sharded));
+		assertEquals(expected.size(), sharded.size());
+		assertEquals("windows come back in coordinate order", "countChr1:75-125", sharded.get(0).split(":\\d+$")[0]);
+
+		CloseableIterator<Integer> counts = bam.mapShards(new ShardFunction<SAMFragment, Integer>() {
+			@Override
+			public Integer apply(Annotation shard, CloseableIterator<SAMFragment> annotations) {
+				int rtrn = 0;
+				while(annotations.hasNext()) {
+					assertTrue(shard.getReferenceStartPosition() <= annotations.next().getReferenceStartPosition());
+					rtrn++;
+				}
+				return rtrn;
+			}
+		}, 4);
+		int total = 0;
+		while(counts.hasNext()) {total += counts.next();}
+		counts.close();
+		assertEquals("each read is in one shard", iterate(bam), total);
+	}
+
+	@Test
+	public void WindowCountsMatchWindows() {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		SingleInterval region = new SingleInterval("countChr1", 100, 500, Strand.BOTH);
+		assertEquals(windows(bam.getPopulatedWindows(region, 50, 25, false)), windows(bam.getWindowCounts(region, 50, 25, false)));
+		assertEquals(windows(bam.getPopulatedWindows(50, 25)), windows(bam.getWindowCounts(50, 25)));
+
+		CloseableIterator<CountedWindow<SAMFragment>> iter = bam.getWindowCounts(50, 25);
+		while(iter.hasNext()) {
+			CountedWindow<SAMFragment> window = iter.next();
+			assertEquals(window.getNumberOfAnnotationsInWindow(), window.getNumberOfAnnotationsInWindow(Strand.POSITIVE) + window.getNumberOfAnnotationsInWindow(Strand.NEGATIVE));
+			assertEquals("score is the count", window.getNumberOfAnnotationsInWindow(), window.getScore().getScore(), 0);
+			assertNull(window.getParentAnnotation());
+		}
+		iter.close();
+
+		iter = bam.getWindowCounts(region, 50, 25, false);
+		assertTrue(iter.hasNext());
+		assertEquals("made from the region", region, iter.next().getParentAnnotation());
+		iter.close();
+	}
+
+	/**
+	 * @return The number of reads with a block overlapping a block of the region, each read once
+	 */
+	private static int overlapping(BAMSingleReadCollection bam, Annotation region) {
+		CloseableIterator<SAMFragment> iter = bam.sortedIterator();
+		int rtrn = 0;
+		while(iter.hasNext()) {
+			SAMFragment read = iter.next();
+			if(read.getNumberOfBlocks() > 0 && region.overlaps(read)) {rtrn++;}
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void CoverageMatchesOverlappers() throws IOException {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		CoverageIndex coverage = CoverageIndex.build(bam, bamFile);
+		File file = File.createTempFile("BAMCountTest", ".cov");
+		file.deleteOnExit();
+		coverage.write(file);
+		CoverageIndex persisted = CoverageIndex.read(file, bam, bamFile);
+
+		Random random = new Random(7);
+		Strand[] strands = {Strand.BOTH, Strand.POSITIVE, Strand.NEGATIVE};
+		for(int i = 0; i < 500; i++) {
+			int start = 50 + random.nextInt(700);
+			Annotation region = new SingleInterval(i % 2 == 0 ? "countChr1" : "countChr2", start, start + 1 + random.nextInt(120), strands[i % 3]);
+			assertEquals(region.toUCSC(), bam.numOverlappers(region, false), coverage.count(region));
+			assertEquals(region.toUCSC(), coverage.count(region), persisted.count(region));
+		}
+		for(int i = 0; i < 200; i++) {
+			//Exons either side of the introns of the spliced reads
+			BlockedAnnotation gene = new BlockedAnnotation("gene");
+			int start = 100 + random.nextInt(400);
+			for(int j = 0; j < 3; j++) {
+				int length = 1 + random.nextInt(30);
+				gene.addBlocks(new SingleInterval(i % 2 == 0 ? "countChr1" : "countChr2", start, start + length, strands[i % 3]));
+				start += length + 1 + random.nextInt(100);
+			}
+			assertEquals(gene.toBED(), overlapping(bam, gene), persisted.count(gene));
+		}
+		BlockedAnnotation gene = new BlockedAnnotation("gene");
+		gene.addBlocks(new SingleInterval("countChr1", 140, 160, Strand.BOTH));
+		gene.addBlocks(new SingleInterval("countChr1", 240, 260, Strand.BOTH));
+		assertEquals("the spliced read is counted once across both exons", overlapping(bam, gene), persisted.count(gene));
+		assertTrue("the spliced read overlaps both exons",
+				bam.numOverlappers(new SingleInterval("countChr1", 140, 160, Strand.BOTH), false) + bam.numOverlappers(new SingleInterval("countChr1", 240, 260, Strand.BOTH), false) > persisted.count(gene));
+		assertEquals("the spliced read is counted once", bam.numOverlappers(new SingleInterval("countChr1", 150, 260, Strand.BOTH), false), persisted.count("countChr1", 150, 260, Strand.BOTH));
+		assertEquals("placed unmapped reads have no blocks", 42, persisted.getNumFragments(Strand.BOTH));
+		assertEquals(0, persisted.count("countChr3", 0, 1000, Strand.BOTH));
+
+		long modified = bamFile.lastModified();
+		assertTrue(bamFile.setLastModified(modified - 60000));
+		try {
+			CoverageIndex.read(file, bam, bamFile);
+			fail("an index of another version of the BAM is refused");
+		}
+		catch(IOException ex) {}
+		finally {bamFile.setLastModified(modified);}
+	}
+
+	@Test
+	public void PeakCallerCountsWindows() throws IOException {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		BAMSingleReadCollection control = new BAMSingleReadCollection(bamFile);
+		control.addFilter(new StrandFilter<SAMFragment>(Strand.POSITIVE));
+		SingleInterval gene = new SingleInterval("countChr1", 100, 500, Strand.BOTH, "gene");
+		ScanPeakCaller caller = new ScanPeakCaller(bam, control, 50, 25, 1);
+
+		Map<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+		CloseableIterator<? extends PopulatedWindow<SAMFragment>> windows = bam.getPopulatedWindows(gene, 50, 25);
+		while(windows.hasNext()) {
+			PopulatedWindow<SAMFragment> window = windows.next();
+			expected.put(window.getReferenceStartPosition(), window.getNumberOfAnnotationsInWindow());
+		}
+		windows.close();
+		Map<Integer, Integer> counted = new TreeMap<Integer, Integer>();
+		int previous = Integer.MIN_VALUE;
+		for(ScanPeakCaller.Peak peak : caller.scoreGene(gene)) {
+			assertTrue("windows by start", peak.getReferenceStartPosition() > previous);
+			previous = peak.getReferenceStartPosition();
+			assertTrue(peak.getSampleCount() >= peak.getControlCount());
+			if(peak.getSampleCount() > 0) {counted.put(peak.getReferenceStartPosition(), peak.getSampleCount());}
+		}
+		assertEquals(expected, counted);
+
+		List<Annotation> genes = new ArrayList<Annotation>();
+		for(int i = 0; i < 20; i++) {
+			genes.add(new SingleInterval(i % 2 == 0 ? "countChr1" : "countChr2", 100 + 20 * i, 300 + 20 * i, Strand.BOTH, "gene" + i));
+		}
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		BEDWriter serialWriter = new BEDWriter(Channels.newChannel(serial));
+		BEDWriter parallelWriter = new BEDWriter(Channels.newChannel(parallel));
+		long numWindows = caller.callPeaks(genes.iterator(), serialWriter, 1);
+		assertEquals(numWindows, caller.callPeaks(genes.iterator(), parallelWriter, 4));
+		serialWriter.close();
+		parallelWriter.close();
+		assertEquals(serial.toString("UTF-8"), parallel.toString("UTF-8"));
+		String[] first = serial.toString("UTF-8").split("\n")[0].split("\t");
+		assertEquals("BED12", 12, first.length);
+		assertEquals("countChr1\t75\t125\tgene0", first[0] + "\t" + first[1] + "\t" + first[2] + "\t" + first[3]);
+		assertEquals("p-value as the score", caller.scoreGene(genes.get(0)).get(0).getPValue(), Double.parseDouble(first[4]), 1e-12);
+	}
+
+	@Test
+	public void CountsAreKeyedByFilters() {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		Predicate<SAMFragment> filter = new MinimumLengthFilter<SAMFragment>(10);
+		bam.addFilter(filter);
+		assertEquals(iterate(bam), bam.getNumAnnotations());
+		bam.getFilters().remove(filter);
+		assertEquals("count without the filter", 55, bam.getNumAnnotations());
+	}
+
+	@Test
+	public void AbandonedIteratorsReleaseReaders() {
+		//Open files are only listed on Linux
+		if(new File("/proc/self/fd").list() == null) {return;}
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		BlockedAnnotation gene = new BlockedAnnotation("gene");
+		gene.addBlocks(new SingleInterval("countChr1", 100, 200, Strand.BOTH));
+		gene.addBlocks(new SingleInterval("countChr1", 300, 400, Strand.BOTH));
+		assertTrue(bam.overlaps(gene));
+		int before = new File("/proc/self/fd").list().length;
+		for(int i = 0; i < 200; i++) {
+			//Stops after the first read, leaving the query of the first block unfinished
+			assertTrue(bam.overlaps(gene));
+			CloseableIterator<SAMFragment> iter = bam.sortedIterator(gene, false);
+			assertTrue(iter.hasNext());
+			iter.next();
+			iter.close();
+		}
+		assertTrue("readers are given back", new File("/proc/self/fd").list().length - before < 5);
+		bam.close();
+	}
+
+	@Test
+	public void ShardsIncludeUnplacedReads() throws IOException {
+		BAMSingleReadCollection bam = new BAMSingleReadCollection(bamFile);
+		CloseableIterator<Integer> counts = bam.mapShards(new ShardFunction<SAMFragment, Integer>() {
+			@Override
+			public Integer apply(Annotation shard, CloseableIterator<SAMFragment> annotations) {
+				int rtrn = 0;
+				while(annotations.hasNext()) {
+					annotations.next();
+					rtrn++;
+				}
+				return rtrn;
+			}
+		}, 4);
+		int total = 0;
+		while(counts.hasNext()) {total += counts.next();}
+		counts.close();
+		assertEquals("unplaced reads are in the last shard", 55, total);
+
+		File serial = File.createTempFile("BAMCountTestSerial", ".bam");
+		File parallel = File.createTempFile("BAMCountTestParallel", ".bam");
+		serial.deleteOnExit();
+		parallel.deleteOnExit();
+		new File(serial.getAbsolutePath().replaceAll(".bam$", ".bai")).deleteOnExit();
+		new File(parallel.getAbsolutePath().replaceAll(".bam$", ".bai")).deleteOnExit();
+		bam.writeToBAM(serial.getAbsolutePath());
+		bam.writeToBAM(parallel.getAbsolutePath(), 4);
+		assertEquals(55, iterate(new BAMSingleReadCollection(parallel)));
+		assertEquals(bam.getFeatureCoordinateSpace().getRefSeqLengths(), bam.getFeatureCoordinateSpace(4).getRefSeqLengths());
+		bam.close();
+	}
+
+}
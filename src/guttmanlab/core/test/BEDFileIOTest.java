@@ -0,0 +1,77 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.io.BEDFileIO;
+import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.samtools.util.CloseableIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BEDFileIOTest {
+
+	private File bed;
+	private BEDFileIO io;
+
+	@Before
+	public void setUp() throws IOException {
+		Map<String, Integer> sizes=new TreeMap<String, Integer>();
+		sizes.put("bedChr1", 1000000);
+		sizes.put("bedChr2", 1000000);
+		io=new BEDFileIO(new CoordinateSpace(sizes));
+
+		bed=File.createTempFile("BEDFileIOTest", ".bed");
+		bed.deleteOnExit();
+		FileWriter writer=new FileWriter(bed);
+		writer.write("bedChr2\t500\t900\tg1\t0\t-\t600\t800\t0,0,0\t2\t100,100,\t0,300,\n");
+		writer.write("bedChr1\t8000\t8100\tg2\t0\t+\t8000\t8100\t0,0,0\t1\t100,\t0,\n");
+		writer.write("bedChr1\t8000\t8100\tg3\t0\t+\t8000\t8100\t0,0,0\t2\t40,40,\t0,60,\r\n");
+		writer.write("bedChr1\t7950\t8400\n");
+		for(int i=0; i<1000; i++) {
+			writer.write("bedChr1\t"+(i*37%5000)+"\t"+(i*37%5000+20)+"\tr"+i+"\t1.5\t+\n");
+		}
+		writer.close();
+	}
+
+	private List<String> lines(AnnotationCollection<Gene> genes) {
+		List<String> rtrn=new ArrayList<String>();
+		CloseableIterator<Gene> iter=genes.sortedIterator();
+		while(iter.hasNext()) {
+			rtrn.add(iter.next().toBED());
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void ThreadCountDoesNotChangeResult() throws IOException {
+		List<String> single=lines(io.loadFromFile(bed.getAbsolutePath(), 1));
+		assertEquals(1004, single.size());
+		assertEquals(single, lines(io.loadFromFile(bed.getAbsolutePath(), 3)));
+	}
+
+	@Test
+	public void ParsesBlocksAndDuplicates() throws IOException {
+		AnnotationCollection<Gene> genes=io.loadFromFile(bed.getAbsolutePath(), 2);
+		assertEquals(1004, genes.getNumAnnotations());
+		assertEquals("duplicate intervals are both kept", 3, genes.numOverlappers(new SingleInterval("bedChr1",8020,8021,Strand.POSITIVE), false));
+		CloseableIterator<Gene> iter=genes.sortedIterator(new SingleInterval("bedChr2",0,1000,Strand.NEGATIVE), false);
+		assertTrue(iter.hasNext());
+		Gene g1=iter.next();
+		iter.close();
+		assertEquals("bedChr2\t500\t900\tg1\t0.0\t-\t600\t800\t0,0,0\t2\t100,100,\t0,300,", g1.toBED());
+	}
+
+}
@@ -0,0 +1,79 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.io.BEDWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BEDWriterTest {
+
+	private BlockedAnnotation blocked;
+	private Gene gene;
+
+	@Before
+	public void setUp() {
+		blocked = new BlockedAnnotation("blocked");
+		blocked.addBlocks(new SingleInterval("a1",100,300,Strand.POSITIVE));
+		blocked.addBlocks(new SingleInterval("a1",350,500,Strand.POSITIVE));
+		blocked.addBlocks(new SingleInterval("a1",600,700,Strand.POSITIVE));
+
+		Collection<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new SingleInterval("a2",1000,1100,Strand.NEGATIVE));
+		exons.add(new SingleInterval("a2",1200,1250,Strand.NEGATIVE));
+		gene = new Gene(exons, 1050, 1220, "gene");
+	}
+
+	@Test
+	public void ToBEDColumns() {
+		assertEquals("a1\t100\t700\tblocked\t0.0\t+\t700\t700\t0,0,0\t3\t200,150,100,\t0,250,500,", blocked.toBED());
+		assertEquals("a1\t100\t700\tx\t2.5\t+\t700\t700\t1,2,3\t3\t200,150,100,\t0,250,500,", blocked.toBED(1,2,3,2.5,"x"));
+		assertEquals("a2\t1000\t1250\tgene\t0.0\t-\t1050\t1220\t0,0,0\t2\t100,50,\t0,200,", gene.toBED());
+		assertEquals("unnamed intervals use the UCSC position", "a1\t5\t10\ta1:5-10\t0.0\t?\t10\t10\t0,0,0\t1\t5,\t0,", new BlockedAnnotation(new SingleInterval("a1",5,10,Strand.UNKNOWN,null)).toBED());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void InvalidColor() {
+		blocked.toBED(256,0,0);
+	}
+
+	@Test
+	public void WritesPlainAndGzip() throws IOException {
+		for(String suffix : new String[] {".bed", ".bed.gz"}) {
+			File file = File.createTempFile("BEDWriterTest", suffix);
+			file.deleteOnExit();
+			BEDWriter writer = new BEDWriter(file.getAbsolutePath());
+			writer.write(blocked);
+			writer.write(gene);
+			writer.close();
+
+			InputStream in = new FileInputStream(file);
+			if(suffix.endsWith(".gz")) {in = new GZIPInputStream(in);}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while((line = reader.readLine()) != null) {lines.add(line);}
+			reader.close();
+
+			assertEquals(2, lines.size());
+			assertEquals(blocked.toBED(), lines.get(0));
+			assertEquals(gene.toBED(), lines.get(1));
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.DerivedAnnotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sf.samtools.util.CloseableIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeatureSpaceTest {
+
+	private BlockedAnnotation plus;
+	private BlockedAnnotation minus;
+
+	@Before
+	public void setUp() {
+		//Exons of 100, 50 and 100 bases
+		plus = new BlockedAnnotation("plusTx");
+		minus = new BlockedAnnotation("minusTx");
+		int[][] exons = {{100,200},{300,350},{400,500}};
+		for(int[] exon : exons) {
+			plus.addBlocks(new SingleInterval("fsChr1",exon[0],exon[1],Strand.POSITIVE,"plusTx"));
+			minus.addBlocks(new SingleInterval("fsChr1",exon[0],exon[1],Strand.NEGATIVE,"minusTx"));
+		}
+	}
+
+	private static String blocks(Annotation a) {
+		StringBuilder rtrn = new StringBuilder();
+		Iterator<SingleInterval> iter = a.getBlocks();
+		while(iter.hasNext()) {
+			SingleInterval block = iter.next();
+			rtrn.append(block.getReferenceStartPosition()).append('-').append(block.getReferenceEndPosition()).append(',');
+		}
+		return rtrn.toString();
+	}
+
+	@Test
+	public void ReferenceToFeature() {
+		assertEquals(0, plus.getRelativePositionFrom5PrimeOfFeature(100));
+		assertEquals(150, plus.getRelativePositionFrom5PrimeOfFeature(400));
+		assertEquals("intron positions map to the next exon start", 100, plus.getRelativePositionFrom5PrimeOfFeature(250));
+		assertEquals(-1, plus.getRelativePositionFrom5PrimeOfFeature(500));
+		assertEquals(249, minus.getRelativePositionFrom5PrimeOfFeature(100));
+		assertEquals(99, minus.getRelativePositionFrom5PrimeOfFeature(400));
+	}
+
+	@Test
+	public void FeatureToReference() {
+		assertEquals("spans the middle exon", "190-200,300-350,400-410,", blocks(plus.convertToReferenceSpace(new SingleInterval("plusTx",90,160))));
+		assertEquals("5' end of the minus strand is the last exon", "450-500,", blocks(minus.convertToReferenceSpace(new SingleInterval("minusTx",0,50))));
+		assertEquals("190-200,300-350,400-410,", blocks(minus.convertToReferenceSpace(new SingleInterval("minusTx",90,160))));
+		assertEquals("other features do not map", "", blocks(plus.convertToReferenceSpace(new SingleInterval("minusTx",0,50))));
+	}
+
+	@Test
+	public void Trim() {
+		assertEquals("150-200,300-350,400-420,", blocks(plus.trim(150,420)));
+		assertEquals("", blocks(plus.trim(210,290)));
+	}
+
+	private static List<String> windows(BlockedAnnotation a, int windowSize, int stepSize) {
+		List<String> rtrn = new ArrayList<String>();
+		CloseableIterator<DerivedAnnotation<BlockedAnnotation>> iter = a.getWindowIterator(windowSize, stepSize);
+		while(iter.hasNext()) {
+			DerivedAnnotation<BlockedAnnotation> window = iter.next();
+			assertEquals(a.getName(), window.getName());
+			rtrn.add(blocks(window));
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void StreamedWindows() {
+		List<String> expected = new ArrayList<String>();
+		expected.add("100-200,");
+		expected.add("150-200,300-350,");
+		expected.add("300-350,400-450,");
+		expected.add("400-500,");
+		assertEquals(expected, windows(plus, 100, 50));
+		List<String> reversed = new ArrayList<String>();
+		for(int i = expected.size()-1; i >= 0; i--) {reversed.add(expected.get(i));}
+		assertEquals("5' to 3' on the negative strand", reversed, windows(minus, 100, 50));
+		assertEquals(plus.getWindows(10, 3).getNumAnnotations(), windows(plus, 10, 3).size());
+		assertTrue(windows(plus, 251, 1).isEmpty());
+	}
+
+}
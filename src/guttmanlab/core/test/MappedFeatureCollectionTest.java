@@ -0,0 +1,122 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.io.BEDFileIO;
+import guttmanlab.core.annotation.io.BinaryAnnotationFileIO;
+import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.annotationcollection.MappedFeatureCollection;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.sf.samtools.util.CloseableIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFeatureCollectionTest {
+
+	private AnnotationCollection<Gene> bed;
+	private MappedFeatureCollection mapped;
+
+	@Before
+	public void setUp() throws IOException {
+		Map<String, Integer> sizes=new TreeMap<String, Integer>();
+		sizes.put("mapChr1", 100000);
+		sizes.put("mapChr2", 100000);
+		CoordinateSpace space=new CoordinateSpace(sizes);
+
+		File bedFile=File.createTempFile("MappedFeatureCollectionTest", ".bed");
+		bedFile.deleteOnExit();
+		Random random=new Random(7);
+		FileWriter writer=new FileWriter(bedFile);
+		for(int i=0; i<2000; i++) {
+			String chr=random.nextBoolean() ? "mapChr1" : "mapChr2";
+			int start=random.nextInt(90000);
+			int size1=1+random.nextInt(200);
+			int gap=1+random.nextInt(3000);
+			int size2=1+random.nextInt(200);
+			int end=start+size1+gap+size2;
+			String strand=random.nextBoolean() ? "+" : "-";
+			writer.write(chr+"\t"+start+"\t"+end+"\tg"+i+"\t0\t"+strand+"\t"+(start+size1/2)+"\t"+end+"\t0,0,0\t2\t"+size1+","+size2+",\t0,"+(size1+gap)+",\n");
+		}
+		writer.write("mapChr1\t500\t90500\tlong\n");
+		writer.close();
+
+		File binary=File.createTempFile("MappedFeatureCollectionTest", ".gba");
+		binary.deleteOnExit();
+		BinaryAnnotationFileIO.convertFromBED(bedFile.getAbsolutePath(), space, binary.getAbsolutePath());
+		bed=BEDFileIO.loadFromFile(bedFile.getAbsolutePath(), space);
+		mapped=new BinaryAnnotationFileIO().loadFromFile(binary.getAbsolutePath());
+	}
+
+	private static List<String> lines(CloseableIterator<Gene> iter, boolean sort) {
+		List<String> rtrn=new ArrayList<String>();
+		while(iter.hasNext()) {
+			rtrn.add(iter.next().toBED());
+		}
+		iter.close();
+		if(sort) {Collections.sort(rtrn);}
+		return rtrn;
+	}
+
+	@Test
+	public void SameGenesAsBED() {
+		assertEquals(bed.getNumAnnotations(), mapped.getNumAnnotations());
+		assertEquals(bed.getReferenceCoordinateSpace().getRefSeqLengths(), mapped.getReferenceCoordinateSpace().getRefSeqLengths());
+		assertEquals(lines(bed.sortedIterator(), true), lines(mapped.sortedIterator(), true));
+		List<String> mappedLines=lines(mapped.sortedIterator(), false);
+		List<String> sortedLines=new ArrayList<String>(mappedLines);
+		Collections.sort(sortedLines, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				String[] x=a.split("\t");
+				String[] y=b.split("\t");
+				int rtrn=x[0].compareTo(y[0]);
+				if(rtrn==0) {rtrn=Integer.valueOf(x[1]).compareTo(Integer.valueOf(y[1]));}
+				return rtrn;
+			}
+		});
+		assertEquals("iterated in sorted order", sortedLines, mappedLines);
+	}
+
+	@Test
+	public void RegionQueriesMatchFeatureCollection() {
+		Random random=new Random(11);
+		for(int i=0; i<200; i++) {
+			String chr=random.nextBoolean() ? "mapChr1" : "mapChr2";
+			int start=random.nextInt(100000);
+			SingleInterval region=new SingleInterval(chr, start, start+1+random.nextInt(5000), Strand.BOTH);
+			assertEquals(region.toUCSC(), lines(bed.sortedIterator(region, false), true), lines(mapped.sortedIterator(region, false), true));
+
+			List<String> contained=new ArrayList<String>();
+			CloseableIterator<Gene> iter=bed.sortedIterator(region, false);
+			while(iter.hasNext()) {
+				Gene g=iter.next();
+				if(g.getReferenceStartPosition()>=region.getReferenceStartPosition() && g.getReferenceEndPosition()<=region.getReferenceEndPosition()) {
+					contained.add(g.toBED());
+				}
+			}
+			Collections.sort(contained);
+			assertEquals(region.toUCSC(), contained, lines(mapped.sortedIterator(region, true), true));
+		}
+	}
+
+	@Test
+	public void MissingReferenceIsEmpty() {
+		assertFalse(mapped.sortedIterator(new SingleInterval("mapChr3", 0, 100, Strand.BOTH), false).hasNext());
+		assertTrue(mapped.overlaps(new SingleInterval("mapChr1", 1000, 1001, Strand.BOTH)));
+	}
+
+}
@@ -8,9 +8,12 @@ import guttmanlab.core.annotationcollection.FeatureCollection;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
+import net.sf.samtools.util.CloseableIterator;
+
 import org.junit.Test;
 
 public class MergeTest {
@@ -181,4 +184,139 @@ public class MergeTest {
 		assertEquals("merged fc contains two annotations",2,fc_merged.getNumAnnotations());
 	}
 	
+	@Test
+	public void UnionKeepsEveryBlock() {
+		BlockedAnnotation a1 = new BlockedAnnotation();
+		a1.addBlocks(new SingleInterval("a1",100,300));
+		a1.addBlocks(new SingleInterval("a1",600,700));
+		
+		BlockedAnnotation a2 = new BlockedAnnotation();
+		a2.addBlocks(new SingleInterval("a1",250,400));
+		
+		Annotation a3 = a1.union(a2);
+		assertEquals("union should have 2 blocks.",2,a3.getNumberOfBlocks());
+		assertEquals("union start = 100",100,a3.getReferenceStartPosition());
+		assertEquals("union end = 700",700,a3.getReferenceEndPosition());
+		assertEquals("blocks 100-400 and 600-700",400,a3.size());
+		
+		BlockedAnnotation other = new BlockedAnnotation();
+		other.addBlocks(new SingleInterval("a2",250,400));
+		assertEquals("different references give an empty union",0,a1.union(other).getNumberOfBlocks());
+	}
+	
+	@Test
+	public void StreamingMerge() {
+		Map<String,Integer> mapping = new TreeMap<String,Integer>();
+		mapping.put("a1",1000);
+		mapping.put("a2",1000);
+		CoordinateSpace fcspace = new CoordinateSpace(mapping);
+		FeatureCollection<BlockedAnnotation> fc = new FeatureCollection<BlockedAnnotation>(fcspace);
+		
+		//Two spliced annotations joined by a third that spans the intron of the first
+		BlockedAnnotation a1 = new BlockedAnnotation("spliced");
+		a1.addBlocks(new SingleInterval("a1",100,200));
+		a1.addBlocks(new SingleInterval("a1",500,600));
+		BlockedAnnotation a2 = new BlockedAnnotation("intron");
+		a2.addBlocks(new SingleInterval("a1",300,400));
+		BlockedAnnotation a3 = new BlockedAnnotation("bridge");
+		a3.addBlocks(new SingleInterval("a1",150,350));
+		BlockedAnnotation a4 = new BlockedAnnotation("alone");
+		a4.addBlocks(new SingleInterval("a2",10,20));
+		fc.add(a1);
+		fc.add(a2);
+		fc.add(a3);
+		fc.add(a4);
+		
+		assertTrue(fc.overlaps(new SingleInterval("a1",380,390)));
+		assertFalse(fc.overlaps(new SingleInterval("a1",420,480)));
+		
+		FeatureCollection<BlockedAnnotation> merged = fc.merge(1);
+		assertEquals("merged fc contains two annotations",2,merged.getNumAnnotations());
+		Iterator<BlockedAnnotation> iter = merged.sortedIterator();
+		assertTrue(iter.hasNext());
+		BlockedAnnotation first = iter.next();
+		assertEquals("spliced annotations keep their introns",2,first.getNumberOfBlocks());
+		assertEquals(100,first.getReferenceStartPosition());
+		assertEquals(600,first.getReferenceEndPosition());
+		assertEquals(400,first.size());
+		assertTrue(iter.hasNext());
+		assertEquals("an annotation that overlaps nothing keeps its name","alone",iter.next().getName());
+		
+		FeatureCollection<BlockedAnnotation> parallel = fc.merge(2);
+		assertEquals(merged.getNumAnnotations(),parallel.getNumAnnotations());
+		Iterator<BlockedAnnotation> expected = merged.sortedIterator();
+		Iterator<BlockedAnnotation> actual = parallel.sortedIterator();
+		while(expected.hasNext() && actual.hasNext()) {
+			assertEquals(expected.next().toBED(),actual.next().toBED());
+		}
+	}
+	
+	@Test
+	public void ParallelMergeWithoutCoordinateSpace() {
+		FeatureCollection<BlockedAnnotation> fc = new FeatureCollection<BlockedAnnotation>(null);
+		fc.add(new BlockedAnnotation(new SingleInterval("a1",100,300)));
+		fc.add(new BlockedAnnotation(new SingleInterval("a1",200,500)));
+		fc.add(new BlockedAnnotation(new SingleInterval("a2",10,20)));
+		
+		FeatureCollection<BlockedAnnotation> merged = fc.merge(4);
+		assertEquals("merged on one thread",2,merged.getNumAnnotations());
+		assertEquals("counted on one thread",3,fc.getNumAnnotations(4));
+	}
+	
+	@Test
+	public void ShardsIncludeOtherReferences() {
+		Map<String,Integer> mapping = new LinkedHashMap<String,Integer>();
+		mapping.put("a1",1000);
+		FeatureCollection<BlockedAnnotation> fc = new FeatureCollection<BlockedAnnotation>(new CoordinateSpace(mapping));
+		fc.add(new BlockedAnnotation(new SingleInterval("a1",100,300)));
+		fc.add(new BlockedAnnotation(new SingleInterval("notInSpace",10,20)));
+		assertEquals("a short reference is one shard, then the unplaced shard",2,fc.getShards().size());
+		assertEquals(2,fc.getNumAnnotations(4));
+		assertEquals(fc.getNumAnnotations(1),fc.getNumAnnotations(4));
+	}
+	
+	@Test
+	public void CountCachedWhateverTheThreads() {
+		Map<String,Integer> mapping = new LinkedHashMap<String,Integer>();
+		mapping.put("a1",1000);
+		final int[] counted = new int[1];
+		FeatureCollection<BlockedAnnotation> fc = new FeatureCollection<BlockedAnnotation>(new CoordinateSpace(mapping)) {
+			@Override
+			protected int countAnnotations(int numThreads) {
+				counted[0]++;
+				return super.countAnnotations(numThreads);
+			}
+		};
+		fc.add(new BlockedAnnotation(new SingleInterval("a1",100,300)));
+		assertEquals(1,fc.getNumAnnotations(1));
+		assertEquals(1,fc.getNumAnnotations(4));
+		assertEquals("counted once for the same filters",1,counted[0]);
+	}
+	
+	@Test
+	public void StreamingMergeAcrossReferences() {
+		Map<String,Integer> mapping = new LinkedHashMap<String,Integer>();
+		mapping.put("mergeChrA",10000);
+		mapping.put("mergeChrB",10000);
+		FeatureCollection<BlockedAnnotation> fc = new FeatureCollection<BlockedAnnotation>(new CoordinateSpace(mapping));
+		
+		//A spliced annotation still open when the next reference starts, with another annotation in its intron
+		BlockedAnnotation spliced = new BlockedAnnotation("spliced");
+		spliced.addBlocks(new SingleInterval("mergeChrA",1000,1100));
+		spliced.addBlocks(new SingleInterval("mergeChrA",5000,5100));
+		fc.add(spliced);
+		fc.add(new BlockedAnnotation(new SingleInterval("mergeChrA",3000,3100)));
+		fc.add(new BlockedAnnotation(new SingleInterval("mergeChrB",10,30)));
+		fc.add(new BlockedAnnotation(new SingleInterval("mergeChrB",3000,3100)));
+		
+		String[] expected = {"mergeChrA:1000-5100", "mergeChrA:3000-3100", "mergeChrB:10-30", "mergeChrB:3000-3100"};
+		CloseableIterator<BlockedAnnotation> iter = fc.mergedIterator();
+		for(String region : expected) {
+			assertTrue(iter.hasNext());
+			assertEquals(region,iter.next().toUCSC());
+		}
+		assertFalse(iter.hasNext());
+		iter.close();
+	}
+	
 }
@@ -0,0 +1,65 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class MinusTest {
+
+	@Test
+	public void MinusSplitsBlock() {
+		BlockedAnnotation a1 = new BlockedAnnotation();
+		a1.addBlocks(new SingleInterval("a1",100,300));
+
+		Annotation a2 = a1.minus(new SingleInterval("a1",150,200));
+		assertEquals("difference should have 2 blocks.",2,a2.getNumberOfBlocks());
+		Iterator<SingleInterval> iter = a2.getBlocks();
+		Annotation a21 = iter.next();
+		Annotation a22 = iter.next();
+
+		assertEquals("block1 start = 100",100,a21.getReferenceStartPosition());
+		assertEquals("block1 end = 150",150,a21.getReferenceEndPosition());
+		assertEquals("block2 start = 200",200,a22.getReferenceStartPosition());
+		assertEquals("block2 end = 300",300,a22.getReferenceEndPosition());
+		assertEquals("size = 150",150,a2.size());
+	}
+
+	@Test
+	public void MinusAcrossBlocks() {
+		BlockedAnnotation a1 = new BlockedAnnotation();
+		a1.addBlocks(new SingleInterval("a1",100,300));
+		a1.addBlocks(new SingleInterval("a1",350,500));
+		a1.addBlocks(new SingleInterval("a1",600,700));
+
+		BlockedAnnotation a2 = new BlockedAnnotation();
+		a2.addBlocks(new SingleInterval("a1",250,400));
+		a2.addBlocks(new SingleInterval("a1",450,650));
+
+		Annotation a3 = a1.minus(a2);
+		assertEquals("difference should have 3 blocks.",3,a3.getNumberOfBlocks());
+		assertEquals("difference start = 100",100,a3.getReferenceStartPosition());
+		assertEquals("difference end = 700",700,a3.getReferenceEndPosition());
+		assertEquals("size = 150+50+50",250,a3.size());
+	}
+
+	@Test
+	public void MinusIgnoresOtherReferenceAndStrand() {
+		BlockedAnnotation a1 = new BlockedAnnotation();
+		a1.addBlocks(new SingleInterval("a1",100,300,Strand.POSITIVE));
+
+		Annotation a2 = a1.minus(new SingleInterval("a2",100,300,Strand.POSITIVE));
+		assertEquals("other reference leaves annotation unchanged",200,a2.size());
+
+		Annotation a3 = a1.minus(new SingleInterval("a1",100,300,Strand.NEGATIVE));
+		assertEquals("opposite strand leaves annotation unchanged",200,a3.size());
+
+		Annotation a4 = a1.minus(new SingleInterval("a1",50,350,Strand.BOTH));
+		assertEquals("covering annotation leaves nothing",0,a4.getNumberOfBlocks());
+	}
+
+}
@@ -0,0 +1,320 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.PairedMappedFragment;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotationcollection.BAMPairedFragmentCollection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PairedFragmentTest {
+
+	private File bamFile;
+	private File fragmentFile;
+	private List<SAMRecord> records;
+	private Set<String> expected;
+
+	@Before
+	public void setUp() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.addSequence(new SAMSequenceRecord("pairChr1", 100000));
+		header.addSequence(new SAMSequenceRecord("pairChr2", 100000));
+		bamFile = File.createTempFile("PairedFragmentTest", ".bam");
+		bamFile.deleteOnExit();
+		new File(bamFile.getAbsolutePath().replaceAll(".bam$", ".bai")).deleteOnExit();
+		fragmentFile = new File(bamFile.getAbsolutePath().replaceAll(".bam$", ".pe.bam"));
+		fragmentFile.deleteOnExit();
+		new File(bamFile.getAbsolutePath().replaceAll(".bam$", ".pe.bai")).deleteOnExit();
+		new File(fragmentFile.getAbsolutePath() + ".lock").deleteOnExit();
+
+		Random random = new Random(21);
+		records = new ArrayList<SAMRecord>();
+		expected = new TreeSet<String>();
+		for(int i = 0; i < 400; i++) {
+			String reference = i < 250 ? "pairChr1" : "pairChr2";
+			int start = 1 + random.nextInt(20000);
+			//Some mates start with their pair, some far away
+			int mateStart = i % 10 == 0 ? start : start + random.nextInt(i % 3 == 0 ? 5000 : 300);
+			SAMRecord first = read(header, "pair" + i, reference, start, mateStart, true);
+			first.setMappingQuality(i % 60);
+			records.add(first);
+			//Some mates are missing
+			if(i % 17 == 0) {continue;}
+			SAMRecord second = read(header, "pair" + i, reference, mateStart, start, false);
+			if(i % 4 == 0) {second.setCigarString("5M100N10M2D5M");}
+			second.setMappingQuality(60 - i % 60);
+			records.add(second);
+			expected.add("pair" + i);
+		}
+		//Reads at a mate's position whose own mate is unmapped
+		for(int i = 0; i < 50; i++) {
+			int start = records.get(2 * i + 1).getAlignmentStart();
+			SAMRecord record = read(header, "single" + i, "pairChr1", start, start, true);
+			record.setMateUnmappedFlag(true);
+			records.add(record);
+		}
+
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, bamFile);
+		for(SAMRecord record: records) {writer.addAlignment(record);}
+		writer.close();
+	}
+
+	private static SAMRecord read(SAMFileHeader header, String name, String reference, int start, int mateStart, boolean first) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName(reference);
+		record.setAlignmentStart(start);
+		record.setCigarString("20M");
+		record.setReadString("ACGTACGTACGTACGTACGT");
+		record.setBaseQualityString("IIIIIIIIIIIIIIIIIIII");
+		record.setReadPairedFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setReadNegativeStrandFlag(!first);
+		record.setMateNegativeStrandFlag(first);
+		record.setMateReferenceName(reference);
+		record.setMateAlignmentStart(mateStart);
+		return record;
+	}
+
+	private Set<String> pairs(BAMPairedFragmentCollection collection) {
+		Set<String> rtrn = new TreeSet<String>();
+		CloseableIterator<PairedMappedFragment<SAMFragment>> iter = collection.sortedIterator();
+		while(iter.hasNext()) {
+			PairedMappedFragment<SAMFragment> pair = iter.next();
+			assertEquals(pair.getRead1().getName(), pair.getRead2().getName());
+			assertTrue(pair.getRead1().getSamRecord().getFirstOfPairFlag());
+			assertTrue(rtrn.add(pair.getRead1().getName()));
+		}
+		iter.close();
+		return rtrn;
+	}
+
+	@Test
+	public void PairsAllMates() {
+		assertEquals(expected, pairs(new BAMPairedFragmentCollection(bamFile)));
+	}
+
+	@Test
+	public void FragmentBlocksMatchACopy() {
+		Random random = new Random(5);
+		CloseableIterator<PairedMappedFragment<SAMFragment>> iter = new BAMPairedFragmentCollection(bamFile).sortedIterator();
+		while(iter.hasNext()){
+			PairedMappedFragment<SAMFragment> fragment = iter.next();
+			BlockedAnnotation copy = new BlockedAnnotation(fragment);
+			assertEquals(copy.getNumberOfBlocks(), fragment.getNumberOfBlocks());
+			for(int i = 0; i < 20; i++){
+				int start = fragment.getReferenceStartPosition() - 50 + random.nextInt(fragment.size() + 100);
+				Annotation other = new SingleInterval(fragment.getReferenceName(), start, start + 1 + random.nextInt(30));
+				assertEquals(copy.overlaps(other), fragment.overlaps(other));
+				assertEquals(other.overlaps(copy), other.overlaps(fragment));
+			}
+		}
+		iter.close();
+	}
+
+	@Test
+	public void SpilledMatesArePaired() {
+		BAMPairedFragmentCollection collection = new BAMPairedFragmentCollection(bamFile);
+		collection.setMaxPendingMates(2);
+		assertEquals(expected, pairs(collection));
+	}
+
+	private String getCacheComment() {
+		SAMFileReader reader = new SAMFileReader(fragmentFile);
+		try {
+			for(String comment: reader.getFileHeader().getComments()) {
+				if(comment.contains("guttmanlab.pe")) {return comment;}
+			}
+			return null;
+		}
+		finally {reader.close();}
+	}
+
+	@Test
+	public void FragmentFileIsCached() {
+		Annotation region = new SingleInterval("pairChr1", 0, 30000);
+		int count = new BAMPairedFragmentCollection(bamFile).numOverlappers(region, false);
+		assertEquals(250 - 15, count);
+		assertTrue(fragmentFile.exists());
+		String comment = getCacheComment();
+		assertTrue(comment.contains("mtime=" + bamFile.lastModified()));
+
+		//A second collection reads the same file
+		long modified = fragmentFile.lastModified();
+		assertTrue(fragmentFile.setLastModified(modified - 10000));
+		assertEquals(count, new BAMPairedFragmentCollection(bamFile).numOverlappers(region, false));
+		assertEquals(modified - 10000, fragmentFile.lastModified());
+
+		//A changed BAM makes it stale
+		assertTrue(bamFile.setLastModified(bamFile.lastModified() - 10000));
+		assertEquals(count, new BAMPairedFragmentCollection(bamFile).numOverlappers(region, false));
+		assertTrue(getCacheComment().contains("mtime=" + bamFile.lastModified()));
+		assertFalse(comment.equals(getCacheComment()));
+	}
+
+	@Test
+	public void ConcurrentJobsShareFragmentFile() throws Exception {
+		final Annotation region = new SingleInterval("pairChr2", 0, 30000);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+		for(int i = 0; i < 8; i++) {
+			counts.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return new BAMPairedFragmentCollection(bamFile).numOverlappers(region, false);
+				}
+			}));
+		}
+		for(Future<Integer> count: counts) {
+			assertEquals(150 - 9, count.get().intValue());
+		}
+		executor.shutdown();
+		//No temporary files are left behind
+		String prefix = fragmentFile.getName().replaceAll(".bam$", ".");
+		for(File file: bamFile.getParentFile().listFiles()) {
+			assertFalse(file.getName(), file.getName().startsWith(prefix) && file.getName().endsWith(".tmp.bam"));
+		}
+	}
+
+	@Test
+	public void FragmentFileHasAllPairs() {
+		BAMPairedFragmentCollection collection = new BAMPairedFragmentCollection(bamFile);
+		collection.setNumThreads(2);
+		Set<String> names = new TreeSet<String>();
+		for(String reference: new String[] {"pairChr1", "pairChr2"}) {
+			CloseableIterator<PairedMappedFragment<SAMFragment>> iter = collection.sortedIterator(new SingleInterval(reference, 0, 100000), false);
+			int previous = -1;
+			while(iter.hasNext()) {
+				PairedMappedFragment<SAMFragment> pair = iter.next();
+				assertEquals(reference, pair.getReferenceName());
+				assertTrue(pair.getReferenceStartPosition() >= previous);
+				previous = pair.getReferenceStartPosition();
+				assertTrue(names.add(pair.getName()));
+			}
+			iter.close();
+		}
+		assertEquals(expected, names);
+	}
+
+	@Test
+	public void FragmentFileReadsMatchPairs() {
+		BAMPairedFragmentCollection collection = new BAMPairedFragmentCollection(bamFile);
+		Map<String, PairedMappedFragment<SAMFragment>> pairs = new TreeMap<String, PairedMappedFragment<SAMFragment>>();
+		CloseableIterator<PairedMappedFragment<SAMFragment>> iter = collection.sortedIterator();
+		while(iter.hasNext()) {
+			PairedMappedFragment<SAMFragment> pair = iter.next();
+			pairs.put(pair.getName(), pair);
+		}
+		iter.close();
+
+		iter = collection.sortedIterator(new SingleInterval("pairChr1", 0, 100000), false);
+		int count = 0;
+		while(iter.hasNext()) {
+			PairedMappedFragment<SAMFragment> fragment = iter.next();
+			PairedMappedFragment<SAMFragment> pair = pairs.get(fragment.getName());
+			assertEquals(pair.getReferenceStartPosition(), fragment.getReferenceStartPosition());
+			assertEquals(pair.getReferenceEndPosition(), fragment.getReferenceEndPosition());
+			assertEquals(pair.getOrientation(), fragment.getOrientation());
+			for(SAMFragment read: new SAMFragment[] {fragment.getRead1(), fragment.getRead2()}) {
+				SAMFragment expected = read.getSamRecord().getFirstOfPairFlag() ? pair.getRead1() : pair.getRead2();
+				assertEquals(expected.getReferenceStartPosition(), read.getReferenceStartPosition());
+				assertEquals(expected.getReferenceEndPosition(), read.getReferenceEndPosition());
+				assertEquals(expected.getNumberOfBlocks(), read.getNumberOfBlocks());
+				assertEquals(expected.getOrientation(), read.getOrientation());
+				assertEquals(expected.getReadOrientation(), read.getReadOrientation());
+				assertEquals(expected.getMappingQuality(), read.getMappingQuality());
+				assertEquals(expected.getMateReferenceStart(), read.getMateReferenceStart());
+				assertEquals(expected.getSamRecord().getCigarString(), read.getSamRecord().getCigarString());
+				assertEquals(expected.getSamRecord().getMappingQuality(), read.getSamRecord().getMappingQuality());
+			}
+			count++;
+		}
+		iter.close();
+		assertEquals(250 - 15, count);
+	}
+
+	private File writeCollated(SAMFileHeader.SortOrder sortOrder) throws IOException {
+		SAMFileHeader header = records.get(0).getHeader().clone();
+		header.setSortOrder(sortOrder);
+		File rtrn = File.createTempFile("PairedFragmentTestCollated", ".bam");
+		rtrn.deleteOnExit();
+		new File(rtrn.getAbsolutePath().replaceAll(".bam$", ".pe.bam")).deleteOnExit();
+		new File(rtrn.getAbsolutePath().replaceAll(".bam$", ".pe.bai")).deleteOnExit();
+		new File(rtrn.getAbsolutePath().replaceAll(".bam$", ".pe.bam.lock")).deleteOnExit();
+		//Reads of a pair together, pairs in reverse order
+		Map<String, List<SAMRecord>> groups = new TreeMap<String, List<SAMRecord>>();
+		for(SAMRecord record: records) {
+			if(!groups.containsKey(record.getReadName())) {groups.put(record.getReadName(), new ArrayList<SAMRecord>());}
+			groups.get(record.getReadName()).add(0, record);
+		}
+		List<String> names = new ArrayList<String>(groups.keySet());
+		if(sortOrder == SAMFileHeader.SortOrder.unsorted) {Collections.reverse(names);}
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, sortOrder == SAMFileHeader.SortOrder.unsorted, rtrn);
+		for(String name: names) {
+			for(SAMRecord record: groups.get(name)) {writer.addAlignment(record);}
+		}
+		writer.close();
+		return rtrn;
+	}
+
+	private void assertPairsInOrder(BAMPairedFragmentCollection collection) {
+		Set<String> names = new TreeSet<String>();
+		CloseableIterator<PairedMappedFragment<SAMFragment>> iter = collection.sortedIterator();
+		String reference = null;
+		int previous = -1;
+		while(iter.hasNext()) {
+			PairedMappedFragment<SAMFragment> pair = iter.next();
+			if(!pair.getReferenceName().equals(reference)) {
+				reference = pair.getReferenceName();
+				previous = -1;
+			}
+			assertTrue(pair.getReferenceStartPosition() >= previous);
+			previous = pair.getReferenceStartPosition();
+			assertTrue(names.add(pair.getName()));
+		}
+		iter.close();
+		assertEquals(expected, names);
+		assertEquals(150 - 9, collection.numOverlappers(new SingleInterval("pairChr2", 0, 30000), false));
+	}
+
+	@Test
+	public void NameSortedReadsArePaired() throws IOException {
+		assertPairsInOrder(new BAMPairedFragmentCollection(writeCollated(SAMFileHeader.SortOrder.queryname)));
+	}
+
+	@Test
+	public void CollatedReadsArePaired() throws IOException {
+		BAMPairedFragmentCollection collection = new BAMPairedFragmentCollection(writeCollated(SAMFileHeader.SortOrder.unsorted));
+		collection.setCollated(true);
+		assertPairsInOrder(collection);
+	}
+
+}
@@ -0,0 +1,153 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.BlockedAnnotation;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotationcollection.FeatureCollection;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+import guttmanlab.core.coordinatespace.ReferenceDictionary;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ReferenceDictionaryTest {
+
+	@Test
+	public void IdsIgnoreCase() {
+		int id=ReferenceDictionary.getId("dictChrA");
+		assertEquals("same reference in another case has the same id",id,ReferenceDictionary.getId("DICTCHRA"));
+		assertEquals("interval carries the id",id,new SingleInterval("dictchra",0,10).getReferenceId());
+		assertEquals("name is the first spelling seen","dictChrA",ReferenceDictionary.getName(id));
+	}
+
+	@Test
+	public void SpaceSortsInItsOwnOrder() {
+		Map<String, Integer> sizes=new LinkedHashMap<String, Integer>();
+		sizes.put("orderChr10", 1000);
+		sizes.put("orderChr2", 1000);
+		sizes.put("orderChr1", 1000);
+		Comparator<Annotation> order=new CoordinateSpace(sizes).getAnnotationOrder();
+
+		SingleInterval chr10=new SingleInterval("orderChr10",500,600);
+		SingleInterval chr2=new SingleInterval("orderChr2",100,200);
+		SingleInterval chr1=new SingleInterval("orderChr1",0,100);
+		assertTrue("chr10 sorts before chr2 in the space",order.compare(chr10,chr2)<0);
+		assertTrue("chr2 sorts before chr1 in the space",order.compare(chr2,chr1)<0);
+		assertTrue("same reference sorts by position",order.compare(chr1,new SingleInterval("orderChr1",50,100))<0);
+
+		BlockedAnnotation other=new BlockedAnnotation(new SingleInterval("orderOther",0,100));
+		assertTrue("references outside the space sort last",order.compare(other,new BlockedAnnotation(chr1))>0);
+	}
+
+	@Test
+	public void OrderDoesNotDependOnWhatWasSeenFirst() {
+		SingleInterval chrA=new SingleInterval("firstChrA",0,10);
+		SingleInterval chrB=new SingleInterval("firstChrB",0,10);
+		SingleInterval chrZ=new SingleInterval("firstChrZ",0,10);
+		SingleInterval chrY=new SingleInterval("firstChrY",0,10);
+
+		Map<String, Integer> sizes=new LinkedHashMap<String, Integer>();
+		sizes.put("firstChrB", 1000);
+		sizes.put("firstChrA", 1000);
+		CoordinateSpace table=new CoordinateSpace(sizes);
+		Map<String, Integer> headerSizes=new LinkedHashMap<String, Integer>();
+		headerSizes.put("firstChrA", 1000);
+		headerSizes.put("firstChrB", 1000);
+		CoordinateSpace header=new CoordinateSpace(headerSizes);
+
+		assertTrue("each space keeps its own order",table.getAnnotationOrder().compare(chrA,chrB)>0);
+		assertTrue("each space keeps its own order",header.getAnnotationOrder().compare(chrA,chrB)<0);
+		assertTrue("annotations compare by name",chrA.compareTo(chrB)<0);
+
+		Map<String, Integer> reversed=new LinkedHashMap<String, Integer>();
+		reversed.put("firstChrZ", 1000);
+		reversed.put("firstChrY", 1000);
+		assertTrue("names seen before the space still follow it",new CoordinateSpace(reversed).getAnnotationOrder().compare(chrZ,chrY)<0);
+	}
+
+	@Test
+	public void SortedCollectionsSurviveNewSpaces() {
+		FeatureCollection<BlockedAnnotation> fc=new FeatureCollection<BlockedAnnotation>(null);
+		for(int i=1; i<=13; i++){
+			fc.addAnnotation(new BlockedAnnotation(new SingleInterval("fixedChr"+i,100,200)));
+		}
+		SingleInterval chr1=new SingleInterval("fixedChr1",0,100);
+		SingleInterval chr13=new SingleInterval("fixedChr13",0,100);
+		int before=chr1.compareTo(chr13);
+
+		Map<String, Integer> sizes=new LinkedHashMap<String, Integer>();
+		for(int i=13; i>=1; i--){
+			sizes.put("fixedChr"+i, 1000);
+		}
+		new CoordinateSpace(sizes);
+
+		assertEquals("references keep their order",before,chr1.compareTo(chr13));
+		for(int i=1; i<=13; i++){
+			assertTrue("fixedChr"+i+" still found",fc.overlaps(new SingleInterval("fixedChr"+i,150,160)));
+		}
+	}
+
+	@Test
+	public void CollectionUsesOrderOfItsSpace() {
+		Map<String, Integer> sizes=new LinkedHashMap<String, Integer>();
+		sizes.put("spaceChrB", 1000);
+		sizes.put("spaceChrA", 1000);
+		FeatureCollection<BlockedAnnotation> fc=new FeatureCollection<BlockedAnnotation>(new CoordinateSpace(sizes));
+		fc.addAnnotation(new BlockedAnnotation(new SingleInterval("spaceChrA",100,200)));
+		fc.addAnnotation(new BlockedAnnotation(new SingleInterval("spaceChrB",100,200)));
+		fc.addAnnotation(new BlockedAnnotation(new SingleInterval("spaceChrOther",100,200)));
+
+		Map<String, Integer> otherSizes=new LinkedHashMap<String, Integer>();
+		otherSizes.put("spaceChrOther", 1000);
+		otherSizes.put("spaceChrA", 1000);
+		new CoordinateSpace(otherSizes);
+
+		String[] expected={"spaceChrB","spaceChrA","spaceChrOther"};
+		int i=0;
+		for(BlockedAnnotation a: fc){
+			assertEquals(expected[i++],a.getReferenceName());
+		}
+		assertEquals(3,i);
+		assertTrue(fc.overlaps(new SingleInterval("SPACECHROTHER",150,160)));
+	}
+
+	@Test
+	public void FeatureNamesAreNotInterned() {
+		BlockedAnnotation gene=new BlockedAnnotation("uninternedGene");
+		gene.addBlocks(new SingleInterval("featureChr",100,200));
+		gene.addBlocks(new SingleInterval("featureChr",300,400));
+
+		BlockedAnnotation feature=gene.convertToFeatureSpace(new SingleInterval("featureChr",150,350));
+		assertEquals("uninternedGene",feature.getReferenceName());
+		assertEquals(ReferenceDictionary.NOT_INTERNED,ReferenceDictionary.lookupId("uninternedGene"));
+		BlockedAnnotation same=gene.convertToFeatureSpace(new SingleInterval("featureChr",150,350));
+		assertEquals("feature intervals compare by name",feature,same);
+		assertEquals(feature.hashCode(),same.hashCode());
+
+		Annotation reference=gene.convertToReferenceSpace(feature);
+		assertEquals(2,reference.getNumberOfBlocks());
+		assertEquals(100,reference.size());
+
+		FeatureCollection<BlockedAnnotation> fc=new FeatureCollection<BlockedAnnotation>(null);
+		fc.add(gene);
+		assertEquals(200,fc.getFeatureCoordinateSpace().getRefSeqLengths().get("uninternedGene").intValue());
+		assertEquals("conversions and feature spaces leave the dictionary alone",ReferenceDictionary.NOT_INTERNED,ReferenceDictionary.lookupId("uninternedGene"));
+
+		SingleInterval interned=new SingleInterval("UNINTERNEDGENE",0,10);
+		assertTrue("a name interned later is still the same reference",ReferenceDictionary.sameReference(interned,feature));
+		assertEquals(ReferenceDictionary.hash(interned.getReferenceId(),interned.getReferenceName()),ReferenceDictionary.hash(feature.getReferenceId(),feature.getReferenceName()));
+	}
+
+	@Test
+	public void BlocksOnOtherReferenceRejected() {
+		BlockedAnnotation a1=new BlockedAnnotation();
+		assertTrue(a1.addBlocks(new SingleInterval("dictChrB",100,200)));
+		assertTrue("same reference ignoring case",a1.addBlocks(new SingleInterval("DICTCHRB",300,400)));
+		assertFalse("other reference",a1.addBlocks(new SingleInterval("dictChrC",500,600)));
+		assertEquals(2,a1.getNumberOfBlocks());
+	}
+
+}
@@ -0,0 +1,82 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.util.Iterator;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SAMFragmentTest {
+
+	private SAMFileHeader header;
+
+	@Before
+	public void setUp() {
+		header=new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("fragChr1", 100000));
+	}
+
+	private SAMFragment fragment(int alignmentStart, String cigar) {
+		SAMRecord record=new SAMRecord(header);
+		record.setReadName("read");
+		record.setReferenceName("fragChr1");
+		record.setAlignmentStart(alignmentStart);
+		record.setCigarString(cigar);
+		return new SAMFragment(record);
+	}
+
+	@Test
+	public void SplicedReadBlocks() {
+		SAMFragment f=fragment(101,"10M100N20M");
+		assertEquals("two blocks",2,f.getNumberOfBlocks());
+		assertEquals("start is 0-based",100,f.getReferenceStartPosition());
+		assertEquals("end includes the intron",230,f.getReferenceEndPosition());
+		assertEquals("size excludes the intron",30,f.size());
+		Iterator<SingleInterval> iter=f.getBlocks();
+		SingleInterval b1=iter.next();
+		SingleInterval b2=iter.next();
+		assertEquals(110,b1.getReferenceEndPosition());
+		assertEquals(210,b2.getReferenceStartPosition());
+		assertTrue("overlaps second exon",f.overlaps(new SingleInterval("fragChr1",215,216,Strand.BOTH)));
+		assertFalse("does not overlap the intron",f.overlaps(new SingleInterval("fragChr1",150,160,Strand.BOTH)));
+	}
+
+	@Test
+	public void InsertionsAndClippingDoNotMoveReference() {
+		SAMFragment f=fragment(101,"5S10M2I10M3H");
+		assertEquals("one block",1,f.getNumberOfBlocks());
+		assertEquals(100,f.getReferenceStartPosition());
+		assertEquals(120,f.getReferenceEndPosition());
+	}
+
+	@Test
+	public void DeletionSplitsBlocks() {
+		SAMFragment f=fragment(101,"10M2D10M");
+		assertEquals("two blocks",2,f.getNumberOfBlocks());
+		assertEquals(122,f.getReferenceEndPosition());
+		assertEquals(20,f.size());
+	}
+
+	@Test
+	public void StringAndRecordParsingAgree() {
+		String cigar="3S8M1I4=2X50N6M4D7M";
+		SAMFragment f=fragment(1001,cigar);
+		Annotation parsed=SAMFragment.parseCigar(cigar,"fragChr1",1000,f.getOrientation(),"read");
+		assertEquals(f.getNumberOfBlocks(),parsed.getNumberOfBlocks());
+		assertEquals(f.getReferenceEndPosition(),parsed.getReferenceEndPosition());
+		Iterator<SingleInterval> a=f.getBlocks();
+		Iterator<SingleInterval> b=parsed.getBlocks();
+		while(a.hasNext()){
+			assertEquals(a.next(),b.next());
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package guttmanlab.core.test;
+import static org.junit.Assert.*;
+import guttmanlab.core.math.ScanStat;
+
+import java.util.Random;
+
+import jsc.distributions.Poisson;
+
+import org.junit.Test;
+
+public class ScanStatTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	/**
+	 * The scan p-value computed term by term with jsc Poisson objects
+	 */
+	private static double expectedScanPVal(int k, double lambda, double w, double T) {
+		if(k <= 2) {return 1;}
+		double lambdaW = lambda * w;
+		double cdf = 0;
+		for(int i = 0; i <= k - 1; i++) {cdf += new Poisson(lambdaW).pdf(i);}
+		double a = ((k - lambdaW) / k) * (lambda * (T - w) * new Poisson(lambdaW).pdf(k - 1));
+		return Math.min(1, Math.abs(1 - cdf * Math.exp(-a)));
+	}
+
+	@Test
+	public void MatchesPoissonObjects() {
+		Random random = new Random(3);
+		for(int i = 0; i < 200; i++) {
+			double lambda = Math.pow(10, -4 + 4 * random.nextDouble());
+			double w = 10 + random.nextInt(5000);
+			double T = w + random.nextInt(100000000);
+			int k = random.nextInt(400);
+			assertEquals(expectedScanPVal(k, lambda, w, T), ScanStat.scanPVal(k, lambda, w, T), TOLERANCE);
+			assertEquals(new Poisson(lambda * w).pdf(k), ScanStat.poisson(k, lambda * w), TOLERANCE);
+		}
+	}
+
+	@Test
+	public void BulkMatchesSingle() {
+		double lambda = 0.002;
+		double w = 5000;
+		double T = 1e8;
+		ScanStat scan = new ScanStat(lambda, w, T);
+		int[] counts = {0, 1, 2, 3, 10, 25, 7, 100, 40, 3, 1000};
+		double[] pValues = scan.pValues(counts);
+		for(int i = 0; i < counts.length; i++) {
+			assertEquals(expectedScanPVal(counts[i], lambda, w, T), pValues[i], TOLERANCE);
+			assertEquals(ScanStat.scanPVal(counts[i], lambda, w, T), scan.pValue(counts[i]), 0);
+		}
+		assertEquals(1, scan.pValue(2), 0);
+	}
+
+}